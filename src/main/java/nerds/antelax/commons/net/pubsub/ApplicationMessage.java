@@ -17,8 +17,11 @@
 
 package nerds.antelax.commons.net.pubsub;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import nerds.antelax.commons.base.Pair;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
@@ -27,8 +30,23 @@ import com.google.common.base.Preconditions;
 
 public final class ApplicationMessage extends Message {
 
-    final String                topic;
-    private final ChannelBuffer body;
+    static final int                                     INLINE_TOPIC   = -1;
+    static final int                                     NO_COMPRESSION = 0;
+
+    /**
+     * Separates the topic from the key of a keyed message, which is always written inline as the topic followed by this and the
+     * key; neither may contain it.
+     */
+    static final char                                    KEY_SEPARATOR  = '\u0001';
+
+    final String                                         topic;
+    // Null unless the message is keyed, see PubSubServer#keyedTopics
+    final String                                         key;
+    private final int                                    codecID;
+    private final ChannelBuffer                          payload;
+    private volatile ChannelBuffer                       inflated;
+    private volatile Pair<Integer, ApplicationMessage>   deflated;
+    private volatile ChannelBuffer                       v1Body;
 
     ApplicationMessage(final byte[] body, final String topic) {
         this(ChannelBuffers.wrappedBuffer(body), topic);
@@ -43,40 +61,271 @@ public final class ApplicationMessage extends Message {
     }
 
     ApplicationMessage(final ChannelBuffer body, final String topic) {
+        this(body, topic, null);
+    }
+
+    ApplicationMessage(final ByteBuffer body, final String topic, final String key) {
+        this(ChannelBuffers.wrappedBuffer(body), topic, key);
+    }
+
+    /**
+     * @param key
+     *            the key the message is for, or null if it isn't keyed
+     */
+    ApplicationMessage(final ChannelBuffer body, final String topic, final String key) {
         super(Type.Application);
         Preconditions.checkNotNull(body, "Message body cannot be null");
         Preconditions.checkNotNull(topic, "Topic cannot be null");
+        // Checked whether keyed or not, since the decoder takes any inline topic holding the separator for a keyed one
+        Preconditions.checkArgument(topic.indexOf(KEY_SEPARATOR) < 0 && (key == null || key.indexOf(KEY_SEPARATOR) < 0),
+                "Neither topic nor key may contain the key separator");
         this.topic = topic;
-        final byte[] topicBytes = topic.getBytes(Charsets.UTF_8);
-        this.body = ChannelBuffers.buffer(4 + topicBytes.length + body.readableBytes());
-        this.body.writeInt(topicBytes.length);
-        this.body.writeBytes(topicBytes);
-        this.body.writeBytes(body);
+        this.key = key;
+        codecID = NO_COMPRESSION;
+        payload = ChannelBuffers.unmodifiableBuffer(ChannelBuffers.copiedBuffer(body));
+        inflated = payload;
     }
 
-    ApplicationMessage(final ChannelBuffer body) {
+    /*
+     * Wraps a body as received off the wire without copying it: only the topic is decoded, the payload is kept as a read-only view
+     * so that the very same bytes can be forwarded to every subscriber. The body starts with either the length of the inline UTF-8
+     * topic that follows, or (when negative) the complement of a topic ID previously defined on the channel; an inline topic may be
+     * followed by KEY_SEPARATOR and the message's key. If the frame was flagged as compressed the topic is followed by the ID of the
+     * codec used (zero for none), and a compressed payload starts with its original length; it is only decompressed if and when the
+     * payload itself is needed.
+     */
+    ApplicationMessage(final ChannelBuffer body, final WireDictionary topics, final boolean compressed)
+            throws MessageFormatException {
         super(Type.Application);
-        this.body = ChannelBuffers.copiedBuffer(body);
-        this.body.markReaderIndex();
-        final byte[] topicBytes = new byte[this.body.readInt()];
-        this.body.readBytes(topicBytes);
-        topic = new String(topicBytes, Charsets.UTF_8);
-        this.body.resetReaderIndex();
+        Preconditions.checkNotNull(body, "Message body cannot be null");
+        if (body.readableBytes() < 4)
+            throw new MessageFormatException("Application message body too short to hold a topic");
+        final int topicLength = body.getInt(body.readerIndex());
+        int payloadOffset;
+        if (topicLength < 0) {
+            topic = topics.topic(~topicLength);
+            key = null;
+            payloadOffset = 4;
+        } else if (topicLength <= body.readableBytes() - 4) {
+            final String inline = body.toString(body.readerIndex() + 4, topicLength, Charsets.UTF_8);
+            final int separator = inline.indexOf(KEY_SEPARATOR);
+            topic = WireDictionary.intern(separator < 0 ? inline : inline.substring(0, separator));
+            key = separator < 0 ? null : inline.substring(separator + 1);
+            payloadOffset = 4 + topicLength;
+        } else
+            throw new MessageFormatException("Invalid topic length[" + topicLength + "] for body of length "
+                    + body.readableBytes());
+        if (compressed) {
+            if (payloadOffset >= body.readableBytes())
+                throw new MessageFormatException("Compressed application message body too short to hold a codec ID");
+            codecID = body.getUnsignedByte(body.readerIndex() + payloadOffset++);
+        } else
+            codecID = NO_COMPRESSION;
+        payload = ChannelBuffers.unmodifiableBuffer(body.slice(body.readerIndex() + payloadOffset, body.readableBytes()
+                - payloadOffset));
+        inflated = codecID == NO_COMPRESSION ? payload : null;
+    }
+
+    /**
+     * A keyed message whose (possibly compressed) payload is already read-only and owned by the message.
+     */
+    ApplicationMessage(final String topic, final String key, final int codecID, final ChannelBuffer payload) {
+        this(topic, key, codecID, payload, codecID == NO_COMPRESSION ? payload : null);
+    }
+
+    private ApplicationMessage(final String topic, final String key, final int codecID, final ChannelBuffer payload,
+            final ChannelBuffer inflated) {
+        super(Type.Application);
+        this.topic = topic;
+        this.key = key;
+        this.codecID = codecID;
+        this.payload = payload;
+        this.inflated = inflated;
+    }
+
+    /**
+     * @return what a newer message must have in common with this one to replace it when conflating: the topic, followed by the key
+     *         if there is one
+     */
+    String conflationKey() {
+        return key != null ? topic + KEY_SEPARATOR + key : topic;
     }
 
     @Override
-    int estimatedBodySize() {
-        return body.capacity();
+    boolean compressed() {
+        return codecID != NO_COMPRESSION;
+    }
+
+    int codecID() {
+        return codecID;
+    }
+
+    /**
+     * @return this message compressed with <code>codec</code>, or this message itself if already compressed, too small to be
+     *         worth it or no smaller for having been compressed; the result is kept, so that a message going to many channels is
+     *         only ever compressed once
+     */
+    ApplicationMessage compress(final CompressionCodec codec) {
+        if (compressed() || payload.readableBytes() < codec.threshold())
+            return this;
+        Pair<Integer, ApplicationMessage> rv = deflated;
+        if (rv == null || rv.first() != codec.id()) {
+            final ByteBuffer compressed = codec.compress(topic, payload.toByteBuffer());
+            final ChannelBuffer wire = ChannelBuffers.buffer(5 + compressed.remaining());
+            writeVarInt(wire, payload.readableBytes());
+            wire.writeBytes(compressed);
+            rv = Pair.make_pair(codec.id(), wire.readableBytes() < payload.readableBytes() ? new ApplicationMessage(topic,
+                    key, codec.id(), ChannelBuffers.unmodifiableBuffer(wire), payload) : this);
+            deflated = rv;
+        }
+        copyHeaderTo(rv.second());
+        return rv.second();
+    }
+
+    /**
+     * @return this message if not compressed, otherwise an uncompressed copy of it
+     */
+    ApplicationMessage decompress() throws MessageFormatException {
+        if (!compressed())
+            return this;
+        final ChannelBuffer raw = inflate();
+        final ApplicationMessage rv = new ApplicationMessage(topic, key, NO_COMPRESSION, raw, raw);
+        copyHeaderTo(rv);
+        return rv;
+    }
+
+    private ChannelBuffer inflate() throws MessageFormatException {
+        ChannelBuffer rv = inflated;
+        if (rv == null) {
+            final CompressionCodec codec = CompressionCodecs.byID(codecID);
+            if (codec == null)
+                throw new MessageFormatException("Unknown compression codec[" + codecID + "] for topic[" + topic + "]");
+            final ChannelBuffer in = payload.duplicate();
+            final int length = readVarInt(in);
+            if (length < 0)
+                throw new MessageFormatException("Compressed payload for topic[" + topic + "] too short to hold its length");
+            if (length > (long) CompressionCodec.MAX_EXPANSION * in.readableBytes())
+                throw new MessageFormatException("Compressed payload for topic[" + topic + "] of " + in.readableBytes()
+                        + " bytes claims to inflate to " + length);
+            try {
+                rv = ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(codec.decompress(topic, in.toByteBuffer(),
+                        length)));
+            } catch (final IOException ioe) {
+                throw new MessageFormatException(ioe);
+            }
+            if (rv.readableBytes() != length)
+                throw new MessageFormatException("Compressed payload for topic[" + topic + "] inflated to " + rv.readableBytes()
+                        + " bytes instead of " + length);
+            inflated = rv;
+        }
+        return rv;
+    }
+
+    /**
+     * @return the version 1 body, with the topic written inline and the payload uncompressed
+     * @throws IllegalStateException
+     *             if the payload is compressed and cannot be decompressed; the encoder decompresses messages before getting this
+     *             far, so that the error can be reported to the writer
+     */
+    @Override
+    ChannelBuffer body() {
+        // Built once and kept, so that a message going to many version 1 channels shares the one body
+        ChannelBuffer rv = v1Body;
+        if (rv == null) {
+            final ChannelBuffer prefix = ChannelBuffers.dynamicBuffer(4 + topic.length());
+            marshallTopic(prefix, INLINE_TOPIC);
+            try {
+                rv = ChannelBuffers.wrappedBuffer(prefix, inflate());
+            } catch (final MessageFormatException mfe) {
+                throw new IllegalStateException(mfe);
+            }
+            v1Body = rv;
+        }
+        return rv.duplicate();
     }
 
     @Override
-    void marshallBody(final ChannelBuffer buffer) {
-        buffer.writeBytes(body, 0, body.capacity());
+    int estimatedBodySize() {
+        return 4 + topic.length() + (key != null ? 1 + key.length() : 0) + (compressed() ? 1 : 0) + payload.readableBytes();
+    }
+
+    /*
+     * Keyed messages always have their topic written inline, since topic IDs don't cover keys
+     */
+    private void marshallTopic(final ChannelBuffer buffer, final int topicID) {
+        if (topicID != INLINE_TOPIC && key == null)
+            buffer.writeInt(~topicID);
+        else {
+            final byte[] topicBytes = (key != null ? topic + KEY_SEPARATOR + key : topic).getBytes(Charsets.UTF_8);
+            buffer.writeInt(topicBytes.length);
+            buffer.writeBytes(topicBytes);
+        }
+    }
+
+    /**
+     * Writes a copy of the body, referring to the topic by <code>topicID</code> unless it is {@link #INLINE_TOPIC}.
+     * 
+     * @param withCodecID
+     *            true to write the payload as is, preceded by the ID of the codec used to compress it, for a frame flagged as
+     *            compressed
+     */
+    void marshallBody(final ChannelBuffer buffer, final int topicID, final boolean withCodecID) {
+        marshallTopic(buffer, topicID);
+        if (withCodecID)
+            buffer.writeByte(codecID);
+        else
+            Preconditions.checkState(!compressed(), "Compressed payload in a frame not flagged as compressed");
+        buffer.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
+    }
+
+    /**
+     * @return a copy of this message, header included, whose payload (compressed or not) is copied into a buffer of its own so that
+     *         keeping the copy does not keep whatever larger buffer the payload was read into
+     */
+    ApplicationMessage retained() {
+        final ChannelBuffer copy = ChannelBuffers.unmodifiableBuffer(ChannelBuffers.copiedBuffer(payload));
+        final ApplicationMessage rv = new ApplicationMessage(topic, key, codecID, copy, compressed() ? null : copy);
+        copyHeaderTo(rv);
+        return rv;
+    }
+
+    /**
+     * @return a copy of this message with a header of its own, sharing its payload; for changing the header of a message received
+     *         in-VM, which is the very object its sender may still be writing to other channels
+     */
+    ApplicationMessage withOwnHeader() {
+        final ApplicationMessage rv = new ApplicationMessage(topic, key, codecID, payload, inflated);
+        copyHeaderTo(rv);
+        return rv;
+    }
+
+    /**
+     * @return the payload as sent, which may be compressed
+     */
+    ChannelBuffer payload() {
+        return payload;
+    }
+
+    /**
+     * Encodes this message with a compact header, referring to our topic by <code>topicID</code> unless it is
+     * {@link #INLINE_TOPIC}; the (shared) payload is sent as is, so if compressed the frame is flagged as such.
+     */
+    ChannelBuffer encodeCompact(final int topicID, final int sourceRef, final int serverRef) {
+        final ChannelBuffer prefix = ChannelBuffers.dynamicBuffer(5);
+        marshallTopic(prefix, topicID);
+        if (compressed())
+            prefix.writeByte(codecID);
+        final ChannelBuffer header = ChannelBuffers.buffer(MAX_COMPACT_HEADER_SIZE + prefix.readableBytes());
+        marshallCompactHeader(header, prefix.readableBytes() + payload.readableBytes(), sourceRef, serverRef);
+        header.writeBytes(prefix);
+        return ChannelBuffers.wrappedBuffer(header, payload);
     }
 
-    ByteBuffer applicationBody() {
-        final int offset = 4 + topic.getBytes(Charsets.UTF_8).length;
-        return body.toByteBuffer(offset, body.writerIndex() - offset).asReadOnlyBuffer();
+    /**
+     * @return the uncompressed payload
+     */
+    ByteBuffer applicationBody() throws MessageFormatException {
+        return inflate().toByteBuffer().asReadOnlyBuffer();
     }
 
 }
@@ -0,0 +1,342 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelConfig;
+import org.jboss.netty.channel.ChannelHandler.Sharable;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.socket.nio.NioSocketChannelConfig;
+import org.jboss.netty.util.internal.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/*
+ * Holds back published messages while the channel is unwritable, i.e. while Netty's write buffer is above its high water mark,
+ * releasing them in order once it drains below the low water mark. Messages held back count against a byte limit, and what happens
+ * to those that don't fit is up to the OverflowPolicy of their topic. Only application messages and batches are held back; anything
+ * else goes straight through.
+ * 
+ * One instance serves every channel of a client, including connection attempts that lose out and the in-VM one, so the settings
+ * are shared but each channel has a backlog of its own, from when it opens until it closes.
+ */
+@Sharable
+final class BackpressureHandler extends SimpleChannelHandler {
+
+    private static final Logger               logger = LoggerFactory.getLogger(BackpressureHandler.class);
+
+    private final Map<String, OverflowPolicy> topicPolicies;
+    private final Map<Channel, Backlog>       backlogs;
+    private final AtomicLong                  dropped;
+    private volatile int                      lowWaterMark;
+    private volatile int                      highWaterMark;
+    private volatile OverflowPolicy           policy;
+    private volatile long                     maxQueuedBytes;
+    private volatile long                     timeoutNanos;
+
+    BackpressureHandler() {
+        topicPolicies = new ConcurrentHashMap<String, OverflowPolicy>();
+        backlogs = new ConcurrentHashMap<Channel, Backlog>();
+        dropped = new AtomicLong();
+        lowWaterMark = 0;
+        highWaterMark = 0;
+        policy = OverflowPolicy.BLOCK;
+        maxQueuedBytes = Long.MAX_VALUE;
+        timeoutNanos = 0;
+    }
+
+    void waterMarks(final int low, final int high) {
+        Preconditions.checkArgument(low > 0 && high >= low, "Water marks must be positive, with the low no higher than the high");
+        lowWaterMark = low;
+        highWaterMark = high;
+    }
+
+    void overflow(final OverflowPolicy policy, final long maxQueuedBytes, final long timeout, final TimeUnit timeoutUnits) {
+        Preconditions.checkNotNull(policy, "Policy cannot be null");
+        Preconditions.checkArgument(maxQueuedBytes >= 0, "Queue size cannot be negative");
+        Preconditions.checkArgument(timeout >= 0, "Timeout cannot be negative");
+        Preconditions.checkNotNull(timeoutUnits, "Timeout units cannot be null");
+        this.policy = policy;
+        this.maxQueuedBytes = maxQueuedBytes;
+        timeoutNanos = timeoutUnits.toNanos(timeout);
+    }
+
+    void overflow(final String topic, final OverflowPolicy policy) {
+        Preconditions.checkNotNull(topic, "Topic cannot be null");
+        if (policy != null)
+            topicPolicies.put(topic, policy);
+        else
+            topicPolicies.remove(topic);
+    }
+
+    /**
+     * @return the number of messages held back, over all channels
+     */
+    int queuedMessages() {
+        int rv = 0;
+        for (final Backlog backlog : backlogs.values()) {
+            backlog.lock.lock();
+            try {
+                rv += backlog.queue.size();
+            } finally {
+                backlog.lock.unlock();
+            }
+        }
+        return rv;
+    }
+
+    long queuedBytes() {
+        long rv = 0;
+        for (final Backlog backlog : backlogs.values()) {
+            backlog.lock.lock();
+            try {
+                rv += backlog.queuedBytes;
+            } finally {
+                backlog.lock.unlock();
+            }
+        }
+        return rv;
+    }
+
+    long droppedMessages() {
+        return dropped.get();
+    }
+
+    @Override
+    public void channelOpen(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        backlogs.put(e.getChannel(), new Backlog());
+        super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        final ChannelConfig config = e.getChannel().getConfig();
+        if (highWaterMark > 0 && config instanceof NioSocketChannelConfig) {
+            // Each setter insists on staying the right side of the other's current value, so the order matters
+            final NioSocketChannelConfig nio = (NioSocketChannelConfig) config;
+            if (highWaterMark >= nio.getWriteBufferLowWaterMark()) {
+                nio.setWriteBufferHighWaterMark(highWaterMark);
+                nio.setWriteBufferLowWaterMark(lowWaterMark);
+            } else {
+                nio.setWriteBufferLowWaterMark(lowWaterMark);
+                nio.setWriteBufferHighWaterMark(highWaterMark);
+            }
+        }
+        super.channelConnected(ctx, e);
+    }
+
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+        final Object o = e.getMessage();
+        final Channel channel = e.getChannel();
+        final Backlog backlog = backlogs.get(channel);
+        if (backlog == null || (!(o instanceof ApplicationMessage) && !(o instanceof BatchMessage))) {
+            // Either not held back, or the channel is closed and will fail the write itself
+            super.writeRequested(ctx, e);
+            return;
+        }
+        final int size = ((Message) o).estimatedBodySize();
+        // Decided under the lock but acted on after it, since in-VM the write runs the receiver's inline callbacks and they may well
+        // publish, on this client or another
+        final LinkedList<MessageEvent> shed = new LinkedList<MessageEvent>();
+        OverflowException cause = null;
+        boolean pass = false;
+        backlog.lock.lock();
+        try {
+            final LinkedList<MessageEvent> queue = backlog.queue;
+            if (backlog.idle() && channel.isWritable())
+                pass = true;
+            else
+                switch (policy(o)) {
+                case FAIL:
+                    cause = OverflowException.NOT_WRITABLE;
+                    break;
+                case DROP_NEWEST:
+                    if (!queue.isEmpty() && backlog.queuedBytes + size > maxQueuedBytes)
+                        cause = OverflowException.QUEUE_FULL;
+                    break;
+                case DROP_OLDEST:
+                    while (!queue.isEmpty() && backlog.queuedBytes + size > maxQueuedBytes)
+                        shed.add(backlog.dequeue());
+                    break;
+                case BLOCK:
+                    long remaining = timeoutNanos;
+                    while (cause == null && !queue.isEmpty() && backlog.queuedBytes + size > maxQueuedBytes && channel.isOpen())
+                        if (remaining <= 0)
+                            cause = OverflowException.TIMED_OUT;
+                        else
+                            remaining = backlog.space.awaitNanos(remaining);
+                    pass = cause == null && backlog.idle() && channel.isWritable();
+                    break;
+                }
+            if (cause == null && !pass)
+                if (!channel.isOpen())
+                    cause = OverflowException.CHANNEL_CLOSED;
+                else {
+                    queue.add(e);
+                    backlog.queuedBytes += size;
+                }
+        } finally {
+            backlog.lock.unlock();
+        }
+        for (final MessageEvent old : shed)
+            fail(old, OverflowException.DROPPED);
+        if (pass)
+            ctx.sendDownstream(e);
+        else if (cause != null)
+            fail(e, cause);
+    }
+
+    @Override
+    public void channelInterestChanged(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        final Backlog backlog = backlogs.get(e.getChannel());
+        if (backlog != null)
+            release(ctx, e.getChannel(), backlog);
+        super.channelInterestChanged(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        final Backlog backlog = backlogs.remove(e.getChannel());
+        if (backlog != null) {
+            final LinkedList<MessageEvent> closed = new LinkedList<MessageEvent>();
+            backlog.lock.lock();
+            try {
+                while (!backlog.queue.isEmpty())
+                    closed.add(backlog.dequeue());
+                backlog.space.signalAll();
+            } finally {
+                backlog.lock.unlock();
+            }
+            for (final MessageEvent queued : closed)
+                fail(queued, OverflowException.CHANNEL_CLOSED);
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    /*
+     * Sends what's held back for as long as the channel stays writable, one message at a time and none of them under the lock. Only
+     * one thread releases at once, and while it does new messages queue up behind the one it has in hand rather than overtaking it.
+     */
+    private void release(final ChannelHandlerContext ctx, final Channel channel, final Backlog backlog) {
+        backlog.lock.lock();
+        try {
+            if (backlog.draining)
+                return;
+            backlog.draining = true;
+        } finally {
+            backlog.lock.unlock();
+        }
+        MessageEvent next = null;
+        try {
+            while ((next = backlog.next(channel)) != null)
+                ctx.sendDownstream(next);
+        } finally {
+            if (next != null)
+                // Only when sending threw, otherwise next() has already stopped draining
+                backlog.stopDraining();
+        }
+    }
+
+    private OverflowPolicy policy(final Object message) {
+        if (!topicPolicies.isEmpty() && message instanceof ApplicationMessage) {
+            final OverflowPolicy rv = topicPolicies.get(((ApplicationMessage) message).topic);
+            if (rv != null)
+                return rv;
+        }
+        return policy;
+    }
+
+    private void fail(final MessageEvent e, final OverflowException cause) {
+        dropped.incrementAndGet();
+        logger.trace("Not publishing message on channel[{}]: {}", e.getChannel(), cause.getMessage());
+        e.getFuture().setFailure(cause);
+    }
+
+    /*
+     * The messages held back for one channel, guarded by its lock
+     */
+    private static final class Backlog {
+
+        private final LinkedList<MessageEvent> queue;
+        private final Lock                     lock;
+        private final Condition                space;
+        private long                           queuedBytes;
+        private boolean                        draining;
+
+        Backlog() {
+            queue = new LinkedList<MessageEvent>();
+            lock = new ReentrantLock();
+            space = lock.newCondition();
+            queuedBytes = 0;
+            draining = false;
+        }
+
+        /*
+         * Whether a new message may go straight out, with nothing queued or in the middle of being released ahead of it
+         */
+        boolean idle() {
+            return queue.isEmpty() && !draining;
+        }
+
+        /*
+         * The next message to release if the channel can take it, otherwise stops draining
+         */
+        MessageEvent next(final Channel channel) {
+            lock.lock();
+            try {
+                final MessageEvent rv = !queue.isEmpty() && channel.isWritable() ? dequeue() : null;
+                if (rv == null)
+                    draining = false;
+                space.signalAll();
+                return rv;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void stopDraining() {
+            lock.lock();
+            try {
+                draining = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        MessageEvent dequeue() {
+            final MessageEvent e = queue.removeFirst();
+            queuedBytes -= ((Message) e.getMessage()).estimatedBodySize();
+            return e;
+        }
+
+    }
+
+}
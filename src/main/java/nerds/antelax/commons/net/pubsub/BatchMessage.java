@@ -0,0 +1,221 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+
+package nerds.antelax.commons.net.pubsub;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+/*
+ * Many application messages, possibly on different topics, sharing a single frame and header: the TTL, source and server IDs of a
+ * batch are those of every message in it, and setting them on the batch sets them on its messages too. Its messages are
+ * numbered consecutively from the batch's sequence number, so each can be told from the others by a server that sees it again
+ * in another batch or on its own. The body is a count followed by each message's application body (topic then payload), prefixed
+ * with its length. In a batch flagged as compressed every topic is followed by a codec ID, zero for payloads sent as they are.
+ * 
+ * Batches are only ever written as such on channels with compact headers; elsewhere the encoder writes each message as a separate
+ * frame, though still in a single write.
+ */
+final class BatchMessage extends Message {
+
+    private static final Map<String, Integer> NO_TOPIC_IDS = Collections.emptyMap();
+
+    final List<ApplicationMessage>            messages;
+
+    BatchMessage(final List<ApplicationMessage> messages) {
+        super(Type.Batch);
+        Preconditions.checkNotNull(messages, "Message list cannot be null");
+        Preconditions.checkArgument(!messages.isEmpty(), "Batches cannot be empty");
+        this.messages = messages;
+        for (final ApplicationMessage am : messages)
+            copyHeaderTo(am);
+    }
+
+    BatchMessage(final ChannelBuffer body, final WireDictionary dictionary, final boolean compressed) throws MessageFormatException {
+        super(Type.Batch);
+        final ChannelBuffer in = body.duplicate();
+        final int count = in.readableBytes() >= 4 ? in.readInt() : -1;
+        if (count <= 0 || count > in.readableBytes() / 8)
+            throw new MessageFormatException("Invalid batch size[" + count + "] for body of length " + body.readableBytes());
+        messages = new ArrayList<ApplicationMessage>(count);
+        for (int pos = 0; pos < count; ++pos) {
+            final int length = in.readableBytes() >= 4 ? in.readInt() : -1;
+            if (length < 0 || length > in.readableBytes())
+                throw new MessageFormatException("Invalid length[" + length + "] for message " + pos + " of batch");
+            messages.add(new ApplicationMessage(in.readSlice(length), dictionary, compressed));
+        }
+    }
+
+    /*
+     * A batch of messages numbered consecutively, sharing the rest of their header too, which takes its header from the first
+     * without touching any of theirs
+     */
+    private BatchMessage(final List<ApplicationMessage> messages, final ApplicationMessage first) {
+        super(Type.Batch);
+        this.messages = messages;
+        super.ttl(first.ttl());
+        super.sourceID(first.sourceID());
+        super.serverID(first.serverID());
+        super.sequence(first.sequence());
+    }
+
+    /**
+     * @return a copy of this batch, and of each of its messages, with headers of their own, sharing their payloads
+     * @see ApplicationMessage#withOwnHeader()
+     */
+    BatchMessage withOwnHeaders() {
+        final List<ApplicationMessage> copies = new ArrayList<ApplicationMessage>(messages.size());
+        for (final ApplicationMessage am : messages)
+            copies.add(am.withOwnHeader());
+        return new BatchMessage(copies, copies.get(0));
+    }
+
+    @Override
+    void ttl(final short ttl) {
+        super.ttl(ttl);
+        for (final ApplicationMessage am : messages)
+            am.ttl(ttl);
+    }
+
+    @Override
+    void sourceID(final UUID sourceID) {
+        super.sourceID(sourceID);
+        for (final ApplicationMessage am : messages)
+            am.sourceID(sourceID);
+    }
+
+    @Override
+    void serverID(final UUID serverID) {
+        super.serverID(serverID);
+        for (final ApplicationMessage am : messages)
+            am.serverID(serverID);
+    }
+
+    /**
+     * Numbers the messages from <code>sequence</code> on, unless not numbering them at all.
+     */
+    @Override
+    void sequence(final long sequence) {
+        super.sequence(sequence);
+        for (int pos = 0; pos < messages.size(); ++pos)
+            messages.get(pos).sequence(sequence != NO_SEQUENCE ? sequence + pos : NO_SEQUENCE);
+    }
+
+    @Override
+    boolean compressed() {
+        for (final ApplicationMessage am : messages)
+            if (am.compressed())
+                return true;
+        return false;
+    }
+
+    @Override
+    int estimatedBodySize() {
+        int rv = 4;
+        for (final ApplicationMessage am : messages)
+            rv += 4 + am.estimatedBodySize();
+        return rv;
+    }
+
+    @Override
+    ChannelBuffer body() {
+        return body(NO_TOPIC_IDS, NO_TOPIC_IDS);
+    }
+
+    /**
+     * Unlike single messages, batched payloads are copied into one buffer: for the many tiny messages batching is meant for, that
+     * is cheaper than a composite buffer with two components per message.
+     * 
+     * @param topicIDs
+     *            topic IDs defined on the channel being written to
+     * @param pending
+     *            topic IDs being defined in the same write as this batch; topics in neither map are written inline
+     */
+    ChannelBuffer body(final Map<String, Integer> topicIDs, final Map<String, Integer> pending) {
+        int estimate = 4;
+        for (final ApplicationMessage am : messages)
+            estimate += 8 + am.payload().readableBytes();
+        final ChannelBuffer body = ChannelBuffers.dynamicBuffer(estimate);
+        final boolean compressed = compressed();
+        body.writeInt(messages.size());
+        for (final ApplicationMessage am : messages) {
+            final int lengthIndex = body.writerIndex();
+            body.writeInt(0);
+            Integer id = topicIDs.get(am.topic);
+            if (id == null)
+                id = pending.get(am.topic);
+            am.marshallBody(body, id != null ? id : ApplicationMessage.INLINE_TOPIC, compressed);
+            body.setInt(lengthIndex, body.writerIndex() - lengthIndex - 4);
+        }
+        return body;
+    }
+
+    /**
+     * Encodes this batch with a compact header, see {@link #body(Map, Map)}.
+     */
+    ChannelBuffer encodeCompact(final Map<String, Integer> topicIDs, final Map<String, Integer> pending, final int sourceRef,
+            final int serverRef) {
+        final ChannelBuffer body = body(topicIDs, pending);
+        final ChannelBuffer header = ChannelBuffers.buffer(MAX_COMPACT_HEADER_SIZE);
+        marshallCompactHeader(header, body.readableBytes(), sourceRef, serverRef);
+        return ChannelBuffers.wrappedBuffer(header, body);
+    }
+
+    /**
+     * @return each message in this batch as a version 1 frame, all in the one buffer
+     */
+    ChannelBuffer encodeUnbatched() {
+        final ChannelBuffer[] frames = new ChannelBuffer[messages.size()];
+        for (int pos = 0; pos < frames.length; ++pos)
+            frames[pos] = messages.get(pos).encode();
+        return ChannelBuffers.wrappedBuffer(frames);
+    }
+
+    /**
+     * @return <code>messages</code> in the fewest frames that keep each message's own header: a batch for each run of messages
+     *         numbered consecutively from the same source, and a message on its own for a run of one
+     */
+    static List<Message> runs(final List<ApplicationMessage> messages) {
+        final List<Message> rv = new ArrayList<Message>();
+        int start = 0;
+        for (int pos = 1; pos <= messages.size(); ++pos)
+            if (pos == messages.size() || !follows(messages.get(pos - 1), messages.get(pos))) {
+                rv.add(pos - start == 1 ? messages.get(start) : new BatchMessage(new ArrayList<ApplicationMessage>(messages.subList(
+                        start, pos)), messages.get(start)));
+                start = pos;
+            }
+        return rv;
+    }
+
+    /* True if next can share previous's batch header, i.e. it would be numbered after previous in that batch */
+    private static boolean follows(final ApplicationMessage previous, final ApplicationMessage next) {
+        return next.ttl() == previous.ttl() && Objects.equal(next.sourceID(), previous.sourceID())
+                && Objects.equal(next.serverID(), previous.serverID())
+                && (next.sequence() == NO_SEQUENCE ? previous.sequence() == NO_SEQUENCE : previous.sequence() != NO_SEQUENCE
+                        && next.sequence() == previous.sequence() + 1);
+    }
+
+}
@@ -0,0 +1,210 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Publishes through a {@link PubSubClient}, gathering messages published in quick succession into batches that go out as a single
+ * frame and write. The linger adapts to the load: a message published while nothing else is being written goes out straight away,
+ * otherwise it waits for the write in progress to complete, for the batch to fill up or for the maximum linger time, whichever
+ * comes first. Each message still gets its own future, completed once the batch it went out in has been written.
+ */
+public final class BatchingPublisher {
+
+    private static final Logger                 logger                = LoggerFactory.getLogger(BatchingPublisher.class);
+
+    public static final int                     DEFAULT_MAX_MESSAGES  = 256;
+    public static final int                     DEFAULT_MAX_BYTES     = 64 * 1024;
+    public static final int                     DEFAULT_LINGER_MILLIS = 5;
+
+    private final PubSubClient                  client;
+    private final int                           maxMessages;
+    private final int                           maxBytes;
+    private final long                          lingerNanos;
+    private final Timer                         timer;
+    private final TimerTask                     lingerExpired;
+    private List<ApplicationMessage>            messages;
+    private List<SettableFuture<Boolean>>       futures;
+    private int                                 bytes;
+    private final AtomicInteger                 writesInProgress;
+    private final Lock                          lock;
+    private Timeout                             linger;
+
+    public BatchingPublisher(final PubSubClient client) {
+        this(client, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES, DEFAULT_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxMessages
+     *            the most messages to send in one batch
+     * @param maxBytes
+     *            the number of payload bytes at which a batch is sent without waiting any longer
+     * @param maxLinger
+     *            the longest a message waits for others to join its batch, to within the tick of the client's transport timer
+     *            (see {@link TransportResources#TIMER_TICK_MILLIS})
+     */
+    public BatchingPublisher(final PubSubClient client, final int maxMessages, final int maxBytes, final long maxLinger,
+            final TimeUnit lingerUnits) {
+        Preconditions.checkNotNull(client, "Client cannot be null");
+        Preconditions.checkArgument(maxMessages > 0, "Batches must allow at least one message");
+        Preconditions.checkArgument(maxBytes > 0, "Batches must allow at least one byte");
+        Preconditions.checkArgument(maxLinger >= 0, "Linger time cannot be negative");
+        Preconditions.checkNotNull(lingerUnits, "Linger time units cannot be null");
+        this.client = client;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        lingerNanos = lingerUnits.toNanos(maxLinger);
+        timer = client.resources().timer();
+        lingerExpired = new TimerTask() {
+
+            @Override
+            public void run(final Timeout timeout) {
+                lock.lock();
+                try {
+                    if (linger == timeout) {
+                        linger = null;
+                        send();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+        };
+        messages = new ArrayList<ApplicationMessage>();
+        futures = new ArrayList<SettableFuture<Boolean>>();
+        bytes = 0;
+        writesInProgress = new AtomicInteger();
+        lock = new ReentrantLock();
+        linger = null;
+    }
+
+    public ListenableFuture<Boolean> publish(final byte[] message, final String topic) {
+        return publish(ByteBuffer.wrap(message), topic);
+    }
+
+    public ListenableFuture<Boolean> publish(final byte[] message, final int offset, final int length, final String topic) {
+        return publish(ByteBuffer.wrap(message, offset, length), topic);
+    }
+
+    public ListenableFuture<Boolean> publish(final ByteBuffer message, final String topic) {
+        Preconditions.checkNotNull(message, "Message can be empty but not null");
+        Preconditions.checkNotNull(topic, "Topic can be empty but not null");
+        final ApplicationMessage am = new ApplicationMessage(message, topic);
+        final SettableFuture<Boolean> future = SettableFuture.create();
+        lock.lock();
+        try {
+            messages.add(am);
+            futures.add(future);
+            bytes += am.payload().readableBytes();
+            if (writesInProgress.get() == 0 || messages.size() >= maxMessages || bytes >= maxBytes)
+                send();
+            else if (linger == null)
+                linger = timer.newTimeout(lingerExpired, lingerNanos, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+        return future;
+    }
+
+    /**
+     * Sends whatever messages are waiting without further delay.
+     */
+    public void flush() {
+        lock.lock();
+        try {
+            send();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes any waiting messages, for use before stopping the client.
+     */
+    public void stop() {
+        flush();
+    }
+
+    // Must be called with the lock held, so that batches are written in the order their messages were published
+    private void send() {
+        if (linger != null) {
+            linger.cancel();
+            linger = null;
+        }
+        if (messages.isEmpty())
+            return;
+        final List<ApplicationMessage> batch = messages;
+        final List<SettableFuture<Boolean>> completions = futures;
+        messages = new ArrayList<ApplicationMessage>();
+        futures = new ArrayList<SettableFuture<Boolean>>();
+        bytes = 0;
+        final Channel channel = client.channel();
+        if (channel == null) {
+            logger.trace("Not currently connected to a server, dropping batch of {} messages", batch.size());
+            for (final SettableFuture<Boolean> future : completions)
+                future.set(Boolean.FALSE);
+            return;
+        }
+        logger.trace("Publishing batch of {} messages", batch.size());
+        writesInProgress.incrementAndGet();
+        channel.write(batch.size() == 1 ? batch.get(0) : new BatchMessage(batch)).addListener(new ChannelFutureListener() {
+
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                for (final SettableFuture<Boolean> completion : completions)
+                    completion.set(future.isSuccess());
+                written();
+            }
+
+        });
+    }
+
+    /*
+     * Called back on the thread completing a write, which must never wait for the lock: a publisher holding it may itself be waiting
+     * for writes to complete (see OverflowPolicy.BLOCK). If the lock is busy, whoever holds it sends or sets the linger timer.
+     */
+    private void written() {
+        if (writesInProgress.decrementAndGet() == 0 && lock.tryLock())
+            try {
+                send();
+            } finally {
+                lock.unlock();
+            }
+    }
+
+}
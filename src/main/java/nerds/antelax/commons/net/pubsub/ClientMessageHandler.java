@@ -17,12 +17,24 @@
 
 package nerds.antelax.commons.net.pubsub;
 
+import static nerds.antelax.commons.base.Conversions.asArray;
+
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -36,6 +48,7 @@ import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.util.Timer;
 import org.jboss.netty.util.internal.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,37 +63,132 @@ final class ClientMessageHandler extends SimpleChannelHandler {
 
     private final AtomicReference<Channel>                              activeChannel;
     private final Map<String, Collection<PubSubClient.MessageCallback>> subscribers;
+    private final TopicMatcher<PubSubClient.MessageCallback>            patterns;
     private final Lock                                                  lock;
     private final ExecutorService                                       callbackService;
+    private volatile Dispatcher                                         dispatcher;
+    private volatile ConflatingDispatcher                               conflating;
+    private final InlineDelivery                                        inline;
+    private final ConcurrentMap<String, ConcurrentMap<UUID, Long>>      positions;
+    private volatile boolean                                            resume;
+    private final Set<String>                                           resumable;
+    private final Map<String, TopicLogs.Start>                          starts;
 
-    ClientMessageHandler(final ExecutorService callbackService) {
+    ClientMessageHandler(final ExecutorService callbackService, final Timer timer) {
         Preconditions.checkNotNull(callbackService, "ExecutorService cannot be null");
         activeChannel = new AtomicReference<Channel>(null);
         this.callbackService = callbackService;
         subscribers = new ConcurrentHashMap<String, Collection<PubSubClient.MessageCallback>>();
+        patterns = new TopicMatcher<PubSubClient.MessageCallback>(new PubSubClient.MessageCallback[0]);
+        dispatcher = new ExecutorDispatcher(callbackService);
+        conflating = null;
+        inline = new InlineDelivery(timer);
         lock = new ReentrantLock();
+        positions = new ConcurrentHashMap<String, ConcurrentMap<UUID, Long>>();
+        resume = false;
+        resumable = new HashSet<String>();
+        starts = new HashMap<String, TopicLogs.Start>();
+    }
+
+    /**
+     * @param enabled
+     *            whether to track the highest sequence number seen from each source on each topic subscribed to by name, and send
+     *            them in a resume hint ahead of re-subscribing to the topics subscribed on the connection before (see
+     *            {@link ReplayRing})
+     */
+    void resumeOnReconnect(final boolean enabled) {
+        resume = enabled;
+        if (!enabled)
+            positions.clear();
+    }
+
+    void inlineBudget(final long budget, final TimeUnit budgetUnits, final boolean demote) {
+        inline.budget(budget, budgetUnits, demote);
+    }
+
+    void stop() {
+        inline.stop();
+        dispatcher.stop();
+    }
+
+    /**
+     * @param count
+     *            the number of ordered dispatch lanes, or 0 to deliver each message to each callback as a separate task
+     */
+    void lanes(final int count) {
+        Preconditions.checkArgument(count >= 0, "Lane count cannot be negative");
+        dispatcher(count > 0 ? new DispatchLanes(callbackService, count) : new ExecutorDispatcher(callbackService));
+    }
+
+    void ring(final int capacity, final int consumers, final WaitStrategy strategy) {
+        dispatcher(new RingDispatcher(capacity, consumers, strategy));
+    }
+
+    /**
+     * @param topics
+     *            the topics to deliver only the latest message on, any of which may be a pattern, or none to conflate nothing
+     */
+    void conflate(final String... topics) {
+        conflating = topics.length > 0 ? new ConflatingDispatcher(callbackService, topics) : null;
+    }
+
+    long conflatedMessages() {
+        final ConflatingDispatcher conflating = this.conflating;
+        return conflating != null ? conflating.conflatedMessages() : 0;
+    }
+
+    private synchronized void dispatcher(final Dispatcher dispatcher) {
+        final Dispatcher previous = this.dispatcher;
+        this.dispatcher = dispatcher;
+        previous.stop();
     }
 
-    void subscribe(final String topic, final PubSubClient.MessageCallback... callbacks) {
+    /**
+     * @param inline
+     *            whether to run the callbacks on the I/O thread, see {@link InlineDelivery}
+     */
+    void subscribe(final String topic, final boolean inline, final PubSubClient.MessageCallback... callbacks) {
+        subscribe(topic, inline, null, callbacks);
+    }
+
+    /**
+     * @param start
+     *            where in the topic's log on the server to start from, or null to start from now; only used if the topic isn't
+     *            already subscribed to, and only on the first connection it's subscribed on (see {@link TopicLogs})
+     */
+    void subscribe(final String topic, final boolean inline, final TopicLogs.Start start,
+            final PubSubClient.MessageCallback... callbacks) {
         logger.trace("Subscribing {} callbacks to topic[{}]", callbacks.length, topic);
         lock.lock();
         try {
             final Collection<PubSubClient.MessageCallback> group;
-            if (subscribers.containsKey(topic)) {
+            final boolean created = !subscribers.containsKey(topic);
+            if (!created) {
                 group = subscribers.get(topic);
                 logger.trace("Found {} existing subscribers for topic[{}]: ", group.size(), topic);
             } else {
                 logger.trace("Creating new subscriber group for topic[{}]", topic);
                 group = new CopyOnWriteArrayList<PubSubClient.MessageCallback>();
                 subscribers.put(topic, group);
-                final Channel channel = activeChannel.get();
-                if (channel != null) {
-                    logger.trace("Writing new subscriber group for topic[{}]", topic);
-                    channel.write(new SubscriptionMessage(true, topic));
-                }
             }
-            for (final MessageCallback callback : callbacks)
-                group.add(callback);
+            final boolean pattern = TopicMatcher.isPattern(topic);
+            for (final MessageCallback callback : callbacks) {
+                if (group.add(callback) && pattern)
+                    patterns.add(topic, callback);
+                if (inline)
+                    this.inline.add(callback);
+            }
+            // Only once the callbacks are in place: in-VM, what the server sends straight back (the latest messages, a replay or a
+            // snapshot) arrives before the write returns
+            final Channel channel = created ? activeChannel.get() : null;
+            if (channel != null) {
+                logger.trace("Writing new subscriber group for topic[{}]", topic);
+                if (start != null)
+                    channel.write(TopicLogs.startHint(Collections.singletonMap(topic, start)));
+                channel.write(new SubscriptionMessage(true, topic));
+                resumable.add(topic);
+            } else if (created && start != null)
+                starts.put(topic, start);
         } finally {
             lock.unlock();
         }
@@ -92,10 +200,19 @@ final class ClientMessageHandler extends SimpleChannelHandler {
             if (!subscribers.containsKey(topic))
                 return;
             final Collection<PubSubClient.MessageCallback> group = subscribers.get(topic);
+            final boolean pattern = TopicMatcher.isPattern(topic);
             for (final MessageCallback callback : callbacks)
-                group.remove(callback);
+                if (group.remove(callback)) {
+                    if (pattern && !group.contains(callback))
+                        patterns.remove(topic, callback);
+                    if (inline.contains(callback) && !subscribed(callback))
+                        inline.remove(callback);
+                }
             if (group.isEmpty()) {
                 subscribers.remove(topic);
+                positions.remove(topic);
+                resumable.remove(topic);
+                starts.remove(topic);
                 final Channel channel = activeChannel.get();
                 if (channel != null) {
                     channel.write(new SubscriptionMessage(false, topic));
@@ -106,15 +223,84 @@ final class ClientMessageHandler extends SimpleChannelHandler {
         }
     }
 
+    private boolean subscribed(final MessageCallback callback) {
+        for (final Collection<PubSubClient.MessageCallback> group : subscribers.values())
+            if (group.contains(callback))
+                return true;
+        return false;
+    }
+
+    /**
+     * Subscribes to and unsubscribes from topics without callbacks, as a server does on its peers for its own clients; each change
+     * is written as a single message. Topics with callbacks are left subscribed.
+     */
+    void interest(final Collection<String> subscribe, final Collection<String> unsubscribe) {
+        lock.lock();
+        try {
+            final List<String> added = new ArrayList<String>(subscribe.size());
+            for (final String topic : subscribe)
+                if (!subscribers.containsKey(topic)) {
+                    subscribers.put(topic, new CopyOnWriteArrayList<PubSubClient.MessageCallback>());
+                    added.add(topic);
+                }
+            final List<String> removed = new ArrayList<String>(unsubscribe.size());
+            for (final String topic : unsubscribe) {
+                final Collection<PubSubClient.MessageCallback> group = subscribers.get(topic);
+                if (group != null && group.isEmpty()) {
+                    subscribers.remove(topic);
+                    removed.add(topic);
+                }
+            }
+            final Channel channel = activeChannel.get();
+            logger.trace("Subscribing to topics {} and un-subscribing from {} on channel[{}]", asArray(added, removed, channel));
+            resumable.removeAll(removed);
+            if (channel != null) {
+                resumable.addAll(added);
+                if (!added.isEmpty())
+                    channel.write(new SubscriptionMessage(true, added.toArray(new String[added.size()])));
+                if (!removed.isEmpty())
+                    channel.write(new SubscriptionMessage(false, removed.toArray(new String[removed.size()])));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
         activeChannel.set(e.getChannel());
         final ArrayList<String> al = new ArrayList<String>();
-        for (final String topic : subscribers.keySet())
-            al.add(topic);
+        final Map<String, Map<UUID, Long>> seen = new HashMap<String, Map<UUID, Long>>();
+        lock.lock();
+        try {
+            al.addAll(subscribers.keySet());
+            // Only topics subscribed on the connection before have a gap to fill: on the first connection, or for a topic
+            // subscribed since, whatever the server kept is from before the subscription
+            if (resume)
+                for (final String topic : al)
+                    if (resumable.contains(topic) && !TopicMatcher.isPattern(topic)) {
+                        final Map<UUID, Long> sources = positions.get(topic);
+                        seen.put(topic, sources != null ? sources : Collections.<UUID, Long> emptyMap());
+                    }
+            resumable.clear();
+            resumable.addAll(al);
+        } finally {
+            lock.unlock();
+        }
         if (!al.isEmpty()) {
             final String[] topics = new String[al.size()];
             al.toArray(topics);
+            if (!seen.isEmpty())
+                e.getChannel().write(ReplayRing.resumeHint(seen));
+            lock.lock();
+            try {
+                if (!starts.isEmpty()) {
+                    e.getChannel().write(TopicLogs.startHint(starts));
+                    starts.clear();
+                }
+            } finally {
+                lock.unlock();
+            }
             e.getChannel().write(new SubscriptionMessage(true, topics));
         }
         logger.trace("Channel connected and active channel set; subscribed to topics {}", al);
@@ -136,6 +322,10 @@ final class ClientMessageHandler extends SimpleChannelHandler {
         if (o instanceof ApplicationMessage) {
             logger.trace("Received application message ({})- routing to handleApplicationMessage(...)", o);
             handleApplicationMessage(ctx, (ApplicationMessage) o);
+        } else if (o instanceof BatchMessage) {
+            logger.trace("Received batch message ({}) - routing each to handleApplicationMessage(...)", o);
+            for (final ApplicationMessage msg : ((BatchMessage) o).messages)
+                handleApplicationMessage(ctx, msg);
         } else
             super.messageReceived(ctx, e);
     }
@@ -149,35 +339,126 @@ final class ClientMessageHandler extends SimpleChannelHandler {
     };
 
     private void handleApplicationMessage(final ChannelHandlerContext ctx, final ApplicationMessage msg) {
-        final Collection<PubSubClient.MessageCallback> callbacks = subscribers.get(msg.topic);
+        if (resume && msg.sequence() != Message.NO_SEQUENCE && subscribers.containsKey(msg.topic))
+            seen(msg);
+        final Collection<PubSubClient.MessageCallback> callbacks = msg.key != null ? keyed(callbacks(msg.topic), msg.key)
+                : callbacks(msg.topic);
         if (callbacks != null && !callbacks.isEmpty()) {
-            final ByteBuffer appMsg = msg.applicationBody();
-            logger.trace("Incoming application message {} bytes long being asynchronously sent to {} application callbacks",
-                    appMsg.remaining(), callbacks.size());
-            for (final PubSubClient.MessageCallback callback : callbacks)
-                callbackService.submit(new CallbackInvoker(callback, appMsg.asReadOnlyBuffer()));
+            final ByteBuffer appMsg;
+            try {
+                appMsg = msg.applicationBody();
+            } catch (final MessageFormatException mfe) {
+                logger.warn("Dropping message on topic[" + msg.topic + "] that could not be decompressed", mfe);
+                return;
+            }
+            logger.trace("Incoming application message {} bytes long being sent to {} application callbacks", appMsg.remaining(),
+                    callbacks.size());
+            final ConflatingDispatcher conflating = this.conflating;
+            final Dispatcher dispatcher = conflating != null && conflating.conflates(msg.topic) ? conflating : this.dispatcher;
+            // Conflating goes by key as well as topic
+            final String topic = dispatcher == conflating ? msg.conflationKey() : msg.topic;
+            if (inline.isEmpty())
+                dispatcher.dispatch(topic, callbacks, appMsg);
+            else {
+                List<PubSubClient.MessageCallback> queued = null;
+                for (final PubSubClient.MessageCallback callback : callbacks) {
+                    // Keyed callbacks come wrapped, but were subscribed (and so are watched and demoted) as they are
+                    final PubSubClient.MessageCallback subscribed = callback instanceof KeyedDelivery
+                            ? ((KeyedDelivery) callback).callback : callback;
+                    if (inline.contains(subscribed))
+                        inline.deliver(subscribed, callback, appMsg.asReadOnlyBuffer());
+                    else {
+                        if (queued == null)
+                            queued = new ArrayList<PubSubClient.MessageCallback>(callbacks.size());
+                        queued.add(callback);
+                    }
+                }
+                if (queued != null)
+                    dispatcher.dispatch(topic, queued, appMsg);
+            }
         }
     }
 
-    private static final class CallbackInvoker implements Runnable {
+    /*
+     * The callbacks with any KeyedMessageCallbacks among them wrapped so as to be given the key
+     */
+    private static Collection<PubSubClient.MessageCallback> keyed(final Collection<PubSubClient.MessageCallback> callbacks,
+            final String key) {
+        if (callbacks == null)
+            return null;
+        List<PubSubClient.MessageCallback> rv = null;
+        int pos = 0;
+        for (final PubSubClient.MessageCallback callback : callbacks) {
+            if (callback instanceof PubSubClient.KeyedMessageCallback) {
+                if (rv == null)
+                    rv = new ArrayList<PubSubClient.MessageCallback>(callbacks);
+                rv.set(pos, new KeyedDelivery((PubSubClient.KeyedMessageCallback) callback, key));
+            }
+            ++pos;
+        }
+        return rv != null ? rv : callbacks;
+    }
 
-        private final MessageCallback callback;
-        private final ByteBuffer      message;
+    /*
+     * In-VM publishing threads deliver to us themselves, several at once, so marks are only ever raised: an older message coming in
+     * after a newer one from the same source leaves the newer one's mark
+     */
+    private void seen(final ApplicationMessage msg) {
+        ConcurrentMap<UUID, Long> sources = positions.get(msg.topic);
+        if (sources == null) {
+            final ConcurrentMap<UUID, Long> created = new ConcurrentHashMap<UUID, Long>();
+            sources = positions.putIfAbsent(msg.topic, created);
+            if (sources == null)
+                sources = created;
+        }
+        final Long sequence = msg.sequence();
+        for (;;) {
+            final Long mark = sources.putIfAbsent(msg.sourceID(), sequence);
+            if (mark == null || mark >= sequence || sources.replace(msg.sourceID(), mark, sequence))
+                return;
+        }
+    }
 
-        private CallbackInvoker(final PubSubClient.MessageCallback callback, final ByteBuffer message) {
+    /*
+     * Callbacks subscribed to the topic itself and to patterns matching it, each once
+     */
+    private Collection<PubSubClient.MessageCallback> callbacks(final String topic) {
+        final Collection<PubSubClient.MessageCallback> exact = subscribers.get(topic);
+        if (patterns.isEmpty())
+            return exact;
+        final PubSubClient.MessageCallback[] matched = patterns.match(topic);
+        if (matched.length == 0)
+            return exact;
+        else if (exact == null || exact.isEmpty())
+            return Arrays.asList(matched);
+        else {
+            final Collection<PubSubClient.MessageCallback> union = new LinkedHashSet<PubSubClient.MessageCallback>(exact);
+            union.addAll(Arrays.asList(matched));
+            return union;
+        }
+    }
+
+    /*
+     * Hands the key of a keyed message to a KeyedMessageCallback, through dispatchers that only deal in payloads
+     */
+    private static final class KeyedDelivery implements PubSubClient.MessageCallback {
+
+        private final PubSubClient.KeyedMessageCallback callback;
+        private final String                            key;
+
+        private KeyedDelivery(final PubSubClient.KeyedMessageCallback callback, final String key) {
             this.callback = callback;
-            this.message = message;
+            this.key = key;
         }
 
         @Override
-        public void run() {
-            try {
-                logger.trace("Invoking callback[{}] with message of length {}", callback, message.remaining());
-                callback.onMessage(message);
-                logger.trace("Callback[{}] finished processing the message", callback);
-            } catch (final Exception e) {
-                logger.warn("Caught exception during message callback[" + callback + "]", e);
-            }
+        public void onMessage(final ByteBuffer message) throws Exception {
+            callback.onMessage(key, message);
+        }
+
+        @Override
+        public String toString() {
+            return callback.toString();
         }
 
     }
@@ -0,0 +1,63 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses application message bodies on the wire. Codecs are agreed per connection from those registered with
+ * {@link CompressionCodecs} at both ends, and servers forward compressed bodies as they are, so every client and server that may
+ * see a topic needs an identically configured codec (including any dictionary) under the same ID.
+ */
+public interface CompressionCodec {
+
+    /**
+     * The most a message may grow by per compressed byte, which is as much as deflate can manage: a compressed message claiming to
+     * inflate to more is rejected before anything is allocated for it.
+     */
+    int MAX_EXPANSION = 1032;
+
+    /**
+     * @return a number from 1 to 255 identifying this codec on the wire
+     */
+    int id();
+
+    /**
+     * @return a name for the codec, which must also match at both ends of a connection for it to be used
+     */
+    String name();
+
+    /**
+     * @return the smallest message worth compressing, in bytes
+     */
+    int threshold();
+
+    /**
+     * @return the compressed form of <code>message</code>, which is sent as is only if smaller than the original
+     */
+    ByteBuffer compress(final String topic, final ByteBuffer message);
+
+    /**
+     * @param length
+     *            the length of the original message, at most {@link #MAX_EXPANSION} times that of <code>compressed</code>
+     * @throws IOException
+     *             if <code>compressed</code> cannot be decompressed into <code>length</code> bytes
+     */
+    ByteBuffer decompress(final String topic, final ByteBuffer compressed, final int length) throws IOException;
+
+}
@@ -0,0 +1,69 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The {@link CompressionCodec}s offered on new connections, in order of preference. A {@link DeflateCodec} with default settings
+ * is registered to begin with, followed by any codecs found by {@link ServiceLoader}; registering a codec with the ID of an
+ * existing one replaces it, e.g. to add dictionaries to the built-in deflate codec.
+ */
+public final class CompressionCodecs {
+
+    private static volatile ImmutableMap<Integer, CompressionCodec> codecs = ImmutableMap.of();
+
+    static {
+        register(new DeflateCodec());
+        for (final CompressionCodec codec : ServiceLoader.load(CompressionCodec.class))
+            register(codec);
+    }
+
+    private CompressionCodecs() {
+        Preconditions.checkArgument(false, "Static methods only");
+    }
+
+    public static synchronized void register(final CompressionCodec codec) {
+        Preconditions.checkNotNull(codec, "Codec cannot be null");
+        Preconditions.checkArgument(codec.id() > 0 && codec.id() <= 0xFF, "Codec IDs must be from 1 to 255");
+        Preconditions.checkNotNull(codec.name(), "Codec name cannot be null");
+        final Map<Integer, CompressionCodec> updated = new LinkedHashMap<Integer, CompressionCodec>(codecs);
+        updated.put(codec.id(), codec);
+        codecs = ImmutableMap.copyOf(updated);
+    }
+
+    public static synchronized void unregister(final int id) {
+        final Map<Integer, CompressionCodec> updated = new LinkedHashMap<Integer, CompressionCodec>(codecs);
+        updated.remove(id);
+        codecs = ImmutableMap.copyOf(updated);
+    }
+
+    static CompressionCodec byID(final int id) {
+        return codecs.get(id);
+    }
+
+    static Collection<CompressionCodec> all() {
+        return codecs.values();
+    }
+
+}
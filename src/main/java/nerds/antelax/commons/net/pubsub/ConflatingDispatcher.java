@@ -0,0 +1,190 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import nerds.antelax.commons.net.pubsub.PubSubClient.MessageCallback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Delivers only the latest message on each of a set of topics: a message not yet delivered when a newer one arrives on its topic is
+ * replaced by it, so however far behind the callbacks are, each topic has at most one message waiting. Each topic is drained by at
+ * most one task on the executor at a time, so messages on a topic are still delivered in order. A topic's slot goes once drained,
+ * so that conflating by key as well as topic only keeps slots for the keys with a message waiting or being delivered.
+ */
+final class ConflatingDispatcher implements Dispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConflatingDispatcher.class);
+
+    private static final class Delivery {
+
+        private final MessageCallback[] callbacks;
+        private final ByteBuffer        message;
+
+        private Delivery(final MessageCallback[] callbacks, final ByteBuffer message) {
+            this.callbacks = callbacks;
+            this.message = message;
+        }
+
+    }
+
+    // Left in a slot once drained and gone from the map, so that nothing more is set on it
+    private static final Delivery GONE = new Delivery(new MessageCallback[0], null);
+
+    private final class Slot implements Runnable {
+
+        private final String                    topic;
+        private final AtomicReference<Delivery> pending   = new AtomicReference<Delivery>();
+        private final AtomicBoolean             scheduled = new AtomicBoolean(false);
+
+        private Slot(final String topic) {
+            this.topic = topic;
+        }
+
+        /*
+         * False if the slot has gone, in which case a new one is needed
+         */
+        private boolean set(final Delivery delivery) {
+            for (;;) {
+                final Delivery previous = pending.get();
+                if (previous == GONE)
+                    return false;
+                else if (pending.compareAndSet(previous, delivery)) {
+                    if (previous != null)
+                        conflated.incrementAndGet();
+                    schedule();
+                    return true;
+                }
+            }
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true))
+                try {
+                    executor.execute(this);
+                } catch (final RejectedExecutionException ree) {
+                    scheduled.set(false);
+                    logger.warn("Callback executor rejected a conflated delivery, latest message left undelivered");
+                }
+        }
+
+        @Override
+        public void run() {
+            boolean done = false;
+            try {
+                final Delivery delivery = pending.getAndSet(null);
+                if (delivery != null)
+                    for (final MessageCallback callback : delivery.callbacks)
+                        try {
+                            callback.onMessage(delivery.message.asReadOnlyBuffer());
+                        } catch (final Exception e) {
+                            logger.warn("Caught exception during message callback[" + callback + "]", e);
+                        }
+                done = true;
+            } finally {
+                if (!done)
+                    scheduled.set(false);
+            }
+            // Still scheduled, so no other task is delivering on the topic: once gone, the next message gets a new slot
+            if (pending.compareAndSet(null, GONE))
+                slots.remove(topic, this);
+            else {
+                scheduled.set(false);
+                if (pending.get() != null)
+                    schedule();
+            }
+        }
+
+    }
+
+    private final Executor                    executor;
+    private final TopicMatcher<String>        topics;
+    private final ConcurrentMap<String, Slot> slots;
+    private final AtomicLong                  conflated;
+
+    /**
+     * @param topics
+     *            the topics to conflate, any of which may be a pattern
+     */
+    ConflatingDispatcher(final Executor executor, final String... topics) {
+        Preconditions.checkNotNull(executor, "Executor cannot be null");
+        this.executor = executor;
+        this.topics = new TopicMatcher<String>(new String[0]);
+        for (final String topic : topics) {
+            Preconditions.checkArgument(TopicMatcher.isValid(topic), "Invalid conflated topic[%s]", topic);
+            this.topics.add(topic, topic);
+        }
+        slots = new ConcurrentHashMap<String, Slot>();
+        conflated = new AtomicLong(0);
+    }
+
+    boolean conflates(final String topic) {
+        return topics.match(topic).length > 0;
+    }
+
+    /**
+     * @return the number of messages replaced by a newer one before being delivered
+     */
+    long conflatedMessages() {
+        return conflated.get();
+    }
+
+    @Override
+    public void dispatch(final String topic, final Collection<MessageCallback> callbacks, final ByteBuffer message) {
+        final Delivery delivery = new Delivery(callbacks.toArray(new MessageCallback[callbacks.size()]), message);
+        for (;;) {
+            Slot slot = slots.get(topic);
+            if (slot == null) {
+                final Slot created = new Slot(topic);
+                slot = slots.putIfAbsent(topic, created);
+                if (slot == null)
+                    slot = created;
+            }
+            if (slot.set(delivery))
+                return;
+            slots.remove(topic, slot);
+        }
+    }
+
+    /**
+     * @return the number of topics (or keys) with a message waiting or being delivered
+     */
+    int slots() {
+        return slots.size();
+    }
+
+    /**
+     * Slots drain on the callback executor, so they stop on their own once empty.
+     */
+    @Override
+    public void stop() {
+    }
+
+}
@@ -0,0 +1,165 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * {@link CompressionCodec} using the JDK's zlib, optionally with a preset dictionary per topic: for topics whose messages share
+ * most of their structure, a dictionary made of typical messages lets even small ones compress well. The stream records which
+ * dictionary it was compressed with, so a mismatch at the receiving end is detected rather than producing garbage.
+ */
+public final class DeflateCodec implements CompressionCodec {
+
+    public static final int                   ID                = 1;
+    public static final int                   DEFAULT_THRESHOLD = 512;
+
+    private final int                         threshold;
+    private final int                         level;
+    private final ImmutableMap<String, byte[]> dictionaries;
+    private final ThreadLocal<Deflater>       deflaters;
+    private final ThreadLocal<Inflater>       inflaters;
+
+    public DeflateCodec() {
+        this(DEFAULT_THRESHOLD, Deflater.BEST_SPEED, Collections.<String, byte[]> emptyMap());
+    }
+
+    /**
+     * @param level
+     *            as for {@link Deflater#setLevel(int)}
+     * @param dictionaries
+     *            preset dictionaries by topic, which must be the same wherever this codec is used
+     */
+    public DeflateCodec(final int threshold, final int level, final Map<String, byte[]> dictionaries) {
+        Preconditions.checkArgument(threshold >= 0, "Threshold cannot be negative");
+        Preconditions.checkArgument(level == Deflater.DEFAULT_COMPRESSION || (level >= 0 && level <= 9),
+                "Invalid compression level");
+        Preconditions.checkNotNull(dictionaries, "Dictionaries can be empty but not null");
+        this.threshold = threshold;
+        this.level = level;
+        this.dictionaries = ImmutableMap.copyOf(dictionaries);
+        deflaters = new ThreadLocal<Deflater>() {
+
+            @Override
+            protected Deflater initialValue() {
+                return new Deflater(DeflateCodec.this.level);
+            }
+
+        };
+        inflaters = new ThreadLocal<Inflater>() {
+
+            @Override
+            protected Inflater initialValue() {
+                return new Inflater();
+            }
+
+        };
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "deflate";
+    }
+
+    @Override
+    public int threshold() {
+        return threshold;
+    }
+
+    @Override
+    public ByteBuffer compress(final String topic, final ByteBuffer message) {
+        final Deflater deflater = deflaters.get();
+        deflater.reset();
+        final byte[] dictionary = dictionaries.get(topic);
+        if (dictionary != null)
+            deflater.setDictionary(dictionary);
+        final byte[] input = array(message);
+        deflater.setInput(input, message.hasArray() ? message.arrayOffset() + message.position() : 0, message.remaining());
+        deflater.finish();
+        // Incompressible input grows by a few bytes per 16K block; anything that doesn't fit is of no use to us anyway
+        final byte[] output = new byte[message.remaining() + 64];
+        int length = 0;
+        while (!deflater.finished() && length < output.length)
+            length += deflater.deflate(output, length, output.length - length);
+        return ByteBuffer.wrap(output, 0, length);
+    }
+
+    @Override
+    public ByteBuffer decompress(final String topic, final ByteBuffer compressed, final int length) throws IOException {
+        // The length comes off the wire, so it is checked before an array that size is allocated for it
+        if (length < 0 || length > (long) MAX_EXPANSION * compressed.remaining())
+            throw new IOException("Deflate stream of " + compressed.remaining() + " bytes for topic[" + topic
+                    + "] cannot inflate to " + length + " bytes");
+        final Inflater inflater = inflaters.get();
+        inflater.reset();
+        final byte[] input = array(compressed);
+        inflater.setInput(input, compressed.hasArray() ? compressed.arrayOffset() + compressed.position() : 0,
+                compressed.remaining());
+        final byte[] output = new byte[length];
+        int inflated = 0;
+        try {
+            while (!inflater.finished()) {
+                final int count = inflater.inflate(output, inflated, output.length - inflated);
+                inflated += count;
+                if (count == 0 && inflater.needsDictionary()) {
+                    final byte[] dictionary = dictionaries.get(topic);
+                    if (dictionary == null)
+                        throw new IOException("No dictionary for topic[" + topic + "]");
+                    inflater.setDictionary(dictionary);
+                } else if (count == 0 && (inflater.needsInput() || inflated == output.length))
+                    break;
+            }
+        } catch (final DataFormatException dfe) {
+            throw new IOException("Corrupt deflate stream for topic[" + topic + "]", dfe);
+        } catch (final IllegalArgumentException iae) {
+            throw new IOException("Dictionary mismatch for topic[" + topic + "]", iae);
+        }
+        if (!inflater.finished() || inflated != length)
+            throw new IOException("Deflate stream for topic[" + topic + "] did not inflate to " + length + " bytes");
+        return ByteBuffer.wrap(output);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(getClass()).add("threshold", threshold).add("level", level)
+                .add("dictionaries", dictionaries.keySet()).toString();
+    }
+
+    private static byte[] array(final ByteBuffer buffer) {
+        if (buffer.hasArray())
+            return buffer.array();
+        final byte[] rv = new byte[buffer.remaining()];
+        buffer.duplicate().get(rv);
+        return rv;
+    }
+
+}
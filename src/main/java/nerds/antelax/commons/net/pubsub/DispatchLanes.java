@@ -0,0 +1,157 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import nerds.antelax.commons.net.pubsub.PubSubClient.BatchMessageCallback;
+import nerds.antelax.commons.net.pubsub.PubSubClient.MessageCallback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Delivers messages to callbacks in the order they arrived on each topic. Topics are hashed onto a fixed number of lanes, each a
+ * queue drained by at most one task on the executor at a time; a drain delivers everything pending in its lane, up to
+ * {@link #MAX_DRAIN} messages, before giving the thread back. {@link BatchMessageCallback}s get all of a drain's messages for
+ * them in one call.
+ */
+final class DispatchLanes implements Dispatcher {
+
+    private static final Logger logger    = LoggerFactory.getLogger(DispatchLanes.class);
+
+    static final int            MAX_DRAIN = 256;
+
+    private static final class Delivery {
+
+        private final MessageCallback[] callbacks;
+        private final ByteBuffer        message;
+
+        private Delivery(final MessageCallback[] callbacks, final ByteBuffer message) {
+            this.callbacks = callbacks;
+            this.message = message;
+        }
+
+    }
+
+    private final class Lane implements Runnable {
+
+        private final Queue<Delivery> pending   = new ConcurrentLinkedQueue<Delivery>();
+        private final AtomicBoolean   scheduled = new AtomicBoolean(false);
+
+        private void add(final Delivery delivery) {
+            pending.add(delivery);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true))
+                try {
+                    executor.execute(this);
+                } catch (final RejectedExecutionException ree) {
+                    scheduled.set(false);
+                    logger.warn("Callback executor rejected a lane drain, {} messages left undelivered", pending.size());
+                }
+        }
+
+        @Override
+        public void run() {
+            try {
+                drain();
+            } finally {
+                scheduled.set(false);
+            }
+            if (!pending.isEmpty())
+                schedule();
+        }
+
+        private void drain() {
+            Map<BatchMessageCallback, List<ByteBuffer>> batches = null;
+            Delivery delivery;
+            for (int drained = 0; drained < MAX_DRAIN && (delivery = pending.poll()) != null; ++drained)
+                for (final MessageCallback callback : delivery.callbacks)
+                    if (callback instanceof BatchMessageCallback) {
+                        if (batches == null)
+                            batches = new IdentityHashMap<BatchMessageCallback, List<ByteBuffer>>();
+                        List<ByteBuffer> messages = batches.get(callback);
+                        if (messages == null) {
+                            messages = new ArrayList<ByteBuffer>();
+                            batches.put((BatchMessageCallback) callback, messages);
+                        }
+                        messages.add(delivery.message.asReadOnlyBuffer());
+                    } else
+                        try {
+                            callback.onMessage(delivery.message.asReadOnlyBuffer());
+                        } catch (final Exception e) {
+                            logger.warn("Caught exception during message callback[" + callback + "]", e);
+                        }
+            if (batches != null)
+                for (final Map.Entry<BatchMessageCallback, List<ByteBuffer>> entry : batches.entrySet())
+                    try {
+                        entry.getKey().onMessages(entry.getValue());
+                    } catch (final Exception e) {
+                        logger.warn("Caught exception during batch message callback[" + entry.getKey() + "]", e);
+                    }
+        }
+
+    }
+
+    private final Executor executor;
+    private final Lane[]   lanes;
+
+    DispatchLanes(final Executor executor, final int lanes) {
+        Preconditions.checkNotNull(executor, "Executor cannot be null");
+        Preconditions.checkArgument(lanes > 0, "Must have at least one lane");
+        this.executor = executor;
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; ++i)
+            this.lanes[i] = new Lane();
+    }
+
+    /**
+     * @return which of <code>lanes</code> lanes messages on <code>topic</code> go through
+     */
+    static int lane(final String topic, final int lanes) {
+        final int hash = topic.hashCode();
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % lanes;
+    }
+
+    @Override
+    public void dispatch(final String topic, final Collection<MessageCallback> callbacks, final ByteBuffer message) {
+        lanes[lane(topic, lanes.length)].add(new Delivery(callbacks.toArray(new MessageCallback[callbacks.size()]), message));
+    }
+
+    /**
+     * Lanes drain on the callback executor, so they stop on their own once empty.
+     */
+    @Override
+    public void stop() {
+    }
+
+}
@@ -0,0 +1,40 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import nerds.antelax.commons.net.pubsub.PubSubClient.MessageCallback;
+
+/**
+ * Hands messages received by a {@link ClientMessageHandler} over to their callbacks.
+ */
+interface Dispatcher {
+
+    /**
+     * Called from the thread that read the message: the I/O thread, or the publishing thread with the in-VM transport;
+     * <code>callbacks</code> must not be modified afterwards other than as a copy-on-write collection.
+     */
+    void dispatch(final String topic, final Collection<MessageCallback> callbacks, final ByteBuffer message);
+
+    /**
+     * Stops dispatching once everything already dispatched has been delivered.
+     */
+    void stop();
+
+}
@@ -0,0 +1,140 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Recognises messages a server has already seen by their source ID and sequence number, so that peers may be connected in any
+ * shape (trees, rings, several links between the same pair) without clients seeing a message more than once. Each source gets a
+ * window of the {@link #WINDOW} sequence numbers up to the highest seen from it, which tolerates messages overtaking one another
+ * by that much; anything older than the window is treated as a duplicate since there is no telling. Sources are forgotten after
+ * being idle for a while, and the least recently heard from once there are too many of them.
+ */
+final class DuplicateFilter {
+
+    static final int                      DEFAULT_MAX_SOURCES  = 1 << 16;
+    static final long                     DEFAULT_IDLE_SECONDS = 60;
+    static final int                      WINDOW               = 1024;
+
+    private final Map<UUID, SourceWindow> sources;
+    private final long                    idleNanos;
+    private long                          duplicates;
+
+    DuplicateFilter(final int maxSources, final long idleTime, final TimeUnit idleUnits) {
+        Preconditions.checkArgument(maxSources > 0);
+        Preconditions.checkArgument(idleTime > 0);
+        Preconditions.checkNotNull(idleUnits);
+        idleNanos = idleUnits.toNanos(idleTime);
+        sources = new LinkedHashMap<UUID, SourceWindow>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<UUID, SourceWindow> eldest) {
+                return size() > maxSources || System.nanoTime() - eldest.getValue().lastSeen > idleNanos;
+            }
+
+        };
+        duplicates = 0;
+    }
+
+    /**
+     * @return false if <code>m</code> has been seen before (or is too old to tell), true if not or if it is not numbered
+     */
+    synchronized boolean firstSighting(final Message m) {
+        final long sequence = m.sequence();
+        if (sequence == Message.NO_SEQUENCE || Message.NO_UUID.equals(m.sourceID()))
+            return true;
+        final long now = System.nanoTime();
+        SourceWindow window = sources.get(m.sourceID());
+        if (window == null || now - window.lastSeen > idleNanos) {
+            window = new SourceWindow(now);
+            sources.put(m.sourceID(), window);
+        } else
+            window.lastSeen = now;
+        if (window.add(sequence))
+            return true;
+        ++duplicates;
+        return false;
+    }
+
+    /**
+     * @return the messages of <code>batch</code> not seen before (or not numbered), in order, each being judged on its own
+     */
+    synchronized List<ApplicationMessage> firstSightings(final BatchMessage batch) {
+        final List<ApplicationMessage> rv = new ArrayList<ApplicationMessage>(batch.messages.size());
+        for (final ApplicationMessage am : batch.messages)
+            if (firstSighting(am))
+                rv.add(am);
+        return rv;
+    }
+
+    synchronized long duplicates() {
+        return duplicates;
+    }
+
+    synchronized int sources() {
+        return sources.size();
+    }
+
+    /*
+     * Which of the WINDOW sequence numbers up to the highest have been seen, as a ring of bits indexed by sequence number
+     */
+    private static final class SourceWindow {
+
+        private final long[] seen    = new long[WINDOW / 64];
+        private long         highest = Message.NO_SEQUENCE;
+        private long         lastSeen;
+
+        SourceWindow(final long now) {
+            lastSeen = now;
+        }
+
+        boolean add(final long sequence) {
+            if (sequence > highest) {
+                if (sequence - highest >= WINDOW)
+                    Arrays.fill(seen, 0l);
+                else
+                    for (long s = highest + 1; s < sequence; ++s)
+                        seen[index(s)] &= ~bit(s);
+                highest = sequence;
+            } else if (highest - sequence >= WINDOW || (seen[index(sequence)] & bit(sequence)) != 0)
+                return false;
+            seen[index(sequence)] |= bit(sequence);
+            return true;
+        }
+
+        private static int index(final long sequence) {
+            return (int) (sequence % WINDOW) >>> 6;
+        }
+
+        private static long bit(final long sequence) {
+            return 1l << (sequence & 63);
+        }
+
+    }
+
+}
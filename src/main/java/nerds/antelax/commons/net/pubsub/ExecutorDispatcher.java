@@ -0,0 +1,77 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+
+import nerds.antelax.commons.net.pubsub.PubSubClient.MessageCallback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The default {@link Dispatcher}, submitting a task to the callback executor for each message for each callback.
+ */
+final class ExecutorDispatcher implements Dispatcher {
+
+    private static final Logger   logger = LoggerFactory.getLogger(ExecutorDispatcher.class);
+
+    private final ExecutorService callbackService;
+
+    ExecutorDispatcher(final ExecutorService callbackService) {
+        Preconditions.checkNotNull(callbackService, "ExecutorService cannot be null");
+        this.callbackService = callbackService;
+    }
+
+    @Override
+    public void dispatch(final String topic, final Collection<MessageCallback> callbacks, final ByteBuffer message) {
+        for (final MessageCallback callback : callbacks)
+            callbackService.submit(new CallbackInvoker(callback, message.asReadOnlyBuffer()));
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    private static final class CallbackInvoker implements Runnable {
+
+        private final MessageCallback callback;
+        private final ByteBuffer      message;
+
+        private CallbackInvoker(final PubSubClient.MessageCallback callback, final ByteBuffer message) {
+            this.callback = callback;
+            this.message = message;
+        }
+
+        @Override
+        public void run() {
+            try {
+                logger.trace("Invoking callback[{}] with message of length {}", callback, message.remaining());
+                callback.onMessage(message);
+                logger.trace("Callback[{}] finished processing the message", callback);
+            } catch (final Exception e) {
+                logger.warn("Caught exception during message callback[" + callback + "]", e);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,139 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import nerds.antelax.commons.net.pubsub.PubSubClient.MessageCallback;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+
+/**
+ * Runs callbacks subscribed for inline delivery straight from the I/O thread that received the message, and watches that they don't
+ * hold it up: a callback still running once over budget is logged by a watchdog on the timer, and one that returns over budget is
+ * logged and, if so configured, demoted to delivery through the callback executor like any other.
+ */
+final class InlineDelivery implements TimerTask {
+
+    private static final Logger        logger                = LoggerFactory.getLogger(InlineDelivery.class);
+
+    static final long                  DEFAULT_BUDGET_MICROS = 1000;
+
+    private final Set<MessageCallback> callbacks;
+    private final Timer                timer;
+    private volatile long              budgetNanos;
+    private volatile boolean           demote;
+    private volatile MessageCallback   running;
+    private volatile long              runningSince;
+    private long                       reportedSince;
+    private Timeout                    watchdog;
+    private boolean                    stopped;
+
+    InlineDelivery(final Timer timer) {
+        Preconditions.checkNotNull(timer);
+        this.timer = timer;
+        callbacks = Sets.newSetFromMap(new ConcurrentHashMap<MessageCallback, Boolean>());
+        budgetNanos = TimeUnit.MICROSECONDS.toNanos(DEFAULT_BUDGET_MICROS);
+        demote = false;
+        running = null;
+        watchdog = null;
+        stopped = false;
+    }
+
+    void budget(final long budget, final TimeUnit budgetUnits, final boolean demote) {
+        Preconditions.checkArgument(budget > 0, "Budget must be positive");
+        budgetNanos = budgetUnits.toNanos(budget);
+        this.demote = demote;
+    }
+
+    boolean isEmpty() {
+        return callbacks.isEmpty();
+    }
+
+    boolean contains(final MessageCallback callback) {
+        return callbacks.contains(callback);
+    }
+
+    synchronized void add(final MessageCallback callback) {
+        callbacks.add(callback);
+        if (watchdog == null && !stopped)
+            watchdog = timer.newTimeout(this, budgetNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void remove(final MessageCallback callback) {
+        callbacks.remove(callback);
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (watchdog != null) {
+            watchdog.cancel();
+            watchdog = null;
+        }
+    }
+
+    /**
+     * Called from the I/O thread of the client's one connection, so one callback runs inline at a time; with the in-VM transport
+     * publishing threads call it themselves, and the watchdog only sees the latest of any running at once.
+     * 
+     * @param subscribed
+     *            the callback as subscribed inline, which is the one watched and demoted
+     * @param callback
+     *            what to run, which may be <code>subscribed</code> itself or something handing it the message
+     */
+    void deliver(final MessageCallback subscribed, final MessageCallback callback, final ByteBuffer message) {
+        final long start = System.nanoTime();
+        runningSince = start;
+        running = subscribed;
+        try {
+            callback.onMessage(message);
+        } catch (final Exception e) {
+            logger.warn("Caught exception during inline message callback[" + subscribed + "]", e);
+        } finally {
+            running = null;
+        }
+        final long elapsed = System.nanoTime() - start;
+        if (elapsed > budgetNanos) {
+            final boolean demoting = demote && callbacks.remove(subscribed);
+            logger.warn("Inline callback[{}] held up the I/O thread for {}us{}", new Object[] { subscribed,
+                    TimeUnit.NANOSECONDS.toMicros(elapsed), demoting ? ", delivering to it through the executor from now on" : "" });
+        }
+    }
+
+    @Override
+    public synchronized void run(final Timeout timeout) {
+        final MessageCallback callback = running;
+        final long since = runningSince;
+        if (callback != null && since != reportedSince && System.nanoTime() - since > budgetNanos) {
+            reportedSince = since;
+            logger.warn("Inline callback[{}] has been blocking the I/O thread for over {}us", callback,
+                    TimeUnit.NANOSECONDS.toMicros(budgetNanos));
+        }
+        watchdog = stopped || callbacks.isEmpty() ? null : timer.newTimeout(this, budgetNanos, TimeUnit.NANOSECONDS);
+    }
+
+}
@@ -0,0 +1,320 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * The latest message for each key of a keyed topic, kept outside the Java heap so that millions of keys cost neither heap nor
+ * garbage collection time. The table is an open-addressing hash index, probed linearly, over an append-only area of records:
+ * replacing a key's message appends a new record and leaves the old one as garbage, and removing a key leaves a tombstone in its
+ * slot so that probing carries on past it. The record area is compacted once half of it is garbage, and the index is
+ * rebuilt (dropping tombstones) once three quarters of its slots are in use. Both live in direct buffers, grown by doubling up to a
+ * limit on their combined size.
+ * <p>
+ * Callers hold the lock (see {@link #lock()}) while changing the table and looking up the topic's subscribers, and while reading
+ * the table for a subscriber's snapshot, writing to them only after letting go: a snapshot goes through the subscriber's gate in
+ * the server, which holds back changes broadcast to it meanwhile. Changes to a key from different sources may still reach a
+ * subscriber in another order than they were made in the table.
+ */
+final class KeyedTable {
+
+    // Index slot: hash of the key, then the position of its record plus one, EMPTY or TOMBSTONE
+    static final int            SLOT_SIZE          = 4 + 4;
+    // Record: key length, payload length, codec ID, then the key (UTF-8) and payload
+    static final int            RECORD_HEADER_SIZE = 4 + 4 + 1;
+    static final int            INITIAL_SLOTS      = 1024;
+    static final int            INITIAL_BYTES      = 64 * 1024;
+
+    private static final int    EMPTY              = 0;
+    private static final int    TOMBSTONE          = -1;
+
+    private final String        topic;
+    private final long          maxBytes;
+    private final ReentrantLock lock;
+    private ByteBuffer          index;
+    private ByteBuffer          records;
+    private int                 slots;
+    private int                 size;
+    private int                 tombstones;
+    private int                 end;
+    private int                 garbage;
+    private int                 generation;
+
+    /**
+     * @param maxBytes
+     *            the most the index and records may take up together, at most 2GB
+     */
+    KeyedTable(final String topic, final long maxBytes) {
+        Preconditions.checkNotNull(topic);
+        Preconditions.checkArgument(maxBytes >= INITIAL_SLOTS * SLOT_SIZE + INITIAL_BYTES, "Tables need at least %s bytes",
+                INITIAL_SLOTS * SLOT_SIZE + INITIAL_BYTES);
+        this.topic = topic;
+        this.maxBytes = Math.min(maxBytes, Integer.MAX_VALUE);
+        lock = new ReentrantLock();
+        slots = INITIAL_SLOTS;
+        index = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+        records = ByteBuffer.allocateDirect(INITIAL_BYTES);
+        size = 0;
+        tombstones = 0;
+        end = 0;
+        garbage = 0;
+        generation = 0;
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Makes <code>am</code> the latest message for its key, or removes the key if its payload is empty; the lock must be held.
+     * 
+     * @return false if the table has no room left for the message
+     */
+    boolean put(final ApplicationMessage am) {
+        Preconditions.checkArgument(am.key != null, "Message has no key");
+        final byte[] key = am.key.getBytes(Charsets.UTF_8);
+        final ChannelBuffer payload = am.payload();
+        final int hash = hash(key);
+        final int slot = find(key, hash);
+        if (payload.readableBytes() == 0) {
+            if (slot >= 0) {
+                garbage += recordSize(ref(slot) - 1);
+                setSlot(slot, hash, TOMBSTONE);
+                --size;
+                ++tombstones;
+            }
+            return true;
+        }
+        final int length = RECORD_HEADER_SIZE + key.length + payload.readableBytes();
+        if (!reserve(length, slot < 0))
+            return false;
+        // Reserving may have compacted the records or rebuilt the index
+        final int current = find(key, hash);
+        final int position = end;
+        records.putInt(position, key.length);
+        records.putInt(position + 4, payload.readableBytes());
+        records.put(position + 8, (byte) am.codecID());
+        final ByteBuffer dst = records.duplicate();
+        dst.position(position + RECORD_HEADER_SIZE);
+        dst.put(key);
+        payload.getBytes(payload.readerIndex(), dst);
+        end += length;
+        if (current >= 0) {
+            garbage += recordSize(ref(current) - 1);
+            setSlot(current, hash, position + 1);
+        } else {
+            final int free = free(hash);
+            if (ref(free) == TOMBSTONE)
+                --tombstones;
+            ++size;
+            setSlot(free, hash, position + 1);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the latest message for up to <code>max</code> keys, starting from index slot <code>from</code>; the lock must be held.
+     * The messages are copied out of the table, so stay good whatever happens to it.
+     * 
+     * @return the slot to carry on reading from, or -1 if there are no more
+     */
+    int read(final int from, final int max, final List<ApplicationMessage> messages) {
+        int slot = from;
+        for (int read = 0; slot < slots && read < max; ++slot) {
+            final int ref = ref(slot);
+            if (ref > 0) {
+                messages.add(message(ref - 1));
+                ++read;
+            }
+        }
+        return slot < slots ? slot : -1;
+    }
+
+    /**
+     * @return a number that changes whenever the index is rebuilt, after which slots read from before mean nothing
+     */
+    int generation() {
+        return generation;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes taken up outside the heap
+     */
+    long bytes() {
+        return index.capacity() + records.capacity();
+    }
+
+    private ApplicationMessage message(final int position) {
+        final int keyLength = records.getInt(position);
+        final int payloadLength = records.getInt(position + 4);
+        final byte[] key = new byte[keyLength];
+        final byte[] payload = new byte[payloadLength];
+        final ByteBuffer src = records.duplicate();
+        src.position(position + RECORD_HEADER_SIZE);
+        src.get(key).get(payload);
+        return new ApplicationMessage(topic, new String(key, Charsets.UTF_8), records.get(position + 8) & 0xff, ChannelBuffers
+                .unmodifiableBuffer(ChannelBuffers.wrappedBuffer(payload)));
+    }
+
+    /*
+     * The slot holding key, or -1 if there is none
+     */
+    private int find(final byte[] key, final int hash) {
+        for (int slot = hash & (slots - 1);; slot = (slot + 1) & (slots - 1)) {
+            final int ref = ref(slot);
+            if (ref == EMPTY)
+                return -1;
+            if (ref > 0 && index.getInt(slot * SLOT_SIZE) == hash && keyEquals(ref - 1, key))
+                return slot;
+        }
+    }
+
+    /*
+     * The first empty or tombstone slot for hash, for a key that isn't in the table
+     */
+    private int free(final int hash) {
+        int slot = hash & (slots - 1);
+        while (ref(slot) > 0)
+            slot = (slot + 1) & (slots - 1);
+        return slot;
+    }
+
+    private boolean keyEquals(final int position, final byte[] key) {
+        if (records.getInt(position) != key.length)
+            return false;
+        for (int pos = 0; pos < key.length; ++pos)
+            if (records.get(position + RECORD_HEADER_SIZE + pos) != key[pos])
+                return false;
+        return true;
+    }
+
+    private int ref(final int slot) {
+        return index.getInt(slot * SLOT_SIZE + 4);
+    }
+
+    private void setSlot(final int slot, final int hash, final int ref) {
+        index.putInt(slot * SLOT_SIZE, hash);
+        index.putInt(slot * SLOT_SIZE + 4, ref);
+    }
+
+    private int recordSize(final int position) {
+        return RECORD_HEADER_SIZE + records.getInt(position) + records.getInt(position + 4);
+    }
+
+    /*
+     * Makes room for a record of length bytes, and a slot to point to it if for a new key, compacting the records and rebuilding the
+     * index as needed
+     */
+    private boolean reserve(final int length, final boolean newKey) {
+        if (newKey && (size + tombstones + 1) * 4 > slots * 3) {
+            final int grown = (size + 1) * 2 > slots ? slots * 2 : slots;
+            if ((long) grown * SLOT_SIZE + records.capacity() > maxBytes)
+                return false;
+            rebuild(grown);
+        }
+        if (end + length <= records.capacity())
+            return true;
+        if (garbage > 0 && garbage >= end / 2) {
+            compact(records.capacity());
+            if (end + length <= records.capacity())
+                return true;
+        }
+        long capacity = records.capacity();
+        while (capacity < end - garbage + length)
+            capacity *= 2;
+        if (capacity + index.capacity() > maxBytes)
+            capacity = maxBytes - index.capacity();
+        if (capacity < end - garbage + length)
+            return false;
+        compact((int) capacity);
+        return true;
+    }
+
+    /*
+     * Rebuilds the index with the given number of slots, dropping tombstones
+     */
+    private void rebuild(final int count) {
+        final ByteBuffer old = index;
+        final int oldSlots = slots;
+        index = ByteBuffer.allocateDirect(count * SLOT_SIZE);
+        slots = count;
+        for (int slot = 0; slot < oldSlots; ++slot) {
+            final int ref = old.getInt(slot * SLOT_SIZE + 4);
+            if (ref > 0) {
+                final int hash = old.getInt(slot * SLOT_SIZE);
+                int free = hash & (slots - 1);
+                while (ref(free) != EMPTY)
+                    free = (free + 1) & (slots - 1);
+                setSlot(free, hash, ref);
+            }
+        }
+        tombstones = 0;
+        ++generation;
+    }
+
+    /*
+     * Copies the live records, in index order, into a buffer of the given capacity, leaving no garbage; slots stay where they are
+     */
+    private void compact(final int capacity) {
+        final ByteBuffer compacted = ByteBuffer.allocateDirect(capacity);
+        int position = 0;
+        for (int slot = 0; slot < slots; ++slot) {
+            final int ref = ref(slot);
+            if (ref > 0) {
+                final int length = recordSize(ref - 1);
+                final ByteBuffer src = records.duplicate();
+                src.limit(ref - 1 + length).position(ref - 1);
+                compacted.position(position);
+                compacted.put(src);
+                index.putInt(slot * SLOT_SIZE + 4, position + 1);
+                position += length;
+            }
+        }
+        compacted.clear();
+        records = compacted;
+        end = position;
+        garbage = 0;
+    }
+
+    /*
+     * FNV-1a, spread so that the low bits used to pick a slot depend on all of the key
+     */
+    private static int hash(final byte[] key) {
+        int hash = 0x811c9dc5;
+        for (final byte b : key)
+            hash = (hash ^ (b & 0xff)) * 0x01000193;
+        return hash ^ (hash >>> 16);
+    }
+
+}
@@ -0,0 +1,70 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The tables of a server's keyed topics (see {@link KeyedTable}), each created when its topic is first published to with a key.
+ */
+final class KeyedTables {
+
+    private final long                              maxBytes;
+    private final TopicMatcher<String>              keyed;
+    private final ConcurrentMap<String, KeyedTable> tables;
+
+    /**
+     * @param maxBytes
+     *            the most each table may take up outside the heap
+     * @param topics
+     *            the keyed topics, any of which may be a pattern
+     */
+    KeyedTables(final long maxBytes, final String... topics) {
+        Preconditions.checkArgument(maxBytes >= KeyedTable.INITIAL_SLOTS * KeyedTable.SLOT_SIZE + KeyedTable.INITIAL_BYTES,
+                "Tables need at least %s bytes", KeyedTable.INITIAL_SLOTS * KeyedTable.SLOT_SIZE + KeyedTable.INITIAL_BYTES);
+        this.maxBytes = maxBytes;
+        keyed = new TopicMatcher<String>(new String[0]);
+        for (final String topic : topics) {
+            Preconditions.checkArgument(TopicMatcher.isValid(topic), "Invalid keyed topic[%s]", topic);
+            keyed.add(topic, topic);
+        }
+        tables = new ConcurrentHashMap<String, KeyedTable>();
+    }
+
+    /**
+     * @return the table for <code>topic</code>, or null if it isn't keyed
+     */
+    KeyedTable table(final String topic) {
+        KeyedTable table = tables.get(topic);
+        if (table != null || keyed.match(topic).length == 0)
+            return table;
+        final KeyedTable created = new KeyedTable(topic, maxBytes);
+        table = tables.putIfAbsent(topic, created);
+        return table != null ? table : created;
+    }
+
+    /**
+     * @return the table for <code>topic</code> if it has been created, without creating it
+     */
+    KeyedTable existing(final String topic) {
+        return tables.get(topic);
+    }
+
+}
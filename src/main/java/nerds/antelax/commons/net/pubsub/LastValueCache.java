@@ -0,0 +1,130 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The latest message published on each of a server's retained topics, so that a new subscriber can be sent a topic's current
+ * value straight away rather than wait for the next publish. Messages are kept as they arrived, payloads still encoded (and
+ * compressed, if they were). The cache is bounded by both a number of topics and a total payload size, evicting the topics least
+ * recently published to or subscribed to first.
+ * <p>
+ * There is one lock for all topics: callers hold it while adding a message and looking up the topic's subscribers, and while
+ * reading the latest messages for a subscriber and adding that subscriber, writing to them only after letting go. A new subscriber
+ * is sent the latest messages through its gate in the server, ahead of anything published after it was added. Messages published
+ * from different sources meanwhile are written after the lock is let go, so they may reach a subscriber in another order than
+ * they were cached in, and the last one it gets need not be the one cached.
+ */
+final class LastValueCache {
+
+    private final TopicMatcher<String>                      retained;
+    private final int                                       maxTopics;
+    private final long                                      maxBytes;
+    private final ReentrantLock                             lock;
+    private final LinkedHashMap<String, ApplicationMessage> latest;
+    private long                                            bytes;
+
+    /**
+     * @param topics
+     *            the retained topics, any of which may be a pattern
+     */
+    LastValueCache(final int maxTopics, final long maxBytes, final String... topics) {
+        Preconditions.checkArgument(maxTopics > 0, "Topic count must be positive");
+        Preconditions.checkArgument(maxBytes > 0, "Byte count must be positive");
+        retained = new TopicMatcher<String>(new String[0]);
+        for (final String topic : topics) {
+            Preconditions.checkArgument(TopicMatcher.isValid(topic), "Invalid retained topic[%s]", topic);
+            retained.add(topic, topic);
+        }
+        this.maxTopics = maxTopics;
+        this.maxBytes = maxBytes;
+        lock = new ReentrantLock();
+        latest = new LinkedHashMap<String, ApplicationMessage>(16, 0.75f, true);
+        bytes = 0;
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    boolean retains(final String topic) {
+        return retained.match(topic).length > 0;
+    }
+
+    /**
+     * Keeps a copy of <code>am</code> in place of the topic's previous message, evicting the least recently used topics until back
+     * within bounds; the lock must be held. A message on its own larger than the size bound is not kept, and the topic's previous
+     * message is forgotten.
+     */
+    void put(final ApplicationMessage am) {
+        final ApplicationMessage previous = latest.remove(am.topic);
+        if (previous != null)
+            bytes -= previous.estimatedBodySize();
+        final int size = am.estimatedBodySize();
+        if (size > maxBytes)
+            return;
+        latest.put(am.topic, am.retained());
+        bytes += size;
+        final Iterator<ApplicationMessage> eldest = latest.values().iterator();
+        while (latest.size() > maxTopics || bytes > maxBytes) {
+            bytes -= eldest.next().estimatedBodySize();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @return the latest message on each topic kept that <code>topic</code> matches (it may be a pattern), in no particular order;
+     *         the lock must be held
+     */
+    List<ApplicationMessage> latest(final String topic) {
+        final List<ApplicationMessage> rv = new ArrayList<ApplicationMessage>(1);
+        if (!TopicMatcher.isPattern(topic)) {
+            final ApplicationMessage am = latest.get(topic);
+            if (am != null)
+                rv.add(am);
+        } else {
+            final TopicMatcher<String> matcher = new TopicMatcher<String>(new String[0]);
+            matcher.add(topic, topic);
+            for (final Map.Entry<String, ApplicationMessage> entry : latest.entrySet())
+                if (matcher.match(entry.getKey()).length > 0)
+                    rv.add(entry.getValue());
+        }
+        return rv;
+    }
+
+    int size() {
+        return latest.size();
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+}
+
@@ -0,0 +1,86 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import nerds.antelax.commons.net.NetUtil;
+
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The in-VM transport: each {@link PubSubServer} also listens on a Netty local address for each of its socket addresses, and
+ * clients connecting to one of those socket addresses connect to the local address instead. Messages then go between client and
+ * server as they are, without being encoded, copied or decoded, and are written and read on the writer's thread.
+ */
+final class LocalTransport {
+
+    private static final ConcurrentMap<InetSocketAddress, LocalAddress> SERVERS;
+    private static final ChannelFactory                                 CLIENT_FACTORY;
+
+    static {
+        SERVERS = new ConcurrentHashMap<InetSocketAddress, LocalAddress>();
+        CLIENT_FACTORY = new DefaultLocalClientChannelFactory();
+    }
+
+    private LocalTransport() {
+    }
+
+    /**
+     * @return the local address for a server listening on <code>address</code> to bind to
+     */
+    static LocalAddress register(final InetSocketAddress address) {
+        Preconditions.checkNotNull(address);
+        final LocalAddress local = new LocalAddress("pubsub-" + address);
+        SERVERS.put(address, local);
+        return local;
+    }
+
+    static void unregister(final InetSocketAddress address) {
+        SERVERS.remove(address);
+    }
+
+    /**
+     * @return the local address of a server in this VM listening on <code>address</code>, or null if there isn't one
+     */
+    static LocalAddress find(final InetSocketAddress address) {
+        final LocalAddress local = SERVERS.get(address);
+        if (local != null || SERVERS.isEmpty())
+            return local;
+        for (final Map.Entry<InetSocketAddress, LocalAddress> entry : SERVERS.entrySet())
+            if (NetUtil.bindConflict(entry.getKey()).apply(address))
+                return entry.getValue();
+        return null;
+    }
+
+    static ChannelFactory clientChannelFactory() {
+        return CLIENT_FACTORY;
+    }
+
+    static ChannelFactory newServerChannelFactory() {
+        return new DefaultLocalServerChannelFactory();
+    }
+
+}
@@ -31,40 +31,89 @@ abstract class Message {
 
     protected enum Type {
 
-        Subscription("SUB "), Application("APPL");
+        Subscription("SUB ", 1), Application("APPL", 2), TopicDefinition("TDEF", 3), Batch("BTCH", 4);
 
         private final String code;
         private final byte[] bytes;
+        private final int    compactCode;
 
-        private Type(final String code) {
+        private Type(final String code, final int compactCode) {
             Preconditions.checkNotNull(code);
+            Preconditions.checkArgument(compactCode > 0 && compactCode <= COMPACT_TYPE_MASK);
             this.code = code;
+            this.compactCode = compactCode;
             bytes = this.code.getBytes(Charsets.UTF_8);
             Preconditions.checkNotNull(bytes);
             Preconditions.checkArgument(bytes.length == 4, "Codes must be 4 bytes when converted to UTF-8");
         }
 
-        static Type findByCode(final String search) {
+        static Type findByCode(final ChannelBuffer buffer, final int index) {
             for (final Type t : values())
-                if (t.code.equals(search))
+                if (t.bytes[0] == buffer.getByte(index) && t.bytes[1] == buffer.getByte(index + 1)
+                        && t.bytes[2] == buffer.getByte(index + 2) && t.bytes[3] == buffer.getByte(index + 3))
+                    return t;
+            return null;
+        }
+
+        static Type findByCompactCode(final int search) {
+            for (final Type t : values())
+                if (t.compactCode == search)
                     return t;
             return null;
         }
 
     }
 
-    final static UUID NO_UUID = new UUID(0l, 0l);
+    final static UUID NO_UUID     = new UUID(0l, 0l);
+
+    // Type, TTL, source ID, server ID and body length
+    static final int  HEADER_SIZE             = 4 + 2 + 16 + 16 + 4;
+
+    /*
+     * Compact (version 2) header, used once both ends of a channel have agreed to it:
+     * 
+     * 1 byte: COMPACT_MARKER, flags and the type's compact code (the marker is never set in the first byte of a version 1 frame)
+     * varint: TTL
+     * varint, then the ID itself if NODE_INLINE or NODE_DEFINE: source ID, see the NODE_* constants
+     * varint, then the ID itself if NODE_INLINE or NODE_DEFINE: server ID
+     * varlong, only if COMPACT_SEQUENCED: sequence number
+     * varint: body length
+     * 
+     * Both flags are only valid on application messages and batches: COMPACT_COMPRESSED is set when the body carries compressed
+     * payloads, COMPACT_SEQUENCED when the source numbered the message (version 1 headers have no room for a sequence number).
+     */
+    static final int  COMPACT_MARKER          = 0x80;
+    static final int  COMPACT_FLAGS_MASK      = 0x70;
+    static final int  COMPACT_COMPRESSED      = 0x10;
+    static final int  COMPACT_SEQUENCED       = 0x20;
+    static final int  COMPACT_TYPE_MASK       = 0x0F;
+    static final int  MAX_COMPACT_HEADER_SIZE = 1 + 5 + 2 * (5 + 16) + 9 + 5;
+    static final int  MAX_HEADER_SIZE         = Math.max(HEADER_SIZE, MAX_COMPACT_HEADER_SIZE);
+
+    // Node ID references in a compact header: none, inline, inline and numbered for later re-use, or the number plus NODE_REFERENCE
+    static final int  NODE_NONE               = 0;
+    static final int  NODE_INLINE             = 1;
+    static final int  NODE_DEFINE             = 2;
+    static final int  NODE_REFERENCE          = 3;
+
+    // Sequence numbers start at 1 for each source, so this marks a message its source did not number
+    static final long NO_SEQUENCE             = 0l;
+
+    // Servers a message may pass through unless its source says otherwise
+    static final int  DEFAULT_TTL             = 2;
 
     final Type        type;
     private short     ttl;
     private UUID      sourceID;
     private UUID      serverID;
+    private long      sequence;
 
     protected Message(final Type type) {
         this.type = type;
-        ttl = 2;
+        ttl = DEFAULT_TTL;
         sourceID = NO_UUID;
         serverID = NO_UUID;
+        sequence = NO_SEQUENCE;
     }
 
     void ttl(final short ttl) {
@@ -91,9 +140,94 @@ abstract class Message {
         return this.serverID;
     }
 
+    /**
+     * @param sequence
+     *            a number increasing with each application message sent by our source, so that together with the source ID it
+     *            identifies the message however many routes it takes; {@link #NO_SEQUENCE} if not numbered. A batch takes that of
+     *            its first message, the others following on from it
+     */
+    void sequence(final long sequence) {
+        Preconditions.checkArgument(sequence >= 0, "Sequence numbers cannot be negative");
+        this.sequence = sequence;
+    }
+
+    long sequence() {
+        return sequence;
+    }
+
+    /**
+     * Copies our TTL, source and server IDs and sequence number to <code>other</code>.
+     */
+    final void copyHeaderTo(final Message other) {
+        other.ttl(ttl);
+        other.sourceID(sourceID);
+        other.serverID(serverID);
+        other.sequence(sequence);
+    }
+
+    /**
+     * @return true if the body carries compressed payloads, which only a compact header can flag
+     */
+    boolean compressed() {
+        return false;
+    }
+
     final void marshall(final ChannelBuffer buffer) {
-        final ChannelBuffer bodyBuffer = ChannelBuffers.dynamicBuffer(estimatedBodySize());
-        marshallBody(bodyBuffer);
+        final ChannelBuffer body = body();
+        marshallHeader(buffer, body.readableBytes());
+        buffer.writeBytes(body, body.readerIndex(), body.readableBytes());
+    }
+
+    /**
+     * Encodes this message for a single write: a freshly written header (so the current TTL and server ID are picked up) in front
+     * of the body, which is shared rather than copied. Writing the same message to many channels therefore only costs one small
+     * header per channel.
+     */
+    final ChannelBuffer encode() {
+        final ChannelBuffer body = body();
+        final ChannelBuffer header = ChannelBuffers.buffer(headerSize());
+        marshallHeader(header, body.readableBytes());
+        return ChannelBuffers.wrappedBuffer(header, body);
+    }
+
+    /**
+     * Encodes this message with a compact header, see {@link #marshallCompactHeader(ChannelBuffer, int, int, int)}.
+     */
+    final ChannelBuffer encodeCompact(final int sourceRef, final int serverRef) {
+        final ChannelBuffer body = body();
+        final ChannelBuffer header = ChannelBuffers.buffer(MAX_COMPACT_HEADER_SIZE);
+        marshallCompactHeader(header, body.readableBytes(), sourceRef, serverRef);
+        return ChannelBuffers.wrappedBuffer(header, body);
+    }
+
+    /**
+     * @param sourceRef
+     *            how to write the source ID: one of the NODE_* constants, or NODE_REFERENCE plus a node number the remote end has
+     *            already been given
+     * @param serverRef
+     *            as for <code>sourceRef</code>
+     */
+    final void marshallCompactHeader(final ChannelBuffer buffer, final int bodyLength, final int sourceRef, final int serverRef) {
+        final boolean sequenced = sequence != NO_SEQUENCE && (type == Type.Application || type == Type.Batch);
+        buffer.writeByte(COMPACT_MARKER | (compressed() ? COMPACT_COMPRESSED : 0) | (sequenced ? COMPACT_SEQUENCED : 0)
+                | type.compactCode);
+        writeVarInt(buffer, ttl & 0xFFFF);
+        marshallNode(buffer, sourceRef, sourceID);
+        marshallNode(buffer, serverRef, serverID);
+        if (sequenced)
+            writeVarLong(buffer, sequence);
+        writeVarInt(buffer, bodyLength);
+    }
+
+    private static void marshallNode(final ChannelBuffer buffer, final int ref, final UUID node) {
+        writeVarInt(buffer, ref);
+        if (ref == NODE_INLINE || ref == NODE_DEFINE) {
+            buffer.writeLong(node.getMostSignificantBits());
+            buffer.writeLong(node.getLeastSignificantBits());
+        }
+    }
+
+    final void marshallHeader(final ChannelBuffer buffer, final int bodyLength) {
         buffer.writeBytes(type.bytes);
         buffer.writeShort(ttl);
         if (sourceID != null) {
@@ -110,21 +244,22 @@ abstract class Message {
             buffer.writeLong(NO_UUID.getMostSignificantBits());
             buffer.writeLong(NO_UUID.getLeastSignificantBits());
         }
-        buffer.writeInt(bodyBuffer.readableBytes());
-        buffer.writeBytes(bodyBuffer);
+        buffer.writeInt(bodyLength);
     }
 
     final int headerSize() {
-        return 4 // Type
-                + 2 // TTL
-                + 16 // Source ID
-                + 16 // Server ID
-                + 4; // Body length
+        return HEADER_SIZE;
     }
 
-    abstract int estimatedBodySize();
+    int estimatedBodySize() {
+        return body().readableBytes();
+    }
 
-    abstract void marshallBody(final ChannelBuffer buffer);
+    /**
+     * @return the encoded body of this message, which may be shared between writes and must therefore never be modified; callers
+     *         should only use absolute reads or work on a duplicate
+     */
+    abstract ChannelBuffer body();
 
     @Override
     public String toString() {
@@ -133,79 +268,179 @@ abstract class Message {
         tsh.add("ttl", ttl);
         tsh.add("source UUID", sourceID);
         tsh.add("server UUID", serverID);
+        tsh.add("sequence", sequence);
         tsh.add("body length", estimatedBodySize());
         return tsh.toString();
     }
 
-    static final Builder newBuilder() {
-        return new Builder();
+    static void writeVarInt(final ChannelBuffer buffer, final int value) {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0) {
+            buffer.writeByte((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        buffer.writeByte(remaining);
     }
 
-    static final class Builder {
+    static void writeVarLong(final ChannelBuffer buffer, final long value) {
+        long remaining = value;
+        while ((remaining & ~0x7Fl) != 0) {
+            buffer.writeByte((int) (remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        buffer.writeByte((int) remaining);
+    }
 
-        private final ChannelBuffer type;
-        private final ChannelBuffer ttl;
-        private final ChannelBuffer sourceID;
-        private final ChannelBuffer serverID;
-        private final ChannelBuffer length;
-        private ChannelBuffer       body;
+    /**
+     * @return the non-negative value read, or -1 if <code>buffer</code> ran out first (in which case the reader index is left
+     *         wherever it got to)
+     */
+    static long readVarLong(final ChannelBuffer buffer) throws MessageFormatException {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            if (!buffer.readable())
+                return -1;
+            final byte b = buffer.readByte();
+            value |= (b & 0x7Fl) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new MessageFormatException("Malformed variable length long");
+    }
 
-        Builder() {
-            type = ChannelBuffers.buffer(4);
-            ttl = ChannelBuffers.buffer(2);
-            sourceID = ChannelBuffers.buffer(16);
-            serverID = ChannelBuffers.buffer(16);
-            length = ChannelBuffers.buffer(4);
-            body = null;
+    /**
+     * @return the non-negative value read, or -1 if <code>buffer</code> ran out first (in which case the reader index is left
+     *         wherever it got to)
+     */
+    static int readVarInt(final ChannelBuffer buffer) throws MessageFormatException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!buffer.readable())
+                return -1;
+            final byte b = buffer.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0)
+                    throw new MessageFormatException("Variable length integer out of range");
+                return value;
+            }
         }
+        throw new MessageFormatException("Malformed variable length integer");
+    }
 
-        /**
-         * This message builder may be re-used from scratch immediately following when a non-null message is returned from this
-         * method. At such a point when a non-null return value is given here, all internal state is reset.
-         * 
-         * @param buffer
-         *            more data to add to this builder
-         * @return the message decoded by reading some or all of <code>buffer</code> or <code>null</code> if more data is needed
-         */
-        Message add(final ChannelBuffer buffer) throws MessageFormatException {
-            Preconditions.checkNotNull(buffer);
-            if (buffer.readable() && type.writable())
-                type.writeBytes(buffer, Math.min(buffer.readableBytes(), type.writableBytes()));
-            if (buffer.readable() && ttl.writable())
-                ttl.writeBytes(buffer, Math.min(buffer.readableBytes(), ttl.writableBytes()));
-            if (buffer.readable() && sourceID.writable())
-                sourceID.writeBytes(buffer, Math.min(buffer.readableBytes(), sourceID.writableBytes()));
-            if (buffer.readable() && serverID.writable())
-                serverID.writeBytes(buffer, Math.min(buffer.readableBytes(), serverID.writableBytes()));
-            if (buffer.readable() && length.writable())
-                length.writeBytes(buffer, Math.min(buffer.readableBytes(), length.writableBytes()));
-            if (!length.writable() && body == null)
-                body = ChannelBuffers.buffer(length.readInt());
-            if (body != null && buffer.readable() && body.writable())
-                body.writeBytes(buffer, Math.min(buffer.readableBytes(), body.writableBytes()));
-            final Message message;
-            if (body != null && !body.writable()) {
-                final Message.Type t = Message.Type.findByCode(type.toString(Charsets.UTF_8));
-                if (t == Message.Type.Application)
-                    message = new ApplicationMessage(body);
-                else if (t == Message.Type.Subscription)
-                    message = new SubscriptionMessage(body);
-                else
-                    throw new MessageFormatException("Unknown message type[" + type.toString(Charsets.UTF_8) + "]");
-                message.ttl(ttl.readShort());
-                message.sourceID(new UUID(sourceID.readLong(), sourceID.readLong()));
-                message.serverID(new UUID(serverID.readLong(), serverID.readLong()));
-                type.clear();
-                ttl.clear();
-                sourceID.clear();
-                serverID.clear();
-                length.clear();
-                body = null;
-            } else
-                message = null;
-            return message;
+    /**
+     * @return the total length (header and body) of the frame starting at the reader index of <code>buffer</code>, or -1 if not
+     *         enough of the header is readable yet to tell
+     */
+    static int frameLength(final ChannelBuffer buffer) throws MessageFormatException {
+        if (!buffer.readable())
+            return -1;
+        final int start = buffer.readerIndex();
+        if ((buffer.getByte(start) & COMPACT_MARKER) == 0) {
+            if (buffer.readableBytes() < HEADER_SIZE)
+                return -1;
+            final int bodyLength = buffer.getInt(start + HEADER_SIZE - 4);
+            if (bodyLength < 0 || bodyLength > Integer.MAX_VALUE - HEADER_SIZE)
+                throw new MessageFormatException("Invalid body length[" + bodyLength + "]");
+            return HEADER_SIZE + bodyLength;
+        }
+        try {
+            final boolean sequenced = (buffer.readByte() & COMPACT_SEQUENCED) != 0;
+            if (readVarInt(buffer) < 0 || !skipNode(buffer) || !skipNode(buffer) || (sequenced && readVarLong(buffer) < 0))
+                return -1;
+            final int bodyLength = readVarInt(buffer);
+            if (bodyLength > Integer.MAX_VALUE - MAX_COMPACT_HEADER_SIZE)
+                throw new MessageFormatException("Invalid body length[" + bodyLength + "]");
+            return bodyLength < 0 ? -1 : buffer.readerIndex() - start + bodyLength;
+        } finally {
+            buffer.readerIndex(start);
         }
+    }
+
+    private static boolean skipNode(final ChannelBuffer buffer) throws MessageFormatException {
+        final int ref = readVarInt(buffer);
+        if (ref < 0)
+            return false;
+        if (ref == NODE_INLINE || ref == NODE_DEFINE) {
+            if (buffer.readableBytes() < 16)
+                return false;
+            buffer.skipBytes(16);
+        }
+        return true;
+    }
+
+    /**
+     * Reads exactly one frame, of either header version, from <code>buffer</code>, which must be readable in full. Header fields
+     * are read in place and the body of the returned message is a slice of <code>buffer</code> rather than a copy, so the caller
+     * must not re-use the underlying memory for anything else afterwards.
+     * 
+     * @param dictionary
+     *            topic and node IDs defined so far by the sender of <code>buffer</code>
+     * @throws MessageFormatException
+     *             if the frame is not one we understand
+     */
+    static Message unmarshall(final ChannelBuffer buffer, final WireDictionary dictionary) throws MessageFormatException {
+        final int length = frameLength(buffer);
+        Preconditions.checkArgument(length >= 0 && buffer.readableBytes() >= length, "Buffer does not hold a complete frame");
+        final int index = buffer.readerIndex();
+        if ((buffer.getByte(index) & COMPACT_MARKER) != 0)
+            return unmarshallCompact(buffer, dictionary);
+        final Type t = Type.findByCode(buffer, index);
+        if (t == null)
+            throw new MessageFormatException("Unknown message type[" + buffer.toString(index, 4, Charsets.UTF_8) + "]");
+        final Message message = newMessage(t, buffer.slice(index + HEADER_SIZE, length - HEADER_SIZE), dictionary, false);
+        message.ttl(buffer.getShort(index + 4));
+        message.sourceID(new UUID(buffer.getLong(index + 6), buffer.getLong(index + 14)));
+        message.serverID(new UUID(buffer.getLong(index + 22), buffer.getLong(index + 30)));
+        buffer.skipBytes(length);
+        return message;
+    }
+
+    private static Message unmarshallCompact(final ChannelBuffer buffer, final WireDictionary dictionary)
+            throws MessageFormatException {
+        final int first = buffer.readUnsignedByte();
+        final Type t = Type.findByCompactCode(first & COMPACT_TYPE_MASK);
+        if (t == null)
+            throw new MessageFormatException("Unknown compact message type[" + (first & COMPACT_TYPE_MASK) + "]");
+        final int flags = first & COMPACT_FLAGS_MASK;
+        if ((flags & ~(COMPACT_COMPRESSED | COMPACT_SEQUENCED)) != 0 || (flags != 0 && t != Type.Application && t != Type.Batch))
+            throw new MessageFormatException("Unsupported header flags[" + Integer.toHexString(flags) + "] for type " + t);
+        final short ttl = (short) readVarInt(buffer);
+        final UUID source = unmarshallNode(buffer, dictionary);
+        final UUID server = unmarshallNode(buffer, dictionary);
+        final long sequence = (flags & COMPACT_SEQUENCED) != 0 ? readVarLong(buffer) : NO_SEQUENCE;
+        final Message message = newMessage(t, buffer.readSlice(readVarInt(buffer)), dictionary,
+                (flags & COMPACT_COMPRESSED) != 0);
+        message.ttl(ttl);
+        message.sourceID(source);
+        message.serverID(server);
+        message.sequence(sequence);
+        return message;
+    }
+
+    private static UUID unmarshallNode(final ChannelBuffer buffer, final WireDictionary dictionary) throws MessageFormatException {
+        final int ref = readVarInt(buffer);
+        if (ref == NODE_NONE)
+            return NO_UUID;
+        else if (ref == NODE_INLINE || ref == NODE_DEFINE) {
+            final UUID node = new UUID(buffer.readLong(), buffer.readLong());
+            if (ref == NODE_DEFINE)
+                dictionary.defineNode(node);
+            return node;
+        } else
+            return dictionary.node(ref - NODE_REFERENCE);
+    }
 
+    private static Message newMessage(final Type t, final ChannelBuffer body, final WireDictionary dictionary,
+            final boolean compressed) throws MessageFormatException {
+        if (t == Type.Application)
+            return new ApplicationMessage(body, dictionary, compressed);
+        else if (t == Type.Batch)
+            return new BatchMessage(body, dictionary, compressed);
+        else if (t == Type.Subscription)
+            return new SubscriptionMessage(body);
+        else
+            return new TopicDefinitionMessage(body);
     }
 
 }
@@ -17,28 +17,216 @@
 
 package nerds.antelax.commons.net.pubsub;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
-import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelDownstreamHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.ExceptionEvent;
-import org.jboss.netty.handler.codec.frame.FrameDecoder;
-import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.util.internal.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
 
 final class MessageCodec {
 
-    private static final class Decoder extends FrameDecoder {
+    private static final Logger logger               = LoggerFactory.getLogger(MessageCodec.class);
+
+    /*
+     * Compact headers are negotiated by the connecting end sending an unsubscription from this reserved topic, which servers that
+     * predate compact headers treat as a no-op; a server that understands it replies in kind and both ends then encode with
+     * compact headers and topic IDs. Decoding never needs negotiating since the first byte of a frame tells the two formats apart.
+     * 
+     * Compression codecs are offered as further reserved topics in the same message, each naming a codec's ID and name; the reply
+     * lists those of them the accepting end has too. Both ends then compress with the first of those, and accept payloads
+     * compressed with any of them as they are.
+     */
+    private static final String COMPACT_HEADER_OFFER = "\u0000pubsub-compact-header";
+    private static final String COMPRESSION_OFFER    = "\u0000pubsub-compression:";
+
+    /*
+     * Length-prefixed frame decoder. Frames that arrive whole within a single read are passed upstream as slices of the read buffer
+     * (Netty allocates a fresh one per read, so nothing overwrites them later); only a frame straddling two or more reads is
+     * copied, once, into a buffer sized exactly for it. Unlike FrameDecoder's cumulation buffer that buffer is never compacted or
+     * re-used, so slices of it stay valid too.
+     */
+    static final class Decoder extends SimpleChannelUpstreamHandler {
+
+        private final boolean        offerCompactHeaders;
+        private final WireDictionary dictionary;
+        private ChannelBuffer        partial;
+        private long                 framesDecoded;
+        private long                 framesCopied;
+        private long                 bytesCopied;
+
+        private Decoder(final boolean offerCompactHeaders) {
+            this.offerCompactHeaders = offerCompactHeaders;
+            dictionary = new WireDictionary();
+        }
+
+        @Override
+        public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+            if (offerCompactHeaders)
+                Channels.write(ctx.getChannel(), compactHeaderOffer(CompressionCodecs.all()));
+            super.channelConnected(ctx, e);
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+            if (!(e.getMessage() instanceof ChannelBuffer)) {
+                super.messageReceived(ctx, e);
+                return;
+            }
+            final ChannelBuffer input = (ChannelBuffer) e.getMessage();
+            if (partial != null) {
+                if (!fillPartial(input))
+                    return;
+                final ChannelBuffer frame = partial;
+                partial = null;
+                ++framesCopied;
+                fire(ctx, Message.unmarshall(frame, dictionary), e);
+            }
+            int length;
+            while ((length = Message.frameLength(input)) >= 0 && input.readableBytes() >= length)
+                fire(ctx, Message.unmarshall(input, dictionary), e);
+            if (input.readable()) {
+                partial = ChannelBuffers.buffer(length >= 0 ? length : Message.MAX_HEADER_SIZE);
+                copy(input, partial);
+            }
+        }
+
+        /*
+         * Tops up the partial frame from input, returning true once it is whole. Until the header is complete we cannot know how
+         * long it is, so up to a maximal header's worth is copied and whatever turns out to belong to the next frame handed back.
+         */
+        private boolean fillPartial(final ChannelBuffer input) throws MessageFormatException {
+            int length = Message.frameLength(partial);
+            if (length < 0) {
+                copy(input, partial);
+                length = Message.frameLength(partial);
+                if (length < 0)
+                    return false;
+                final int excess = partial.readableBytes() - length;
+                if (excess > 0) {
+                    input.readerIndex(input.readerIndex() - excess);
+                    partial.writerIndex(length);
+                    bytesCopied -= excess;
+                }
+                if (partial.capacity() != length) {
+                    final ChannelBuffer frame = ChannelBuffers.buffer(length);
+                    frame.writeBytes(partial);
+                    partial = frame;
+                }
+            }
+            copy(input, partial);
+            return !partial.writable();
+        }
+
+        private void copy(final ChannelBuffer input, final ChannelBuffer target) {
+            final int count = Math.min(input.readableBytes(), target.writableBytes());
+            target.writeBytes(input, count);
+            bytesCopied += count;
+        }
 
-        private final Message.Builder builder = Message.newBuilder();
+        private void fire(final ChannelHandlerContext ctx, final Message message, final MessageEvent e)
+                throws MessageFormatException {
+            ++framesDecoded;
+            if (message instanceof TopicDefinitionMessage) {
+                final TopicDefinitionMessage tdm = (TopicDefinitionMessage) message;
+                logger.trace("Remote end of channel[{}] defined topic ID {} as [{}]",
+                        new Object[] { ctx.getChannel(), tdm.id, tdm.topic });
+                dictionary.define(tdm.id, tdm.topic);
+            } else if (isCompactHeaderOffer(message)) {
+                final Encoder encoder = ctx.getPipeline().get(Encoder.class);
+                if (encoder != null) {
+                    final List<CompressionCodec> codecs = offeredCodecs((SubscriptionMessage) message);
+                    if (!offerCompactHeaders)
+                        Channels.write(ctx.getChannel(), compactHeaderOffer(codecs));
+                    encoder.compact(codecs);
+                    logger.debug("Using compact headers on channel[{}] with compression codecs {}", ctx.getChannel(), codecs);
+                }
+            } else
+                Channels.fireMessageReceived(ctx, message, e.getRemoteAddress());
+        }
+
+        private static boolean isCompactHeaderOffer(final Message message) {
+            if (message instanceof SubscriptionMessage) {
+                final SubscriptionMessage sm = (SubscriptionMessage) message;
+                return !sm.subscribe && sm.topics.length >= 1 && COMPACT_HEADER_OFFER.equals(sm.topics[0]);
+            } else
+                return false;
+        }
+
+        private static SubscriptionMessage compactHeaderOffer(final Collection<CompressionCodec> codecs) {
+            final List<String> offer = new ArrayList<String>(1 + codecs.size());
+            offer.add(COMPACT_HEADER_OFFER);
+            for (final CompressionCodec codec : codecs)
+                offer.add(COMPRESSION_OFFER + codec.id() + ":" + codec.name());
+            return new SubscriptionMessage(false, offer.toArray(new String[offer.size()]));
+        }
+
+        /*
+         * Those of the codecs offered that we have too, in the order offered; offers we can't make sense of are ignored rather than
+         * failing the negotiation.
+         */
+        private static List<CompressionCodec> offeredCodecs(final SubscriptionMessage offer) {
+            final List<CompressionCodec> rv = new ArrayList<CompressionCodec>();
+            for (int pos = 1; pos < offer.topics.length; ++pos) {
+                final String topic = offer.topics[pos];
+                final int separator = topic.indexOf(':', COMPRESSION_OFFER.length());
+                if (!topic.startsWith(COMPRESSION_OFFER) || separator < 0)
+                    continue;
+                try {
+                    final CompressionCodec codec = CompressionCodecs.byID(Integer.parseInt(topic.substring(
+                            COMPRESSION_OFFER.length(), separator)));
+                    if (codec != null && codec.name().equals(topic.substring(separator + 1)))
+                        rv.add(codec);
+                } catch (final NumberFormatException nfe) {
+                    logger.debug("Ignoring malformed compression offer[{}]", topic);
+                }
+            }
+            return rv;
+        }
+
+        long framesDecoded() {
+            return framesDecoded;
+        }
+
+        long framesCopied() {
+            return framesCopied;
+        }
+
+        long bytesCopied() {
+            return bytesCopied;
+        }
 
         @Override
-        protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final ChannelBuffer buffer)
-                throws Exception {
-            return builder.add(buffer);
+        public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+            partial = null;
+            logger.debug("Decoded {} frames on channel[{}], {} of them copied ({} bytes)",
+                    new Object[] { framesDecoded, e.getChannel(), framesCopied, bytesCopied });
+            final Encoder encoder = ctx.getPipeline().get(Encoder.class);
+            if (encoder != null)
+                logger.debug("Encoded {} frames ({} bytes) on channel[{}]",
+                        new Object[] { encoder.framesEncoded(), encoder.bytesEncoded(), e.getChannel() });
+            super.channelClosed(ctx, e);
         }
 
         @Override
@@ -50,17 +238,200 @@ final class MessageCodec {
         }
     }
 
-    private static final class Encoder extends OneToOneEncoder {
+    /*
+     * Encodes messages as they go downstream, with version 1 headers until compact headers are agreed for the channel. With compact
+     * headers, the first time a topic or node ID is written on the channel it is assigned a number and defined in the same write;
+     * from then on only the number is sent. Numbers only become visible to other writers once their definition has been passed
+     * downstream, so no frame can overtake the definition it depends on.
+     * 
+     * Application messages are compressed with the agreed codec, if any, once over its threshold. Payloads that arrive compressed
+     * are passed on as they are if the remote end agreed to that codec, and only decompressed otherwise.
+     */
+    static final class Encoder implements ChannelDownstreamHandler {
+
+        private static final Map<String, Integer> NO_PENDING_TOPICS = Collections.emptyMap();
+
+        private final Map<String, Integer>        topicIDs;
+        private final Map<UUID, Integer>          nodeRefs;
+        private int                               nextTopicID;
+        private int                               nextNode;
+        private volatile boolean                  compact;
+        private volatile CompressionCodec         compressor;
+        private volatile Set<Integer>             decompressors;
+        private final AtomicLong                  framesEncoded;
+        private final AtomicLong                  bytesEncoded;
+
+        private Encoder() {
+            topicIDs = new ConcurrentHashMap<String, Integer>();
+            nodeRefs = new ConcurrentHashMap<UUID, Integer>();
+            nodeRefs.put(Message.NO_UUID, Message.NODE_NONE);
+            nextTopicID = 0;
+            nextNode = 0;
+            compact = false;
+            compressor = null;
+            decompressors = Collections.emptySet();
+            framesEncoded = new AtomicLong();
+            bytesEncoded = new AtomicLong();
+        }
+
+        void compact() {
+            compact(Collections.<CompressionCodec> emptyList());
+        }
+
+        /**
+         * @param codecs
+         *            the compression codecs agreed with the remote end, in order of preference
+         */
+        void compact(final List<CompressionCodec> codecs) {
+            final Set<Integer> ids = new HashSet<Integer>();
+            for (final CompressionCodec codec : codecs)
+                ids.add(codec.id());
+            compressor = codecs.isEmpty() ? null : codecs.get(0);
+            decompressors = ids;
+            compact = true;
+        }
+
+        long framesEncoded() {
+            return framesEncoded.get();
+        }
+
+        long bytesEncoded() {
+            return bytesEncoded.get();
+        }
 
         @Override
-        protected Object encode(final ChannelHandlerContext ctx, final Channel channel, final Object msg) throws Exception {
-            if (msg instanceof Message) {
-                final Message m = (Message) msg;
-                final ChannelBuffer rv = ChannelBuffers.dynamicBuffer(m.headerSize() + m.estimatedBodySize());
-                m.marshall(rv);
-                return ChannelBuffers.unmodifiableBuffer(rv);
+        public void handleDownstream(final ChannelHandlerContext ctx, final ChannelEvent evt) throws Exception {
+            if (!(evt instanceof MessageEvent) || !(((MessageEvent) evt).getMessage() instanceof Message)) {
+                ctx.sendDownstream(evt);
+                return;
+            }
+            final MessageEvent e = (MessageEvent) evt;
+            final Message m;
+            try {
+                m = compression((Message) e.getMessage());
+            } catch (final MessageFormatException mfe) {
+                logger.warn("Unable to decompress message for channel[" + ctx.getChannel() + "], not sending it", mfe);
+                e.getFuture().setFailure(mfe);
+                return;
+            }
+            if (!compact) {
+                write(ctx, e, m instanceof BatchMessage ? ((BatchMessage) m).encodeUnbatched() : m.encode());
+                return;
+            }
+            final Integer sourceRef = nodeRefs.get(node(m.sourceID()));
+            final Integer serverRef = nodeRefs.get(node(m.serverID()));
+            if (sourceRef != null && serverRef != null && topicsDefined(m))
+                write(ctx, e, encodeCompact(m, NO_PENDING_TOPICS, sourceRef, serverRef));
+            else
+                writeDefining(ctx, e, m);
+        }
+
+        /*
+         * Compresses or decompresses the payload(s) of m for the channel, creating a new message if there are any to change.
+         */
+        private Message compression(final Message m) throws MessageFormatException {
+            if (m instanceof ApplicationMessage)
+                return compression((ApplicationMessage) m);
+            else if (m instanceof BatchMessage) {
+                final BatchMessage batch = (BatchMessage) m;
+                final List<ApplicationMessage> messages = new ArrayList<ApplicationMessage>(batch.messages.size());
+                boolean changed = false;
+                for (final ApplicationMessage am : batch.messages) {
+                    final ApplicationMessage prepared = compression(am);
+                    messages.add(prepared);
+                    changed |= prepared != am;
+                }
+                if (!changed)
+                    return m;
+                final BatchMessage rv = new BatchMessage(messages);
+                batch.copyHeaderTo(rv);
+                return rv;
             } else
-                return msg;
+                return m;
+        }
+
+        private ApplicationMessage compression(final ApplicationMessage am) throws MessageFormatException {
+            if (!compact || (am.compressed() && !decompressors.contains(am.codecID())))
+                return am.decompress();
+            final CompressionCodec codec = compressor;
+            return codec != null ? am.compress(codec) : am;
+        }
+
+        private boolean topicsDefined(final Message m) {
+            if (m instanceof ApplicationMessage)
+                return topicIDs.containsKey(((ApplicationMessage) m).topic);
+            else if (m instanceof BatchMessage) {
+                for (final ApplicationMessage am : ((BatchMessage) m).messages)
+                    if (!topicIDs.containsKey(am.topic))
+                        return false;
+            }
+            return true;
+        }
+
+        private synchronized void writeDefining(final ChannelHandlerContext ctx, final MessageEvent e, final Message m) {
+            final UUID source = node(m.sourceID());
+            final UUID server = node(m.serverID());
+            Integer sourceRef = nodeRefs.get(source);
+            final boolean defineSource = sourceRef == null && nextNode < WireDictionary.MAX_NODES;
+            if (sourceRef == null)
+                sourceRef = defineSource ? Message.NODE_DEFINE : Message.NODE_INLINE;
+            Integer serverRef = nodeRefs.get(server);
+            final boolean defineServer = serverRef == null && !(defineSource && server.equals(source))
+                    && nextNode + (defineSource ? 1 : 0) < WireDictionary.MAX_NODES;
+            if (serverRef == null)
+                if (defineSource && server.equals(source))
+                    serverRef = Message.NODE_REFERENCE + nextNode;
+                else
+                    serverRef = defineServer ? Message.NODE_DEFINE : Message.NODE_INLINE;
+            final Map<String, Integer> pending = new HashMap<String, Integer>();
+            final List<ChannelBuffer> buffers = new ArrayList<ChannelBuffer>();
+            if (m instanceof ApplicationMessage)
+                define(((ApplicationMessage) m).topic, pending, buffers);
+            else if (m instanceof BatchMessage)
+                for (final ApplicationMessage am : ((BatchMessage) m).messages)
+                    define(am.topic, pending, buffers);
+            buffers.add(encodeCompact(m, pending, sourceRef, serverRef));
+            write(ctx, e, ChannelBuffers.wrappedBuffer(buffers.toArray(new ChannelBuffer[buffers.size()])));
+            if (defineSource)
+                nodeRefs.put(source, Message.NODE_REFERENCE + nextNode++);
+            if (defineServer)
+                nodeRefs.put(server, Message.NODE_REFERENCE + nextNode++);
+            topicIDs.putAll(pending);
+            nextTopicID += pending.size();
+        }
+
+        /*
+         * Assigns the next free ID to topic if it has none yet and there is one to spare, adding its definition to the buffers to be
+         * written ahead of the frame using it.
+         */
+        private void define(final String topic, final Map<String, Integer> pending, final List<ChannelBuffer> buffers) {
+            final int id = nextTopicID + pending.size();
+            if (topicIDs.containsKey(topic) || pending.containsKey(topic) || id >= WireDictionary.MAX_TOPICS)
+                return;
+            pending.put(topic, id);
+            buffers.add(new TopicDefinitionMessage(id, topic).encodeCompact(Message.NODE_NONE, Message.NODE_NONE));
+        }
+
+        private void write(final ChannelHandlerContext ctx, final MessageEvent e, final ChannelBuffer encoded) {
+            framesEncoded.incrementAndGet();
+            bytesEncoded.addAndGet(encoded.readableBytes());
+            Channels.write(ctx, e.getFuture(), encoded, e.getRemoteAddress());
+        }
+
+        private ChannelBuffer encodeCompact(final Message m, final Map<String, Integer> pending, final int sourceRef,
+                final int serverRef) {
+            if (m instanceof ApplicationMessage) {
+                final String topic = ((ApplicationMessage) m).topic;
+                final Integer topicID = topicIDs.containsKey(topic) ? topicIDs.get(topic) : pending.get(topic);
+                return ((ApplicationMessage) m).encodeCompact(topicID != null ? topicID : ApplicationMessage.INLINE_TOPIC,
+                        sourceRef, serverRef);
+            } else if (m instanceof BatchMessage)
+                return ((BatchMessage) m).encodeCompact(topicIDs, pending, sourceRef, serverRef);
+            return m.encodeCompact(sourceRef, serverRef);
+        }
+
+        private static UUID node(final UUID id) {
+            return id != null ? id : Message.NO_UUID;
         }
 
     }
@@ -74,7 +445,15 @@ final class MessageCodec {
     }
 
     static ChannelUpstreamHandler decoder() {
-        return new Decoder();
+        return decoder(false);
+    }
+
+    /**
+     * @param offerCompactHeaders
+     *            true on the connecting end of a channel, to offer compact headers once connected
+     */
+    static ChannelUpstreamHandler decoder(final boolean offerCompactHeaders) {
+        return new Decoder(offerCompactHeaders);
     }
 
 }
@@ -17,53 +17,50 @@
 
 package nerds.antelax.commons.net.pubsub;
 
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
-final class NettyToJDKFuture implements Future<Boolean> {
+/*
+ * The outcome of a write: true once written, false if it failed, and cancelled (get() throwing) if the write was cancelled. A failed
+ * write is not an exception, so a FutureCallback is told of it through onSuccess(false) rather than onFailure().
+ * Listeners are registered directly on the wrapped ChannelFuture and so run on whichever thread completes the write (usually an I/O
+ * worker) when given a same-thread executor, instead of a thread having to block in get().
+ */
+final class NettyToJDKFuture implements ListenableFuture<Boolean> {
 
-    static final Future<Boolean> WRITE_FAILED = new Future<Boolean>() {
+    static final ListenableFuture<Boolean> WRITE_FAILED = Futures.immediateFuture(Boolean.FALSE);
 
-                                                  @Override
-                                                  public boolean cancel(final boolean mayInterruptIfRunning) {
-                                                      return false;
-                                                  }
-
-                                                  @Override
-                                                  public boolean isCancelled() {
-                                                      return false;
-                                                  }
-
-                                                  @Override
-                                                  public boolean isDone() {
-                                                      return true;
-                                                  }
-
-                                                  @Override
-                                                  public Boolean get() throws InterruptedException, ExecutionException {
-                                                      return Boolean.FALSE;
-                                                  }
-
-                                                  @Override
-                                                  public Boolean get(final long timeout, final TimeUnit unit)
-                                                          throws InterruptedException, ExecutionException, TimeoutException {
-                                                      return Boolean.FALSE;
-                                                  }
-
-                                              };
-    private final ChannelFuture  wrapped;
+    private final ChannelFuture            wrapped;
 
     public NettyToJDKFuture(final ChannelFuture wrapped) {
         Preconditions.checkNotNull(wrapped);
         this.wrapped = wrapped;
     }
 
+    @Override
+    public void addListener(final Runnable listener, final Executor executor) {
+        Preconditions.checkNotNull(listener, "Listener cannot be null");
+        Preconditions.checkNotNull(executor, "Executor cannot be null");
+        wrapped.addListener(new ChannelFutureListener() {
+
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                executor.execute(listener);
+            }
+
+        });
+    }
+
     @Override
     public boolean cancel(final boolean mayInterruptIfRunning) {
         return wrapped.cancel();
@@ -79,9 +76,15 @@ final class NettyToJDKFuture implements Future<Boolean> {
         return wrapped.isDone();
     }
 
+    /**
+     * @throws CancellationException
+     *             if the write was cancelled
+     */
     @Override
     public Boolean get() throws InterruptedException, ExecutionException {
         wrapped.await();
+        if (wrapped.isCancelled())
+            throw new CancellationException("Write was cancelled");
         return wrapped.isSuccess();
     }
 
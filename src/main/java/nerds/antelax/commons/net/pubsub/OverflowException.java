@@ -0,0 +1,42 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+/*
+ * Why a message was not written, when that is down to flow control rather than the channel: routine under load, so instances are
+ * shared and carry no stack trace.
+ */
+@SuppressWarnings("serial")
+final class OverflowException extends Exception {
+
+    static final OverflowException QUEUE_FULL     = new OverflowException("Queue full");
+    static final OverflowException NOT_WRITABLE   = new OverflowException("Channel not writable");
+    static final OverflowException TIMED_OUT      = new OverflowException("Timed out waiting for room in queue");
+    static final OverflowException DROPPED        = new OverflowException("Dropped to make room for newer messages");
+    static final OverflowException CONFLATED      = new OverflowException("Replaced by a newer message on the same topic");
+    static final OverflowException CHANNEL_CLOSED = new OverflowException("Channel closed before message was written");
+
+    private OverflowException(final String message) {
+        super(message);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
+}
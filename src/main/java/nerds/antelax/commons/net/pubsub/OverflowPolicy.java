@@ -0,0 +1,46 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+/**
+ * What a {@link PubSubClient} does with a message published while the connection is not keeping up and its queue of messages
+ * waiting to be written is full.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Wait for room in the queue, up to the client's overflow timeout, then fail the publish. Never publish with this policy from a
+     * thread that completes writes, such as a listener on a publish future called back on the I/O thread.
+     */
+    BLOCK,
+
+    /**
+     * Fail the publish straight away, without queueing it, whenever the connection isn't keeping up.
+     */
+    FAIL,
+
+    /**
+     * Fail the publish of the message that didn't fit.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Fail the publish of as many of the longest queued messages as it takes to fit the new one in.
+     */
+    DROP_OLDEST;
+
+}
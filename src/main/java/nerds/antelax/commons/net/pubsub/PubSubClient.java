@@ -22,19 +22,24 @@ import static nerds.antelax.commons.base.Conversions.asArray;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import nerds.antelax.commons.base.Pair;
 import nerds.antelax.commons.net.netty.UpstreamMessageFilteringHandler;
 
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelDownstreamHandler;
-import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
@@ -42,12 +47,12 @@ import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.util.concurrent.ListenableFuture;
 
 public final class PubSubClient {
 
@@ -60,6 +65,27 @@ public final class PubSubClient {
 
     }
 
+    /**
+     * A callback that, with {@link PubSubClient#orderedDelivery(int)}, gets messages in batches: everything waiting for it on the
+     * topics sharing a lane at the time. Otherwise it gets them one at a time through {@link #onMessage(ByteBuffer)}.
+     */
+    public static interface BatchMessageCallback extends MessageCallback {
+
+        void onMessages(final List<ByteBuffer> messages) throws Exception;
+
+    }
+
+    /**
+     * A callback that is also given the key of keyed messages (see {@link PubSubClient#publish(ByteBuffer, String, String)}),
+     * through {@link #onMessage(String, ByteBuffer)}; messages without a key go to {@link #onMessage(ByteBuffer)}. Keyed messages
+     * are delivered to it one at a time, even if it is also a {@link BatchMessageCallback}.
+     */
+    public static interface KeyedMessageCallback extends MessageCallback {
+
+        void onMessage(final String key, final ByteBuffer message) throws Exception;
+
+    }
+
     /**
      * Network connection lifecycle callback, applications can optionally implement this interface to take action(s) when a network
      * connection goes up/down.
@@ -78,11 +104,13 @@ public final class PubSubClient {
 
     private final ClientMessageHandler       clientHandler;
     private final RoundRobinReconnectHandler reconnectHandler;
+    private final BackpressureHandler        backpressureHandler;
 
-    private final ExecutorService            bossService;
-    private final ExecutorService            workerService;
-    private final ChannelFactory             factory;
+    private final TransportResources         resources;
+    private final AtomicBoolean              holdsSharedResources;
     private final ClientBootstrap            bootstrap;
+    private final ClientBootstrap            localBootstrap;
+    private volatile short                   hops;
 
     public PubSubClient(final ExecutorService service, final Collection<InetSocketAddress> servers) {
         this(service, null, DEFAULT_TIMEOUT_SECONDS, TimeUnit.SECONDS, servers);
@@ -100,29 +128,45 @@ public final class PubSubClient {
 
     public PubSubClient(final ExecutorService service, final NetworkConnectionLifecycleCallback lifecycleCallback,
             final int retryDelay, final TimeUnit retryUnits, final Collection<InetSocketAddress> servers) {
-        this(null, null, service, lifecycleCallback, retryDelay, retryUnits, servers);
+        this(null, service, lifecycleCallback, retryDelay, retryUnits, servers);
+    }
+
+    /**
+     * @param resources
+     *            the I/O threads and timer to use, or null to share those of the JVM wide default
+     */
+    public PubSubClient(final TransportResources resources, final ExecutorService service,
+            final NetworkConnectionLifecycleCallback lifecycleCallback, final int retryDelay, final TimeUnit retryUnits,
+            final Collection<InetSocketAddress> servers) {
+        this(resources, null, null, null, service, lifecycleCallback, retryDelay, retryUnits, servers);
     }
 
     /*
      * For use in {@link PubSubServer} only, which needs to filter/intercept incoming messages from other servers directly to access
-     * source/server IDs on messages and prevent endless server-to-server routing loops.
+     * source/server IDs on messages and prevent endless server-to-server routing loops. Subscriptions are sent with the server's
+     * ID, so that the peer can tell them from those of its clients.
      */
-    PubSubClient(final ChannelHandler incomingInterceptor, final Predicate<Object> incomingFilter, final ExecutorService service,
+    PubSubClient(final TransportResources resources, final ChannelHandler incomingInterceptor,
+            final Predicate<Object> incomingFilter, final UUID serverID, final ExecutorService service,
             final NetworkConnectionLifecycleCallback lifecycleCallback, final int retryDelay, final TimeUnit retryUnits,
             final Collection<InetSocketAddress> servers) {
         Preconditions.checkArgument((incomingInterceptor == null && incomingFilter == null)
                 || (incomingInterceptor != null && incomingFilter != null));
         Preconditions.checkNotNull(service, "ExecutorService cannot be null");
         Preconditions.checkNotNull(servers, "Must give at least one server address to connect to");
-        clientHandler = new ClientMessageHandler(service);
-        bossService = Executors.newCachedThreadPool();
-        workerService = Executors.newCachedThreadPool();
-        factory = new NioClientSocketChannelFactory(bossService, workerService);
-        bootstrap = new ClientBootstrap(factory);
-        reconnectHandler = new RoundRobinReconnectHandler(bootstrap, retryDelay, retryUnits, lifecycleCallback, servers);
+        backpressureHandler = new BackpressureHandler();
+        holdsSharedResources = new AtomicBoolean(resources == null);
+        this.resources = resources == null ? TransportResources.acquireShared() : resources;
+        clientHandler = new ClientMessageHandler(service, this.resources.timer());
+        bootstrap = new ClientBootstrap(this.resources.clientChannelFactory());
+        localBootstrap = new ClientBootstrap(LocalTransport.clientChannelFactory());
+        reconnectHandler = new RoundRobinReconnectHandler(bootstrap, this.resources.timer(), retryDelay, retryUnits,
+                lifecycleCallback, servers);
         final UpstreamMessageFilteringHandler filteringHandler = incomingFilter != null ? new UpstreamMessageFilteringHandler(
                 incomingFilter) : null;
+        hops = Message.DEFAULT_TTL;
         final UUID ourSourceID = UUID.randomUUID();
+        final AtomicLong sequence = new AtomicLong(Message.NO_SEQUENCE);
         logger.info("New client created with ID: {}", ourSourceID);
         final ChannelDownstreamHandler uuidPopulatingHandler = new SimpleChannelDownstreamHandler() {
 
@@ -131,8 +175,21 @@ public final class PubSubClient {
                 final Object o = e.getMessage();
                 if (o instanceof Message) {
                     final Message m = (Message) o;
-                    if (m.sourceID() == null || m.sourceID().equals(Message.NO_UUID))
+                    if (m.sourceID() == null || m.sourceID().equals(Message.NO_UUID)) {
                         m.sourceID(ourSourceID);
+                        if (m.type == Message.Type.Application) {
+                            m.ttl(hops);
+                            m.sequence(sequence.incrementAndGet());
+                        } else if (m.type == Message.Type.Batch) {
+                            // One number for each message, the batch taking the first
+                            final int count = ((BatchMessage) m).messages.size();
+                            m.ttl(hops);
+                            m.sequence(sequence.addAndGet(count) - count + 1);
+                        }
+                    }
+                    if (serverID != null && m.type == Message.Type.Subscription
+                            && (m.serverID() == null || m.serverID().equals(Message.NO_UUID)))
+                        m.serverID(serverID);
                 }
                 super.writeRequested(ctx, e);
             }
@@ -143,14 +200,27 @@ public final class PubSubClient {
             @Override
             public ChannelPipeline getPipeline() {
                 if (incomingInterceptor != null && filteringHandler != null)
-                    return Channels.pipeline(reconnectHandler, MessageCodec.decoder(), MessageCodec.encoder(),
-                            uuidPopulatingHandler, filteringHandler, incomingInterceptor, clientHandler);
+                    return Channels.pipeline(reconnectHandler, MessageCodec.decoder(true), MessageCodec.encoder(),
+                            backpressureHandler, uuidPopulatingHandler, filteringHandler, incomingInterceptor, clientHandler);
+                else
+                    return Channels.pipeline(reconnectHandler, MessageCodec.decoder(true), MessageCodec.encoder(),
+                            backpressureHandler, uuidPopulatingHandler, clientHandler);
+            }
+
+        });
+        localBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+
+            @Override
+            public ChannelPipeline getPipeline() {
+                if (incomingInterceptor != null && filteringHandler != null)
+                    return Channels.pipeline(reconnectHandler, backpressureHandler, uuidPopulatingHandler, filteringHandler,
+                            incomingInterceptor, clientHandler);
                 else
-                    return Channels.pipeline(reconnectHandler, MessageCodec.decoder(), MessageCodec.encoder(),
-                            uuidPopulatingHandler, clientHandler);
+                    return Channels.pipeline(reconnectHandler, backpressureHandler, uuidPopulatingHandler, clientHandler);
             }
 
         });
+        reconnectHandler.localBootstrap(localBootstrap);
         bootstrap.setOption("tcpNoDelay", true);
         bootstrap.setOption("keepAlive", true);
         logger.trace(
@@ -165,19 +235,78 @@ public final class PubSubClient {
 
     public void stop() throws InterruptedException {
         logger.trace("Disabling/shutting down re-connect handler");
-        reconnectHandler.shutdown();
-        logger.trace("Releasing factory external resources");
-        factory.releaseExternalResources();
-        logger.trace("Shutting down boss service");
-        bossService.shutdown();
-        logger.trace("Shutting down worker service");
-        workerService.shutdown();
+        clientHandler.stop();
+        final ChannelFuture closed = reconnectHandler.shutdown();
+        if (closed != null)
+            closed.await();
+        if (holdsSharedResources.getAndSet(false)) {
+            logger.trace("Releasing shared transport resources");
+            TransportResources.releaseShared();
+        }
         logger.trace("Client shutdown complete");
     }
 
+    /**
+     * @param topic
+     *            the topic, or a pattern of topics: segments are separated by '.', a '*' segment matches any one segment and a '#'
+     *            last segment matches any number of remaining segments, so <code>a.b.*</code> matches <code>a.b.c</code> and
+     *            <code>a.#</code> matches <code>a</code>, <code>a.b</code> and <code>a.b.c</code>
+     */
     public void subscribe(final String topic, final MessageCallback... callbacks) {
+        Preconditions.checkArgument(TopicMatcher.isValid(topic), "Only the last segment of a pattern can match several segments");
         logger.trace("Subscribing callbacks [{}] for topic[{}]", asArray(callbacks, topic));
-        clientHandler.subscribe(topic, callbacks);
+        clientHandler.subscribe(topic, false, callbacks);
+    }
+
+    /**
+     * Subscribes to a topic that the server keeps a log of (see {@link PubSubServer#durableTopics}), starting with the message at
+     * <code>offset</code> in it, or the oldest one kept if that's later, and going live once caught up. If the topic is already
+     * subscribed to, or the server doesn't keep a log of it, this is the same as {@link #subscribe(String, MessageCallback...)}.
+     * Only the first connection made after subscribing starts from the log; re-connections start from then on, see
+     * {@link #resumeOnReconnect(boolean)}.
+     * 
+     * @param topic
+     *            the topic, which can't be a pattern
+     */
+    public void subscribeFrom(final String topic, final long offset, final MessageCallback... callbacks) {
+        Preconditions.checkArgument(!TopicMatcher.isPattern(topic), "Cannot subscribe to a pattern from an offset");
+        Preconditions.checkArgument(offset >= 0, "Offset cannot be negative");
+        logger.trace("Subscribing callbacks [{}] for topic[{}] from offset {}", asArray(callbacks, topic, offset));
+        clientHandler.subscribe(topic, false, new TopicLogs.Start(false, offset), callbacks);
+    }
+
+    /**
+     * Like {@link #subscribeFrom(String, long, MessageCallback...)}, starting with the first message the server logged at or after
+     * <code>timeMillis</code>.
+     */
+    public void subscribeSince(final String topic, final long timeMillis, final MessageCallback... callbacks) {
+        Preconditions.checkArgument(!TopicMatcher.isPattern(topic), "Cannot subscribe to a pattern from a time");
+        Preconditions.checkArgument(timeMillis >= 0, "Time cannot be negative");
+        logger.trace("Subscribing callbacks [{}] for topic[{}] since {}", asArray(callbacks, topic, timeMillis));
+        clientHandler.subscribe(topic, false, new TopicLogs.Start(true, timeMillis), callbacks);
+    }
+
+    /**
+     * Subscribes callbacks that are run straight from the I/O thread that received the message, rather than through the callback
+     * executor: the lowest latency there is, but while a callback runs nothing else is read from the server. Callbacks must be
+     * quick and must never block; see {@link #inlineBudget(long, TimeUnit, boolean)}. A callback subscribed inline is delivered
+     * to inline on all its topics.
+     * 
+     * @see #subscribe(String, MessageCallback...)
+     */
+    public void subscribeInline(final String topic, final MessageCallback... callbacks) {
+        Preconditions.checkArgument(TopicMatcher.isValid(topic), "Only the last segment of a pattern can match several segments");
+        logger.trace("Subscribing inline callbacks [{}] for topic[{}]", asArray(callbacks, topic));
+        clientHandler.subscribe(topic, true, callbacks);
+    }
+
+    /**
+     * Sets how long an inline callback may hold up the I/O thread, by default 1ms. Callbacks still running over budget are logged
+     * as they run, and ones that return over budget are logged and, if <code>demote</code> is set, delivered to through the
+     * callback executor from then on.
+     */
+    public void inlineBudget(final long budget, final TimeUnit budgetUnits, final boolean demote) {
+        clientHandler.inlineBudget(budget, budgetUnits, demote);
     }
 
     public void unsubscribe(final String topic, final MessageCallback... callbacks) {
@@ -185,16 +314,192 @@ public final class PubSubClient {
         clientHandler.unsubscribe(topic, callbacks);
     }
 
-    public Future<Boolean> publish(final byte[] message, final String topic) {
+    /**
+     * Delivers messages to callbacks in the order they arrived on each topic, by hashing topics onto a number of lanes that each run
+     * on at most one thread of the callback executor at a time. Each lane delivers as many waiting messages as it can per task,
+     * rather than the default of one task per message per callback. Best set before {@link #start()}.
+     * 
+     * @param lanes
+     *            the number of lanes, so the most callbacks running at once; 0 to go back to the default
+     */
+    public void orderedDelivery(final int lanes) {
+        clientHandler.lanes(lanes);
+    }
+
+    /**
+     * Delivers messages to callbacks from a number of dedicated consumer threads, handed over from the I/O thread through a ring of
+     * <code>capacity</code> preallocated slots rather than as tasks on the callback executor. Messages on a topic are delivered in
+     * order, by the one consumer thread its topic hashes to. When the slowest consumer is a full ring behind, reading from the
+     * server waits for it. Best set before {@link #start()}; {@link #orderedDelivery(int)} goes back to the executor.
+     * 
+     * @param capacity
+     *            the number of slots in the ring, a power of two
+     */
+    public void ringDelivery(final int capacity, final int consumers, final WaitStrategy strategy) {
+        clientHandler.ring(capacity, consumers, strategy);
+    }
+
+    /**
+     * Delivers only the latest message on each of <code>topics</code>: one that hasn't been delivered yet when a newer one arrives on
+     * its topic is skipped, so callbacks that fall behind catch up straight to the current value, and at most one message per topic
+     * is ever waiting. Messages on these topics go through the callback executor in order, whatever the other topics go through;
+     * inline callbacks are unaffected. For topics that carry state rather than events.
+     * 
+     * @param topics
+     *            the topics to conflate, any of which may be a pattern, or none to go back to delivering every message
+     */
+    public void conflatedDelivery(final String... topics) {
+        clientHandler.conflate(topics);
+    }
+
+    /**
+     * @return the number of messages skipped for a newer one on the same topic, see {@link #conflatedDelivery(String...)}
+     */
+    public long conflatedMessages() {
+        return clientHandler.conflatedMessages();
+    }
+
+    /**
+     * Whether to connect to a server running in this VM in-process, which is the default, rather than over TCP. In-process,
+     * messages are handed between client and server as they are, without being encoded or copied, and are delivered on the
+     * publishing thread; connections to servers elsewhere are unaffected. Takes effect from the next connection made.
+     */
+    public void localTransport(final boolean enabled) {
+        reconnectHandler.localBootstrap(enabled ? localBootstrap : null);
+    }
+
+    /**
+     * Sets how long to wait for a server to answer before also trying the next best one when connecting, 250ms by default; the
+     * first to answer is kept. Servers are tried fastest first, going by how long connecting to them has taken before.
+     */
+    public void connectionAttemptDelay(final long delay, final TimeUnit units) {
+        reconnectHandler.attemptDelay(delay, units);
+    }
+
+    /**
+     * @return the number of times a connection to a server has been made, including the first
+     */
+    public long reconnects() {
+        return reconnectHandler.reconnects();
+    }
+
+    /**
+     * @return how long it took to connect the last time the connection was lost (or since starting, for the first), including any
+     *         waits between retries
+     */
+    public long lastReconnectTime(final TimeUnit units) {
+        return units.convert(reconnectHandler.lastReconnectTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the smoothed round trip time to each server connected to so far, taken from how long connecting to it took
+     */
+    public Map<InetSocketAddress, Long> roundTripTimes(final TimeUnit units) {
+        final Map<InetSocketAddress, Long> rv = new HashMap<InetSocketAddress, Long>();
+        for (final Map.Entry<InetSocketAddress, Long> entry : reconnectHandler.roundTripTimes().entrySet())
+            rv.put(entry.getKey(), units.convert(entry.getValue(), TimeUnit.NANOSECONDS));
+        return rv;
+    }
+
+    /**
+     * Whether to ask to be sent the messages missed while disconnected when re-subscribing after re-connecting, to whichever
+     * server; off by default. Only topics subscribed to by name (not by pattern) on the connection lost are resumed, and only as
+     * far back as the server keeps messages, see {@link PubSubServer#replay(int, long, TimeUnit)}. What was missed is worked out
+     * from the sequence numbers seen from each publisher on each topic, which are tracked from the moment this is turned on.
+     */
+    public void resumeOnReconnect(final boolean enabled) {
+        clientHandler.resumeOnReconnect(enabled);
+    }
+
+    /**
+     * Sets how many servers messages published from now on may pass through, counting the one we are connected to. The default of
+     * 2 suits servers connected to all their peers; a sparser arrangement of servers (a tree, a ring or several links between the
+     * same pair) needs as many as its longest route, which servers keep from delivering anything twice.
+     */
+    public void hops(final int hops) {
+        Preconditions.checkArgument(hops > 0 && hops <= Short.MAX_VALUE, "Hops must be between 1 and %s", Short.MAX_VALUE);
+        this.hops = (short) hops;
+    }
+
+    /**
+     * Sets the write buffer water marks for connections made from now on: once more than <code>high</code> bytes are waiting to be
+     * written to the server, published messages are held back by the client until fewer than <code>low</code> are.
+     */
+    public void writeBufferWaterMarks(final int low, final int high) {
+        backpressureHandler.waterMarks(low, high);
+    }
+
+    /**
+     * Bounds the messages held back while the server or network isn't keeping up, by default without limit. What happens to a
+     * message published when there's no room for it depends on the policy for its topic, <code>policy</code> unless set otherwise
+     * with {@link #overflowPolicy(String, OverflowPolicy)}.
+     * 
+     * @param maxQueuedBytes
+     *            the most payload bytes to hold back
+     * @param timeout
+     *            how long {@link OverflowPolicy#BLOCK} waits for room
+     */
+    public void overflowPolicy(final OverflowPolicy policy, final long maxQueuedBytes, final long timeout,
+            final TimeUnit timeoutUnits) {
+        backpressureHandler.overflow(policy, maxQueuedBytes, timeout, timeoutUnits);
+    }
+
+    /**
+     * @param policy
+     *            the overflow policy for messages on <code>topic</code>, or null to use the default
+     */
+    public void overflowPolicy(final String topic, final OverflowPolicy policy) {
+        backpressureHandler.overflow(topic, policy);
+    }
+
+    /**
+     * @return the number of published messages currently held back because the connection isn't keeping up
+     */
+    public int queuedMessages() {
+        return backpressureHandler.queuedMessages();
+    }
+
+    public long queuedBytes() {
+        return backpressureHandler.queuedBytes();
+    }
+
+    /**
+     * @return the number of messages not published because of their overflow policy, since the client was created
+     */
+    public long droppedMessages() {
+        return backpressureHandler.droppedMessages();
+    }
+
+    Channel channel() {
+        return reconnectHandler.channel();
+    }
+
+    /*
+     * For use in {@link PubSubServer} only, to subscribe to peers for the topics its own clients want
+     */
+    void interest(final Collection<String> subscribe, final Collection<String> unsubscribe) {
+        clientHandler.interest(subscribe, unsubscribe);
+    }
+
+    TransportResources resources() {
+        return resources;
+    }
+
+    public ListenableFuture<Boolean> publish(final byte[] message, final String topic) {
         return publish(ByteBuffer.wrap(message), topic);
     }
 
-    public Future<Boolean> publish(final byte[] message, final int offset, final int length, final String topic) {
+    public ListenableFuture<Boolean> publish(final byte[] message, final int offset, final int length, final String topic) {
         return publish(ByteBuffer.wrap(message, offset, length), topic);
     }
 
+    /**
+     * @return completes with true once the message has been written to the server, or false if it could not be; rather than
+     *         blocking on it, add a listener (see {@link com.google.common.util.concurrent.Futures#addCallback}) with a same-thread
+     *         executor to be called back from the I/O thread that completed the write
+     */
     @SuppressWarnings("unchecked")
-    public Future<Boolean> publish(final ByteBuffer message, final String topic) {
+    public ListenableFuture<Boolean> publish(final ByteBuffer message, final String topic) {
         Preconditions.checkNotNull(message, "Message can be empty but not null");
         Preconditions.checkNotNull(topic, "Topic can be empty but not null");
         final Channel channel = reconnectHandler.channel();
@@ -205,4 +510,45 @@ public final class PubSubClient {
                 : NettyToJDKFuture.WRITE_FAILED;
     }
 
+    /**
+     * Publishes a message for <code>key</code> on <code>topic</code>. On topics the server keeps as tables (see
+     * {@link PubSubServer#keyedTopics(long, String...)}) it replaces the key's previous message, or removes the key if empty; new
+     * subscribers get the latest message for every key. Subscribers get the key through a {@link KeyedMessageCallback}.
+     * 
+     * @param key
+     *            the key, which like the topic cannot contain the character U+0001
+     */
+    @SuppressWarnings("unchecked")
+    public ListenableFuture<Boolean> publish(final ByteBuffer message, final String topic, final String key) {
+        Preconditions.checkNotNull(message, "Message can be empty but not null");
+        Preconditions.checkNotNull(topic, "Topic can be empty but not null");
+        Preconditions.checkNotNull(key, "Key can be empty but not null");
+        final Channel channel = reconnectHandler.channel();
+        logger.trace(channel != null ? "Publishing message of length {} to topic[{}] for key[{}]"
+                : "Not currently connected to a server, dropping message of length {} to topic[{}] for key[{}]",
+                asArray(message.remaining(), topic, key));
+        return channel != null ? new NettyToJDKFuture(channel.write(new ApplicationMessage(message, topic, key)))
+                : NettyToJDKFuture.WRITE_FAILED;
+    }
+
+    /**
+     * Publishes several messages, each a (topic, message) pair, in a single frame and write rather than one per message. Topics need
+     * not be the same; the messages are delivered in order, all or none.
+     */
+    public ListenableFuture<Boolean> publish(final Iterable<? extends Pair<String, ByteBuffer>> messages) {
+        Preconditions.checkNotNull(messages, "Messages can be empty but not null");
+        final List<ApplicationMessage> batch = new ArrayList<ApplicationMessage>();
+        for (final Pair<String, ByteBuffer> message : messages) {
+            Preconditions.checkNotNull(message.first(), "Topic can be empty but not null");
+            Preconditions.checkNotNull(message.second(), "Message can be empty but not null");
+            batch.add(new ApplicationMessage(message.second(), message.first()));
+        }
+        Preconditions.checkArgument(!batch.isEmpty(), "Nothing to publish");
+        final Channel channel = reconnectHandler.channel();
+        logger.trace(channel != null ? "Publishing batch of {} messages"
+                : "Not currently connected to a server, dropping batch of {} messages", batch.size());
+        return channel != null ? new NettyToJDKFuture(channel.write(batch.size() == 1 ? batch.get(0) : new BatchMessage(batch)))
+                : NettyToJDKFuture.WRITE_FAILED;
+    }
+
 }
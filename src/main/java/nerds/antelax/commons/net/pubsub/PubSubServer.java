@@ -19,13 +19,16 @@ package nerds.antelax.commons.net.pubsub;
 
 import static nerds.antelax.commons.net.NetUtil.hostPortPairsFromString;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import nerds.antelax.commons.net.NetUtil;
 
@@ -41,7 +44,6 @@ import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.ChannelGroupFuture;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
-import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,13 +59,18 @@ public final class PubSubServer {
     private static final Logger                 logger          = LoggerFactory.getLogger(PubSubServer.class);
 
     private final Collection<InetSocketAddress> listenAddresses;
-    private final ExecutorService               bossService;
-    private final ExecutorService               workerService;
+    private final TransportResources            resources;
+    private final boolean                       sharedResources;
     private final ChannelFactory                factory;
     private final ServerBootstrap               bootstrap;
+    private final ServerBootstrap               localBootstrap;
     private final ChannelGroup                  openChannels;
 
     private final ServerMessageHandler          sharedMessageHandler;
+    private volatile int                        subscriberMaxMessages;
+    private volatile long                       subscriberMaxBytes;
+    private volatile SlowConsumerPolicy         slowConsumerPolicy;
+    private volatile long                       slowConsumerDisconnectMillis;
 
     /**
      * Giving a null or empty argument starts a local server. If a non-null, non-empty argument is given then start a server,
@@ -73,25 +80,35 @@ public final class PubSubServer {
      *             if the {@link Collection} argument is not empty but contains no local addresses to bind to
      */
     public PubSubServer(final Collection<InetSocketAddress> clusterDefinition) {
-        final Collection<InetSocketAddress> localAddrs = clusterDefinition != null ? Collections2.filter(clusterDefinition,
-                NetUtil.machineLocalSocketAddress()) : new LinkedList<InetSocketAddress>();
-        final Collection<InetSocketAddress> remoteAddrs = clusterDefinition != null ? Collections2.filter(clusterDefinition,
-                Predicates.not(NetUtil.machineLocalSocketAddress())) : new LinkedList<InetSocketAddress>();
-        if (clusterDefinition == null || clusterDefinition.isEmpty())
-            localAddrs.add(DEFAULT_ADDRESS);
-        else
-            Preconditions.checkArgument(!localAddrs.isEmpty(),
-                    "Attempt to start a server on a machine that is not part of the cluster definition");
+        this(null, clusterDefinition);
+    }
 
+    /**
+     * @param resources
+     *            the I/O threads and timer to use, both for clients and for connections to peer servers, or null to share those of
+     *            the JVM wide default
+     * @see #PubSubServer(Collection)
+     */
+    public PubSubServer(final TransportResources resources, final Collection<InetSocketAddress> clusterDefinition) {
+        this(resources, localAddresses(clusterDefinition), clusterDefinition != null ? Collections2.filter(clusterDefinition,
+                Predicates.not(NetUtil.machineLocalSocketAddress())) : new LinkedList<InetSocketAddress>());
+    }
+
+    /*
+     * Listens on localAddrs, taking remoteAddrs to be its peers whether on this machine or not
+     */
+    PubSubServer(final TransportResources resources, final Collection<InetSocketAddress> localAddrs,
+            final Collection<InetSocketAddress> remoteAddrs) {
         listenAddresses = Collections.unmodifiableCollection(localAddrs);
         openChannels = new DefaultChannelGroup(getClass().getName());
-        bossService = Executors.newCachedThreadPool();
-        workerService = Executors.newCachedThreadPool();
-        factory = new NioServerSocketChannelFactory(bossService, workerService);
+        sharedResources = resources == null;
+        this.resources = sharedResources ? TransportResources.acquireShared() : resources;
+        factory = this.resources.newServerChannelFactory();
         bootstrap = new ServerBootstrap(factory);
+        localBootstrap = new ServerBootstrap(LocalTransport.newServerChannelFactory());
         final UUID ourServerID = UUID.randomUUID();
         logger.info("New server created with ID: {}", ourServerID);
-        sharedMessageHandler = new ServerMessageHandler(new Predicate<Object>() {
+        sharedMessageHandler = new ServerMessageHandler(this.resources, ourServerID, new Predicate<Object>() {
 
             @Override
             public boolean apply(final Object o) {
@@ -117,12 +134,27 @@ public final class PubSubServer {
             }
 
         };
+        subscriberMaxMessages = Integer.MAX_VALUE;
+        subscriberMaxBytes = Long.MAX_VALUE;
+        slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+        slowConsumerDisconnectMillis = 0;
         bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
 
             @Override
             public ChannelPipeline getPipeline() {
-                return Channels.pipeline(MessageCodec.decoder(), MessageCodec.encoder(), uuidPopulatingHandler,
-                        sharedMessageHandler);
+                return Channels.pipeline(MessageCodec.decoder(), MessageCodec.encoder(), new SubscriberQueueHandler(
+                        subscriberMaxMessages, subscriberMaxBytes, slowConsumerPolicy, PubSubServer.this.resources.timer(),
+                        slowConsumerDisconnectMillis, TimeUnit.MILLISECONDS), uuidPopulatingHandler, sharedMessageHandler);
+            }
+
+        });
+        localBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(new SubscriberQueueHandler(subscriberMaxMessages, subscriberMaxBytes, slowConsumerPolicy,
+                        PubSubServer.this.resources.timer(), slowConsumerDisconnectMillis, TimeUnit.MILLISECONDS),
+                        uuidPopulatingHandler, sharedMessageHandler);
             }
 
         });
@@ -130,25 +162,145 @@ public final class PubSubServer {
         bootstrap.setOption("child.keepAlive", true);
     }
 
+    private static Collection<InetSocketAddress> localAddresses(final Collection<InetSocketAddress> clusterDefinition) {
+        final Collection<InetSocketAddress> localAddrs = clusterDefinition != null ? Collections2.filter(clusterDefinition,
+                NetUtil.machineLocalSocketAddress()) : new LinkedList<InetSocketAddress>();
+        if (clusterDefinition == null || clusterDefinition.isEmpty())
+            localAddrs.add(DEFAULT_ADDRESS);
+        else
+            Preconditions.checkArgument(!localAddrs.isEmpty(),
+                    "Attempt to start a server on a machine that is not part of the cluster definition");
+        return localAddrs;
+    }
+
+    /**
+     * Limits what is held back for each subscriber that isn't keeping up, from the next subscriber to connect; by default there is
+     * no limit.
+     * 
+     * @param disconnectAfter
+     *            for {@link SlowConsumerPolicy#DISCONNECT}, how long a subscriber may stay over budget before being disconnected
+     */
+    public void subscriberBudget(final int maxMessages, final long maxBytes, final SlowConsumerPolicy policy,
+            final long disconnectAfter, final TimeUnit disconnectUnits) {
+        Preconditions.checkArgument(maxMessages >= 0, "Message budget cannot be negative");
+        Preconditions.checkArgument(maxBytes >= 0, "Byte budget cannot be negative");
+        Preconditions.checkNotNull(policy, "Policy cannot be null");
+        Preconditions.checkArgument(disconnectAfter >= 0, "Disconnect delay cannot be negative");
+        subscriberMaxMessages = maxMessages;
+        subscriberMaxBytes = maxBytes;
+        slowConsumerPolicy = policy;
+        slowConsumerDisconnectMillis = disconnectUnits.toMillis(disconnectAfter);
+    }
+
+    /**
+     * Keeps up to the latest <code>messages</code> published on each topic, none older than <code>maxAge</code>, so that clients
+     * re-connecting with {@link PubSubClient#resumeOnReconnect(boolean)} are sent what they missed while away; by default nothing
+     * is kept. Changing this forgets whatever was kept before.
+     * 
+     * @param messages
+     *            how many messages to keep for each topic, or 0 to keep none
+     */
+    public void replay(final int messages, final long maxAge, final TimeUnit maxAgeUnits) {
+        sharedMessageHandler.replay(messages, maxAge, maxAgeUnits);
+    }
+
+    /**
+     * Keeps the latest message published on each of <code>topics</code>, sending it to every client that subscribes to the topic
+     * (or a pattern matching it) from then on so that it learns the topic's current value without waiting for the next publish; by
+     * default no topic is retained. When over <code>maxTopics</code> topics or <code>maxBytes</code> of payload are kept, the
+     * topics least recently published to or subscribed to are forgotten first. Changing this forgets whatever was kept before.
+     * 
+     * @param topics
+     *            the retained topics, any of which may be a pattern, or none to retain nothing
+     */
+    public void retainLatest(final int maxTopics, final long maxBytes, final String... topics) {
+        sharedMessageHandler.retain(topics.length > 0 ? new LastValueCache(maxTopics, maxBytes, topics) : null);
+    }
+
+    /**
+     * Keeps each of <code>topics</code> as a table of the latest message published on it for each key (see
+     * {@link PubSubClient#publish(java.nio.ByteBuffer, String, String)}), an empty message removing its key. A client subscribing
+     * to one of them by name is sent every key's latest message, then every change as it is published. Tables are kept outside the
+     * Java heap; once one has taken up <code>maxBytes</code>, messages for keys it can't make room for are passed on but not kept.
+     * Messages without a key are passed on as usual. By default no topic is keyed.
+     * 
+     * @param topics
+     *            the keyed topics, any of which may be a pattern, or none to keep no tables
+     */
+    public void keyedTopics(final long maxBytes, final String... topics) {
+        sharedMessageHandler.keyed(topics.length > 0 ? new KeyedTables(maxBytes, topics) : null);
+    }
+
+    /**
+     * Keeps every message published on <code>topics</code> in a log on disk, so that clients can subscribe from an offset or a
+     * time (see {@link PubSubClient#subscribeFrom(String, long, MessageCallback...)}) and be sent everything since before going
+     * live; by default no topic is durable. Logs are made of segments of up to <code>segmentBytes</code>, the oldest of which are
+     * deleted once a log grows past <code>retentionBytes</code> or they only hold messages older than <code>retentionTime</code>.
+     * 
+     * @param directory
+     *            where the logs are kept, one directory per topic; logs already there are picked up where they left off
+     * @param topics
+     *            the durable topics, any of which may be a pattern
+     * @throws IOException
+     *             if <code>directory</code> can't be created
+     */
+    public void durableTopics(final File directory, final int segmentBytes, final long retentionBytes, final long retentionTime,
+            final TimeUnit retentionUnits, final String... topics) throws IOException {
+        Preconditions.checkNotNull(directory, "Directory cannot be null");
+        Preconditions.checkNotNull(retentionUnits, "Retention units cannot be null");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create directory " + directory);
+        sharedMessageHandler.durable(new TopicLogs(directory, segmentBytes, retentionBytes, retentionTime, retentionUnits, resources
+                .timer(), topics));
+    }
+
+    /**
+     * @return the number of messages shed so far for each connected subscriber, by remote address
+     */
+    public Map<SocketAddress, Long> shedMessages() {
+        return sharedMessageHandler.shedMessages();
+    }
+
+    /**
+     * @return the number of messages replaced so far by newer ones on the same topic for each connected subscriber, by remote
+     *         address; see {@link SlowConsumerPolicy#CONFLATE}
+     */
+    public Map<SocketAddress, Long> conflatedMessages() {
+        return sharedMessageHandler.conflatedMessages();
+    }
+
+    /**
+     * @return the number of messages dropped so far for having already arrived by another route
+     */
+    public long duplicateMessages() {
+        return sharedMessageHandler.duplicateMessages();
+    }
+
+    Collection<String> subscribedTopics() {
+        return sharedMessageHandler.subscribedTopics();
+    }
+
     public void start() {
         sharedMessageHandler.start();
         for (final InetSocketAddress address : listenAddresses) {
             logger.info("Starting listener on {}", address);
             openChannels.add(bootstrap.bind(address));
+            openChannels.add(localBootstrap.bind(LocalTransport.register(address)));
         }
         logger.info("Server startup complete");
     }
 
     public void stop() throws InterruptedException {
         logger.info("Server shutting down...");
+        for (final InetSocketAddress address : listenAddresses)
+            LocalTransport.unregister(address);
         final ChannelGroupFuture future = openChannels.close();
         try {
             future.await();
         } finally {
             sharedMessageHandler.stop();
-            factory.releaseExternalResources();
-            workerService.shutdown();
-            bossService.shutdown();
+            if (sharedResources)
+                TransportResources.releaseShared();
         }
         logger.info("Server shut down.");
     }
@@ -0,0 +1,167 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The most recent messages published on a topic, kept by a server so that a subscriber coming back after losing its connection
+ * can be sent what it missed. Messages are kept as they arrived, payloads still encoded (and compressed, if they were), in a ring
+ * of fixed capacity, and are also forgotten once older than a maximum age.
+ * <p>
+ * What a subscriber missed is worked out from the highest sequence number it saw from each source on the topic, which it sends
+ * in a resume hint (see {@link #resumeHint(Map)}) just ahead of re-subscribing. Sequence numbers are per source rather than per
+ * server, so a hint makes as much sense to any server as to the one the subscriber was connected to before.
+ * <p>
+ * Callers hold the ring's lock while adding a message and looking up the topic's subscribers, and while reading what a subscriber
+ * missed and adding that subscriber, so each message reaches a resuming subscriber exactly once; the messages are written after
+ * letting go, those replayed through the subscriber's gate in the server (which holds back anything broadcast to it meanwhile).
+ * Messages from one source reach it in order, but those from different sources may not in the order they were added.
+ */
+final class ReplayRing {
+
+    // Unsubscribing from this reserved topic is a no-op to servers without replay, just like the compact header offer
+    static final String                RESUME_HINT = "\u0000pubsub-resume";
+
+    private static final char          SEPARATOR   = '\u0000';
+
+    private final ApplicationMessage[] messages;
+    private final long[]               arrived;
+    private final long                 maxAgeNanos;
+    private final ReentrantLock        lock;
+    private int                        head;
+    private int                        size;
+
+    ReplayRing(final int capacity, final long maxAgeNanos) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+        Preconditions.checkArgument(maxAgeNanos > 0, "Maximum age must be positive");
+        messages = new ApplicationMessage[capacity];
+        arrived = new long[capacity];
+        this.maxAgeNanos = maxAgeNanos;
+        lock = new ReentrantLock();
+        head = 0;
+        size = 0;
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Keeps a copy of <code>am</code>, overwriting the oldest message kept if full; the lock must be held.
+     */
+    void add(final ApplicationMessage am, final long now) {
+        final int slot = (head + size) % messages.length;
+        messages[slot] = am.retained();
+        arrived[slot] = now;
+        if (size < messages.length)
+            ++size;
+        else
+            head = (head + 1) % messages.length;
+    }
+
+    /**
+     * The messages kept that the subscriber has not seen, in the order they arrived; the lock must be held. Those from a source in
+     * <code>seen</code> are replayed if numbered after the sequence it maps to. Those from other sources (or not numbered) are
+     * replayed if they arrived after the last message kept that the subscriber is known to have seen, or all of them if it saw none
+     * of the messages kept.
+     * 
+     * @param seen
+     *            the highest sequence number the subscriber saw from each source
+     */
+    List<ApplicationMessage> since(final Map<UUID, Long> seen, final long now) {
+        while (size > 0 && now - arrived[head] > maxAgeNanos) {
+            messages[head] = null;
+            head = (head + 1) % messages.length;
+            --size;
+        }
+        final Long[] sequences = new Long[size];
+        int lastSeen = -1;
+        for (int pos = 0; pos < size; ++pos) {
+            final ApplicationMessage am = messages[(head + pos) % messages.length];
+            sequences[pos] = am.sequence() != Message.NO_SEQUENCE ? seen.get(am.sourceID()) : null;
+            if (sequences[pos] != null && am.sequence() <= sequences[pos])
+                lastSeen = pos;
+        }
+        final List<ApplicationMessage> rv = new ArrayList<ApplicationMessage>();
+        for (int pos = 0; pos < size; ++pos) {
+            final ApplicationMessage am = messages[(head + pos) % messages.length];
+            if (sequences[pos] != null ? am.sequence() > sequences[pos] : pos > lastSeen)
+                rv.add(am);
+        }
+        return rv;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param positions
+     *            the highest sequence number seen from each source, by topic; topics containing the separator are left out
+     */
+    static SubscriptionMessage resumeHint(final Map<String, Map<UUID, Long>> positions) {
+        final List<String> hint = new ArrayList<String>(1 + positions.size());
+        hint.add(RESUME_HINT);
+        for (final Map.Entry<String, Map<UUID, Long>> topic : positions.entrySet())
+            if (topic.getKey().indexOf(SEPARATOR) < 0) {
+                final StringBuilder sb = new StringBuilder(topic.getKey());
+                for (final Map.Entry<UUID, Long> source : topic.getValue().entrySet())
+                    sb.append(SEPARATOR).append(source.getKey()).append('=').append(source.getValue());
+                hint.add(sb.toString());
+            }
+        return new SubscriptionMessage(false, hint.toArray(new String[hint.size()]));
+    }
+
+    static boolean isResumeHint(final SubscriptionMessage sm) {
+        return !sm.subscribe && sm.topics.length >= 1 && RESUME_HINT.equals(sm.topics[0]);
+    }
+
+    /**
+     * @return the positions in <code>hint</code>, by topic, leaving out any that can't be made sense of
+     */
+    static Map<String, Map<UUID, Long>> positions(final SubscriptionMessage hint) {
+        final Map<String, Map<UUID, Long>> rv = new HashMap<String, Map<UUID, Long>>();
+        for (int pos = 1; pos < hint.topics.length; ++pos) {
+            final String[] parts = hint.topics[pos].split(String.valueOf(SEPARATOR));
+            final Map<UUID, Long> sources = new HashMap<UUID, Long>();
+            try {
+                for (int part = 1; part < parts.length; ++part) {
+                    final int equals = parts[part].indexOf('=');
+                    sources.put(UUID.fromString(parts[part].substring(0, equals)), Long.valueOf(parts[part].substring(equals + 1)));
+                }
+            } catch (final RuntimeException re) {
+                continue;
+            }
+            rv.put(parts[0], sources.isEmpty() ? Collections.<UUID, Long> emptyMap() : sources);
+        }
+        return rv;
+    }
+
+}
@@ -0,0 +1,219 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nerds.antelax.commons.net.pubsub.PubSubClient.MessageCallback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Hands messages from the I/O thread, the only producer, to a fixed set of consumer threads through a preallocated ring of slots,
+ * in the style of the LMAX Disruptor. The producer claims the next slot by sequence number, fills it in and publishes it by moving
+ * the cursor on; every consumer reads every slot in sequence but only delivers those whose topic hashes to it, so messages on a
+ * topic are delivered in order. Nothing is allocated per message, and once the slowest consumer is a full ring behind the producer
+ * waits for it, holding up reads from the server rather than holding ever more messages in memory.
+ */
+final class RingDispatcher implements Dispatcher {
+
+    private static final Logger        logger              = LoggerFactory.getLogger(RingDispatcher.class);
+
+    static final long                  PARK_NANOS          = TimeUnit.MICROSECONDS.toNanos(50);
+    static final long                  PRODUCER_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    private static final AtomicInteger DISPATCHERS         = new AtomicInteger();
+
+    private static final class Slot {
+
+        private String                      topic;
+        private Collection<MessageCallback> callbacks;
+        private ByteBuffer                  message;
+
+    }
+
+    private final class Consumer implements Runnable {
+
+        private final int        index;
+        private final AtomicLong consumed = new AtomicLong(-1);
+
+        private Consumer(final int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            long next = 0;
+            for (long available = waitFor(next); available >= next; available = waitFor(next)) {
+                for (; next <= available; ++next) {
+                    final Slot slot = slots[(int) (next & mask)];
+                    if (DispatchLanes.lane(slot.topic, consumers.length) == index)
+                        deliver(slot.callbacks, slot.message);
+                }
+                consumed.lazySet(available);
+            }
+            logger.debug("Ring consumer {} stopped after {} messages", index, next);
+        }
+
+    }
+
+    private final Slot[]              slots;
+    private final int                 mask;
+    private final WaitStrategy        strategy;
+    private final Consumer[]          consumers;
+    private final AtomicLong          cursor;
+    private final Lock                lock;
+    private final Condition           published;
+    private final AtomicInteger       waiters;
+    private volatile boolean          stopped;
+    private long                      claimed;
+    private long                      gate;
+
+    /**
+     * @param capacity
+     *            the number of slots, a power of two
+     * @param consumers
+     *            the number of consumer threads, each delivering the messages on its share of the topics
+     */
+    RingDispatcher(final int capacity, final int consumers, final WaitStrategy strategy) {
+        Preconditions.checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1, "Capacity must be a power of two");
+        Preconditions.checkArgument(consumers > 0, "Must have at least one consumer");
+        Preconditions.checkNotNull(strategy, "Wait strategy cannot be null");
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; ++i)
+            slots[i] = new Slot();
+        mask = capacity - 1;
+        this.strategy = strategy;
+        cursor = new AtomicLong(-1);
+        lock = new ReentrantLock();
+        published = lock.newCondition();
+        waiters = new AtomicInteger();
+        stopped = false;
+        claimed = -1;
+        gate = -1;
+        this.consumers = new Consumer[consumers];
+        final ThreadFactory threads = new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("pubsub-ring-" + DISPATCHERS.incrementAndGet() + "-%d").build();
+        for (int i = 0; i < consumers; ++i) {
+            this.consumers[i] = new Consumer(i);
+            threads.newThread(this.consumers[i]).start();
+        }
+    }
+
+    /**
+     * Synchronized only for the in-VM transport, where publishing threads deliver to the client themselves; otherwise the I/O
+     * thread is the only one to call it, so the lock is never contended.
+     */
+    @Override
+    public synchronized void dispatch(final String topic, final Collection<MessageCallback> callbacks, final ByteBuffer message) {
+        final long sequence = claimed + 1;
+        final long wrap = sequence - slots.length;
+        while (wrap > gate) {
+            gate = slowestConsumer();
+            if (wrap > gate) {
+                if (stopped) {
+                    logger.warn("Dropping message on topic[{}], dispatcher stopped", topic);
+                    return;
+                }
+                LockSupport.parkNanos(PRODUCER_WAIT_NANOS);
+            }
+        }
+        final Slot slot = slots[(int) (sequence & mask)];
+        slot.topic = topic;
+        slot.callbacks = callbacks;
+        slot.message = message;
+        claimed = sequence;
+        cursor.set(sequence);
+        if (waiters.get() > 0)
+            signal();
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        signal();
+    }
+
+    private long slowestConsumer() {
+        long rv = Long.MAX_VALUE;
+        for (final Consumer consumer : consumers)
+            rv = Math.min(rv, consumer.consumed.get());
+        return rv;
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            published.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the highest sequence published, at least <code>next</code> unless stopped with nothing left to deliver
+     */
+    private long waitFor(final long next) {
+        long available;
+        while ((available = cursor.get()) < next && !stopped)
+            switch (strategy) {
+            case BUSY_SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                LockSupport.parkNanos(PARK_NANOS);
+                break;
+            case BLOCK:
+                lock.lock();
+                waiters.incrementAndGet();
+                try {
+                    while (cursor.get() < next && !stopped)
+                        published.awaitUninterruptibly();
+                } finally {
+                    waiters.decrementAndGet();
+                    lock.unlock();
+                }
+                break;
+            }
+        return stopped ? cursor.get() : available;
+    }
+
+    private static void deliver(final Collection<MessageCallback> callbacks, final ByteBuffer message) {
+        for (final MessageCallback callback : callbacks)
+            try {
+                callback.onMessage(message.asReadOnlyBuffer());
+            } catch (final Exception e) {
+                logger.warn("Caught exception during message callback[" + callback + "]", e);
+            }
+    }
+
+}
@@ -22,22 +22,30 @@ import java.net.SocketAddress;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
-import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.channel.local.LocalAddress;
 import org.jboss.netty.util.Timeout;
 import org.jboss.netty.util.Timer;
 import org.jboss.netty.util.TimerTask;
@@ -48,13 +56,64 @@ import com.google.common.base.Preconditions;
 
 /*
  * Blatently lifted and round-robin-ified from the very nice 'uptime' example included in the Netty source.
+ * 
+ * Servers are tried in order of round trip time, taken from how long connecting to each took (a TCP handshake being one round
+ * trip), smoothed as TCP does its own. Connecting is a race: if the best server hasn't answered within the attempt delay the next
+ * is tried as well, and so on, the first to connect being kept and the rest closed; a failed attempt starts the next straight
+ * away. While some servers have never been timed, one of them is raced against the best known from the start so that all of them
+ * come to be measured. Only the winning connection's events are passed up the pipeline.
+ * 
+ * Which server to try next is decided holding the lock, but connecting is done after letting go of it: in-VM, the new channel's
+ * events (up to the subscriptions being written) run on the connecting thread.
  */
 final class RoundRobinReconnectHandler extends SimpleChannelUpstreamHandler {
 
-    private static final Logger                                   logger = LoggerFactory
-                                                                                 .getLogger(RoundRobinReconnectHandler.class);
+    private static final Logger                                   logger                = LoggerFactory
+                                                                                       .getLogger(RoundRobinReconnectHandler.class);
 
-    private static final Random                                   RANDOM = new SecureRandom();
+    private static final Random                                   RANDOM                = new SecureRandom();
+
+    static final long                                             DEFAULT_ATTEMPT_DELAY = TimeUnit.MILLISECONDS.toNanos(250);
+
+    /*
+     * One connection attempt, to one server
+     */
+    private static final class Attempt {
+
+        private final Race              race;
+        private final InetSocketAddress server;
+        private final long              started;
+
+        private Attempt(final Race race, final InetSocketAddress server) {
+            this.race = race;
+            this.server = server;
+            started = System.nanoTime();
+        }
+
+    }
+
+    /*
+     * The attempts made to connect after losing (or before having) a connection; guarded by the lock
+     */
+    private static final class Race {
+
+        private final List<InetSocketAddress> candidates;
+        private final List<Channel>           channels;
+        private int                           next;
+        private int                           pending;
+        private Channel                       winner;
+        private Timeout                       stagger;
+
+        private Race(final List<InetSocketAddress> candidates) {
+            this.candidates = candidates;
+            channels = new ArrayList<Channel>(candidates.size());
+            next = 0;
+            pending = 0;
+            winner = null;
+            stagger = null;
+        }
+
+    }
 
     private final ClientBootstrap                                 bootstrap;
     private final PubSubClient.NetworkConnectionLifecycleCallback callback;
@@ -63,14 +122,28 @@ final class RoundRobinReconnectHandler extends SimpleChannelUpstreamHandler {
     private final AtomicBoolean                                   enabled;
     private final List<InetSocketAddress>                         availableServers;
     private final List<InetSocketAddress>                         failedServers;
+    private final Map<InetSocketAddress, Long>                    roundTrips;
+    private final ConcurrentMap<Channel, Attempt>                 attempts;
+    private final ThreadLocal<Attempt>                            launching;
     private final Lock                                            lock;
     private final Timer                                           timer;
+    private final AtomicReference<Timeout>                        pendingRetry;
     private final AtomicReference<Channel>                        currentChannel;
-    private final AtomicReference<InetSocketAddress>              currentRemoteAddress;
+    private final AtomicLong                                      reconnects;
+    private volatile long                                         lastReconnect;
+    private volatile long                                         attemptDelay;
+    private volatile ClientBootstrap                              localBootstrap;
+    private Race                                                  race;
+    private long                                                  downSince;
 
-    RoundRobinReconnectHandler(final ClientBootstrap bootstrap, final int retryDelay, final TimeUnit retryUnits,
+    /**
+     * @param timer
+     *            for re-trying connections, possibly shared with others so never stopped by us
+     */
+    RoundRobinReconnectHandler(final ClientBootstrap bootstrap, final Timer timer, final int retryDelay, final TimeUnit retryUnits,
             final PubSubClient.NetworkConnectionLifecycleCallback callback, final Collection<InetSocketAddress> servers) {
         Preconditions.checkNotNull(bootstrap);
+        Preconditions.checkNotNull(timer);
         Preconditions.checkNotNull(servers);
         Preconditions.checkArgument(!servers.isEmpty());
         Preconditions.checkArgument(retryDelay > 0);
@@ -82,22 +155,81 @@ final class RoundRobinReconnectHandler extends SimpleChannelUpstreamHandler {
         availableServers = new ArrayList<InetSocketAddress>(servers.size());
         failedServers = new LinkedList<InetSocketAddress>();
         for (final InetSocketAddress isa : servers)
-            if (isa != null)
+            if (isa != null && !availableServers.contains(isa))
                 availableServers.add(isa);
         Preconditions.checkArgument(!availableServers.isEmpty(), "Server list was empty or had null values");
+        roundTrips = new HashMap<InetSocketAddress, Long>();
+        attempts = new ConcurrentHashMap<Channel, Attempt>();
+        launching = new ThreadLocal<Attempt>();
         enabled = new AtomicBoolean(false);
         lock = new ReentrantLock();
-        timer = new HashedWheelTimer();
+        this.timer = timer;
+        pendingRetry = new AtomicReference<Timeout>(null);
         currentChannel = new AtomicReference<Channel>(null);
-        currentRemoteAddress = new AtomicReference<InetSocketAddress>(null);
+        reconnects = new AtomicLong(0);
+        lastReconnect = 0;
+        attemptDelay = DEFAULT_ATTEMPT_DELAY;
+        localBootstrap = null;
+        race = null;
+        downSince = 0;
+    }
+
+    /**
+     * @param localBootstrap
+     *            for connecting to servers in this VM through the in-VM transport (see {@link LocalTransport}), or null to always
+     *            connect over TCP
+     */
+    void localBootstrap(final ClientBootstrap localBootstrap) {
+        this.localBootstrap = localBootstrap;
+    }
+
+    /**
+     * Sets how long to wait for a connection attempt before also trying the next server.
+     */
+    void attemptDelay(final long delay, final TimeUnit units) {
+        Preconditions.checkArgument(delay > 0, "Delay must be positive");
+        Preconditions.checkNotNull(units);
+        attemptDelay = units.toNanos(delay);
     }
 
     Channel channel() {
         return currentChannel.get();
     }
 
+    /**
+     * @return the number of times a connection has been made, including the first
+     */
+    long reconnects() {
+        return reconnects.get();
+    }
+
+    /**
+     * @return how long, in nanoseconds, it took to connect the last time the connection was lost (or first made), retries included
+     */
+    long lastReconnectTime() {
+        return lastReconnect;
+    }
+
+    /**
+     * @return the smoothed round trip time, in nanoseconds, to each server connected to so far
+     */
+    Map<InetSocketAddress, Long> roundTripTimes() {
+        lock.lock();
+        try {
+            return new HashMap<InetSocketAddress, Long>(roundTrips);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     void enable() {
-        enabled.set(true);
+        lock.lock();
+        try {
+            enabled.set(true);
+            downSince = System.nanoTime();
+        } finally {
+            lock.unlock();
+        }
         reconnect();
     }
 
@@ -105,20 +237,57 @@ final class RoundRobinReconnectHandler extends SimpleChannelUpstreamHandler {
         enabled.set(false);
     }
 
-    void shutdown() {
+    /**
+     * @return the future for closing the current connection, or null if there isn't one
+     */
+    ChannelFuture shutdown() {
         disable();
-        timer.stop();
+        final Timeout retry = pendingRetry.getAndSet(null);
+        if (retry != null)
+            retry.cancel();
+        final List<Channel> racing = new ArrayList<Channel>();
+        lock.lock();
+        try {
+            if (race != null) {
+                if (race.stagger != null)
+                    race.stagger.cancel();
+                for (final Channel channel : race.channels)
+                    if (channel != race.winner)
+                        racing.add(channel);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (final Channel channel : racing)
+            channel.close();
         final Channel c = currentChannel.getAndSet(null);
-        if (c != null)
-            c.close();
+        return c != null ? c.close() : null;
+    }
+
+    @Override
+    public void channelOpen(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        // Channels are opened by the bootstrap from within connect(...), on the connecting thread
+        final Attempt attempt = launching.get();
+        if (attempt != null) {
+            attempts.put(e.getChannel(), attempt);
+            lock.lock();
+            try {
+                attempt.race.channels.add(e.getChannel());
+            } finally {
+                lock.unlock();
+            }
+        }
+        super.channelOpen(ctx, e);
     }
 
     @Override
     public void channelDisconnected(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        if (!won(e.getChannel()))
+            return;
         final Channel c = currentChannel.getAndSet(null);
         if (c != null)
             c.close();
-        final SocketAddress remote = e.getChannel().getRemoteAddress();
+        final SocketAddress remote = remoteAddress(e.getChannel());
         logger.debug("Disconnected from server: {}", remote);
         if (callback != null)
             callback.connectionDown(remote);
@@ -127,30 +296,79 @@ final class RoundRobinReconnectHandler extends SimpleChannelUpstreamHandler {
 
     @Override
     public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        final Attempt attempt = attempts.remove(e.getChannel());
+        if (attempt == null)
+            return;
+        boolean won = false;
+        boolean retry = false;
+        Attempt next = null;
         lock.lock();
         try {
-            final InetSocketAddress failedAddress;
-            if (e.getChannel().getRemoteAddress() != null)
-                failedAddress = (InetSocketAddress) e.getChannel().getRemoteAddress();
-            else
-                failedAddress = currentRemoteAddress.get();
-            Preconditions.checkArgument(availableServers.contains(failedAddress));
-            Preconditions.checkArgument(!failedServers.contains(failedAddress));
-            availableServers.remove(failedAddress);
-            failedServers.add(failedAddress);
+            final Race r = attempt.race;
+            r.channels.remove(e.getChannel());
+            if (r.winner == e.getChannel()) {
+                won = true;
+                fail(attempt.server);
+                downSince = System.nanoTime();
+                race = null;
+                retry = true;
+            } else if (r.winner == null) {
+                --r.pending;
+                fail(attempt.server);
+                next = r == race ? launch(r) : null;
+                if (r == race && next == null && r.pending == 0) {
+                    race = null;
+                    retry = true;
+                }
+            }
         } finally {
             lock.unlock();
         }
-        reconnect();
-        super.channelClosed(ctx, e);
+        connect(next);
+        if (retry)
+            reconnect();
+        if (won)
+            super.channelClosed(ctx, e);
     }
 
     @Override
     public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
-        currentChannel.set(e.getChannel());
-        final SocketAddress remote = e.getChannel().getRemoteAddress();
-        currentRemoteAddress.set((InetSocketAddress) remote);
-        logger.debug("Established connection to server {}", remote);
+        final Channel channel = e.getChannel();
+        final Attempt attempt = attempts.get(channel);
+        final List<Channel> losers = new ArrayList<Channel>();
+        long took = 0;
+        lock.lock();
+        try {
+            if (attempt != null) {
+                final long now = System.nanoTime();
+                sample(attempt.server, now - attempt.started);
+                final Race r = attempt.race;
+                if (r == race && r.winner == null && enabled.get()) {
+                    r.winner = channel;
+                    --r.pending;
+                    if (r.stagger != null)
+                        r.stagger.cancel();
+                    for (final Channel c : r.channels)
+                        if (c != channel)
+                            losers.add(c);
+                    took = now - downSince;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (!won(channel)) {
+            logger.debug("Closing connection to server {}, another was made first", remoteAddress(channel));
+            channel.close();
+            return;
+        }
+        for (final Channel c : losers)
+            c.close();
+        currentChannel.set(channel);
+        lastReconnect = took;
+        reconnects.incrementAndGet();
+        final InetSocketAddress remote = remoteAddress(channel);
+        logger.debug("Established connection to server {} in {}ms", remote, TimeUnit.NANOSECONDS.toMillis(took));
         if (callback != null)
             callback.connectionUp(remote);
         super.channelConnected(ctx, e);
@@ -160,22 +378,160 @@ final class RoundRobinReconnectHandler extends SimpleChannelUpstreamHandler {
     public void exceptionCaught(final ChannelHandlerContext ctx, final ExceptionEvent ee) throws Exception {
         final Throwable cause = ee.getCause();
         if (cause instanceof ConnectException)
-            logger.warn("Unable to establish connection to {}", currentRemoteAddress.get());
+            logger.warn("Unable to establish connection to {}", remoteAddress(ee.getChannel()));
+        if (!won(ee.getChannel())) {
+            ee.getChannel().close();
+            return;
+        }
         final Channel c = currentChannel.getAndSet(null);
         if (c != null)
             c.close();
         super.exceptionCaught(ctx, ee);
     }
 
+    /*
+     * Whether channel is the connection kept, rather than one that failed or lost the race
+     */
+    private boolean won(final Channel channel) {
+        final Attempt attempt = attempts.get(channel);
+        if (attempt == null)
+            return false;
+        lock.lock();
+        try {
+            return attempt.race.winner == channel;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * The server's socket address, even when connected to it through the in-VM transport
+     */
+    private InetSocketAddress remoteAddress(final Channel channel) {
+        final SocketAddress remote = channel.getRemoteAddress();
+        if (remote instanceof InetSocketAddress)
+            return (InetSocketAddress) remote;
+        final Attempt attempt = attempts.get(channel);
+        return attempt != null ? attempt.server : null;
+    }
+
+    /*
+     * Folds a connect time into the server's round trip time, 1/8th at a time as TCP does; the lock must be held
+     */
+    private void sample(final InetSocketAddress server, final long nanos) {
+        final Long previous = roundTrips.get(server);
+        roundTrips.put(server, previous == null ? nanos : previous + (nanos - previous) / 8);
+    }
+
+    /*
+     * The lock must be held
+     */
+    private void fail(final InetSocketAddress server) {
+        if (enabled.get() && availableServers.remove(server))
+            failedServers.add(server);
+    }
+
+    /*
+     * The available servers, fastest first; those never timed go last, in random order so that clients spread across them; the lock
+     * must be held
+     */
+    private List<InetSocketAddress> candidates() {
+        final List<InetSocketAddress> rv = new ArrayList<InetSocketAddress>(availableServers);
+        Collections.shuffle(rv, RANDOM);
+        Collections.sort(rv, new Comparator<InetSocketAddress>() {
+
+            @Override
+            public int compare(final InetSocketAddress a, final InetSocketAddress b) {
+                final Long ra = roundTrips.get(a);
+                final Long rb = roundTrips.get(b);
+                if (ra == null || rb == null)
+                    return ra == null ? (rb == null ? 0 : 1) : -1;
+                return ra.compareTo(rb);
+            }
+
+        });
+        return rv;
+    }
+
+    /*
+     * Picks the race's next candidate, and sets a timer to start on the one after if it's slow; the lock must be held
+     * 
+     * @return the attempt to make with connect(...) once the lock is let go, or null if there are no candidates left
+     */
+    private Attempt launch(final Race r) {
+        if (!enabled.get() || r.next >= r.candidates.size())
+            return null;
+        if (r.stagger != null) {
+            r.stagger.cancel();
+            r.stagger = null;
+        }
+        final Attempt rv = new Attempt(r, r.candidates.get(r.next++));
+        ++r.pending;
+        logger.debug("Have available servers[{}], will try {}", availableServers, rv.server);
+        if (r.next < r.candidates.size())
+            r.stagger = timer.newTimeout(new TimerTask() {
+
+                @Override
+                public void run(final Timeout timeout) throws Exception {
+                    Attempt next = null;
+                    lock.lock();
+                    try {
+                        if (r.stagger == timeout && r.winner == null && r == race) {
+                            r.stagger = null;
+                            logger.debug("No connection within [{}ns], trying the next server as well", attemptDelay);
+                            next = launch(r);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    connect(next);
+                }
+
+            }, attemptDelay, TimeUnit.NANOSECONDS);
+        return rv;
+    }
+
+    /*
+     * Makes an attempt picked by launch(...), unless its race has been settled (or given up on) since; the lock must not be held
+     */
+    private void connect(final Attempt attempt) {
+        if (attempt == null)
+            return;
+        lock.lock();
+        try {
+            if (attempt.race.winner != null || attempt.race != race) {
+                --attempt.race.pending;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        final ClientBootstrap localBootstrap = this.localBootstrap;
+        final LocalAddress local = localBootstrap != null ? LocalTransport.find(attempt.server) : null;
+        logger.debug("Calling connect() with {}", local != null ? local : attempt.server);
+        launching.set(attempt);
+        try {
+            if (local != null)
+                localBootstrap.connect(local);
+            else
+                bootstrap.connect(attempt.server);
+        } finally {
+            launching.remove();
+        }
+    }
+
     private void reconnect() {
         if (!enabled.get())
             return;
         else {
+            final Attempt first, second;
             lock.lock();
             try {
-                if (availableServers.isEmpty()) {
+                if (race != null)
+                    return;
+                else if (availableServers.isEmpty()) {
                     logger.warn("No servers are available, will re-try in [{}/{}]", retryDelay, retryUnits);
-                    timer.newTimeout(new TimerTask() {
+                    pendingRetry.set(timer.newTimeout(new TimerTask() {
 
                         @Override
                         public void run(final Timeout timeout) throws Exception {
@@ -183,23 +539,32 @@ final class RoundRobinReconnectHandler extends SimpleChannelUpstreamHandler {
                             try {
                                 availableServers.addAll(failedServers);
                                 failedServers.clear();
-                                reconnect();
                             } finally {
                                 lock.unlock();
                             }
+                            reconnect();
                         }
 
-                    }, retryDelay, retryUnits);
+                    }, retryDelay, retryUnits));
+                    return;
                 } else {
-                    final InetSocketAddress server = availableServers.get(RANDOM.nextInt(availableServers.size()));
-                    currentRemoteAddress.set(server);
-                    logger.debug("Have available servers[{}], calling connect() with {}", availableServers, server);
-                    bootstrap.connect(server);
+                    final Race r = new Race(candidates());
+                    race = r;
+                    first = launch(r);
+                    // Time a server never connected to alongside the best known
+                    final int last = r.candidates.size() - 1;
+                    if (last > 0 && !roundTrips.containsKey(r.candidates.get(last))) {
+                        r.candidates.add(1, r.candidates.remove(last));
+                        second = launch(r);
+                    } else
+                        second = null;
                 }
             } finally {
                 lock.unlock();
             }
+            connect(first);
+            connect(second);
         }
     }
 
-}
\ No newline at end of file
+}
@@ -19,20 +19,31 @@ package nerds.antelax.commons.net.pubsub;
 
 import static nerds.antelax.commons.base.Conversions.asArray;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandler.Sharable;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
@@ -40,7 +51,6 @@ import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
-import org.jboss.netty.util.internal.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,25 +60,62 @@ import com.google.common.base.Predicate;
 @Sharable
 final class ServerMessageHandler extends SimpleChannelUpstreamHandler {
 
-    private static final Logger                    logger = LoggerFactory.getLogger(ServerMessageHandler.class);
+    private static final Logger                                        logger          = LoggerFactory
+                                                                                               .getLogger(ServerMessageHandler.class);
 
-    private final DefaultChannelGroup              connectedClients;
-    private final Map<String, DefaultChannelGroup> subscribers;
-    private final Lock                             lock;
-    private final ExecutorService                  service;
-    private final Collection<PubSubClient>         remoteServers;
+    // How many frames are sent from a topic's log before waiting for them to be written
+    private static final int                                           CATCH_UP_FRAMES = 256;
 
-    ServerMessageHandler(final Predicate<Object> serverToServerFilter, final Collection<InetSocketAddress> remoteServers) {
+    // How many keys of a keyed topic's table are sent to a new subscriber before waiting for them to be written
+    private static final int                                           SNAPSHOT_KEYS   = 256;
+
+    private final DefaultChannelGroup                                  connectedClients;
+    private final SubscriberRegistry                                   subscribers;
+    private final ExecutorService                                      service;
+    private final Collection<PubSubClient>                             remoteServers;
+    private final SubscriptionPropagator                               propagator;
+    private final DuplicateFilter                                      seen;
+    private final ConcurrentMap<String, ReplayRing>                    rings;
+    private final ConcurrentMap<Channel, Map<String, Map<UUID, Long>>> resumes;
+    private final ConcurrentMap<Channel, Map<String, TopicLogs.Start>> starts;
+    private final ConcurrentMap<Channel, Gate>                         gates;
+    private volatile int                                               replayMessages;
+    private volatile long                                              replayAgeNanos;
+    private volatile TopicLogs                                         logs;
+    private volatile LastValueCache                                    latest;
+    private volatile KeyedTables                                       tables;
+
+    ServerMessageHandler(final TransportResources resources, final UUID serverID, final Predicate<Object> serverToServerFilter,
+            final Collection<InetSocketAddress> remoteServers) {
+        Preconditions.checkNotNull(resources);
+        Preconditions.checkNotNull(serverID);
         Preconditions.checkNotNull(serverToServerFilter);
         Preconditions.checkNotNull(remoteServers);
         connectedClients = new DefaultChannelGroup("Connected clients");
-        subscribers = new ConcurrentHashMap<String, DefaultChannelGroup>();
-        lock = new ReentrantLock();
         this.remoteServers = new LinkedList<PubSubClient>();
         service = Executors.newCachedThreadPool();
         for (final InetSocketAddress remote : remoteServers)
-            this.remoteServers.add(new PubSubClient(this, serverToServerFilter, service, null,
+            this.remoteServers.add(new PubSubClient(resources, this, serverToServerFilter, serverID, service, null,
                     PubSubClient.DEFAULT_TIMEOUT_SECONDS, TimeUnit.SECONDS, Collections.nCopies(1, remote)));
+        propagator = new SubscriptionPropagator(this.remoteServers, new Predicate<String>() {
+
+            @Override
+            public boolean apply(final String topic) {
+                return subscribers.hasLocalSubscribers(topic);
+            }
+
+        }, resources.timer(), SubscriptionPropagator.DEFAULT_DEBOUNCE_MILLIS);
+        subscribers = new SubscriberRegistry(propagator);
+        seen = new DuplicateFilter(DuplicateFilter.DEFAULT_MAX_SOURCES, DuplicateFilter.DEFAULT_IDLE_SECONDS, TimeUnit.SECONDS);
+        rings = new ConcurrentHashMap<String, ReplayRing>();
+        resumes = new ConcurrentHashMap<Channel, Map<String, Map<UUID, Long>>>();
+        starts = new ConcurrentHashMap<Channel, Map<String, TopicLogs.Start>>();
+        gates = new ConcurrentHashMap<Channel, Gate>();
+        replayMessages = 0;
+        replayAgeNanos = 0;
+        logs = null;
+        latest = null;
+        tables = null;
         logger.trace("Will connect to the following remote servers: {}", remoteServers);
     }
 
@@ -78,6 +125,9 @@ final class ServerMessageHandler extends SimpleChannelUpstreamHandler {
     }
 
     void stop() {
+        propagator.stop();
+        if (logs != null)
+            logs.stop();
         for (final PubSubClient remote : remoteServers)
             try {
                 remote.stop();
@@ -93,6 +143,83 @@ final class ServerMessageHandler extends SimpleChannelUpstreamHandler {
         service.shutdown();
     }
 
+    Map<SocketAddress, Long> shedMessages() {
+        final Map<SocketAddress, Long> rv = new LinkedHashMap<SocketAddress, Long>();
+        for (final Channel channel : connectedClients) {
+            final SubscriberQueueHandler queue = channel.getPipeline().get(SubscriberQueueHandler.class);
+            if (queue != null)
+                rv.put(channel.getRemoteAddress(), queue.shedMessages());
+        }
+        return rv;
+    }
+
+    Map<SocketAddress, Long> conflatedMessages() {
+        final Map<SocketAddress, Long> rv = new LinkedHashMap<SocketAddress, Long>();
+        for (final Channel channel : connectedClients) {
+            final SubscriberQueueHandler queue = channel.getPipeline().get(SubscriberQueueHandler.class);
+            if (queue != null)
+                rv.put(channel.getRemoteAddress(), queue.conflatedMessages());
+        }
+        return rv;
+    }
+
+    long duplicateMessages() {
+        return seen.duplicates();
+    }
+
+    /**
+     * @return the topics and patterns with subscribers, peer servers included
+     */
+    Collection<String> subscribedTopics() {
+        return subscribers.topics();
+    }
+
+    /**
+     * @param messages
+     *            how many of the latest messages to keep for each topic, or 0 to keep none
+     * @see ReplayRing
+     */
+    void replay(final int messages, final long maxAge, final TimeUnit maxAgeUnits) {
+        Preconditions.checkArgument(messages >= 0, "Message count cannot be negative");
+        Preconditions.checkArgument(messages == 0 || maxAge > 0, "Maximum age must be positive");
+        replayAgeNanos = maxAgeUnits.toNanos(maxAge);
+        replayMessages = messages;
+        rings.clear();
+    }
+
+    void durable(final TopicLogs logs) {
+        this.logs = logs;
+    }
+
+    /**
+     * @param latest
+     *            the cache to keep the latest messages in, or null to keep none
+     */
+    void retain(final LastValueCache latest) {
+        this.latest = latest;
+    }
+
+    void keyed(final KeyedTables tables) {
+        this.tables = tables;
+    }
+
+    /*
+     * The ring keeping messages for the topic, or null if messages aren't being kept
+     */
+    private ReplayRing ring(final String topic) {
+        final int capacity = replayMessages;
+        if (capacity == 0)
+            return null;
+        ReplayRing ring = rings.get(topic);
+        if (ring == null) {
+            final ReplayRing created = new ReplayRing(capacity, replayAgeNanos);
+            ring = rings.putIfAbsent(topic, created);
+            if (ring == null)
+                ring = created;
+        }
+        return ring;
+    }
+
     @Override
     public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
         logger.trace("Client connected on channel[{}]", e.getChannel());
@@ -117,74 +244,384 @@ final class ServerMessageHandler extends SimpleChannelUpstreamHandler {
     @Override
     public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
         final Object o = e.getMessage();
-        final Message m;
         if (o instanceof Message) {
-            m = (Message) o;
+            Message m = (Message) o;
             logger.debug("Server received message: {}", m);
-            if (m.ttl() > 0) {
+            if (m.ttl() <= 0)
+                logger.debug("Dropping message with low TTL: {}", m);
+            else if (m.type == Message.Type.Application && !seen.firstSighting(m))
+                logger.debug("Dropping message already seen: {}", m);
+            else {
+                m = ownHeader(ctx, m);
                 m.ttl((short) (m.ttl() - 1));
                 logger.debug("Dropped TTL: {}", m);
                 if (m.type == Message.Type.Application)
                     handleApplicationMessage(ctx.getChannel(), (ApplicationMessage) m);
+                else if (m.type == Message.Type.Batch)
+                    handleBatch(ctx.getChannel(), (BatchMessage) m);
                 else if (m.type == Message.Type.Subscription)
                     handleSubscriptionRequest(ctx.getChannel(), (SubscriptionMessage) m);
                 else
                     logger.warn("Unknown message type: {}", m);
-            } else
-                logger.debug("Dropping message with low TTL: {}", m);
+            }
         } else
             super.messageReceived(ctx, e);
     }
 
     /*
-     * Broadcast this incoming application message to all subscribers of the topic (except for the one who broadcast it)
+     * A message received in-VM is the very object its sender wrote, which it may still be writing to other channels (peers later in
+     * the same broadcast among them), so it gets a header of its own before we change its TTL; the payload stays shared
+     */
+    private static Message ownHeader(final ChannelHandlerContext ctx, final Message m) {
+        if (ctx.getPipeline().get(MessageCodec.Decoder.class) != null)
+            return m;
+        else if (m.type == Message.Type.Application)
+            return ((ApplicationMessage) m).withOwnHeader();
+        else if (m.type == Message.Type.Batch)
+            return ((BatchMessage) m).withOwnHeaders();
+        else
+            return m;
+    }
+
+    /*
+     * The log of the topic, or null if it isn't durable
+     */
+    private TopicLog log(final String topic) {
+        final TopicLogs logs = this.logs;
+        return logs != null ? logs.log(topic) : null;
+    }
+
+    /*
+     * The cache keeping the topic's latest message, or null if it isn't retained
+     */
+    private LastValueCache cache(final String topic) {
+        final LastValueCache latest = this.latest;
+        return latest != null && latest.retains(topic) ? latest : null;
+    }
+
+    /*
+     * The table keeping the latest message for each key of the message's topic, or null if the message isn't keyed or its topic
+     * isn't
+     */
+    private KeyedTable table(final ApplicationMessage msg) {
+        final KeyedTables tables = this.tables;
+        return tables != null && msg.key != null ? tables.table(msg.topic) : null;
+    }
+
+    private void put(final KeyedTable table, final ApplicationMessage msg) {
+        if (!table.put(msg))
+            logger.warn("Table for topic[{}] is full, not keeping message for key[{}]", msg.topic, msg.key);
+    }
+
+    private void append(final TopicLog log, final ApplicationMessage msg) {
+        try {
+            if (log.append(msg.decompress().encode(), System.currentTimeMillis()) < 0)
+                logger.warn("Message on topic[{}] is too large for its log, not persisting it", msg.topic);
+            else
+                logs.appended();
+        } catch (final IOException ioe) {
+            logger.error("Unable to persist message on topic[" + msg.topic + "]", ioe);
+        } catch (final MessageFormatException mfe) {
+            logger.warn("Unable to decompress message on topic[" + msg.topic + "], not persisting it", mfe);
+        }
+    }
+
+    /*
+     * Broadcast this incoming application message to all subscribers of the topic (except for the one who broadcast it). Where the
+     * message is kept, the subscribers are looked up holding the locks it is kept under, so that one subscribing meanwhile gets it
+     * exactly once: either replayed, caught up or sent a snapshot before being added, or as one of those it is written to. The
+     * writes themselves happen after letting go, since a subscriber in the same VM may publish from its callback on this thread;
+     * messages from different sources on a topic may then reach a subscriber in another order than they were kept in. A subscriber
+     * being sent what it missed is sent it after letting go too, holding back anything broadcast to it meanwhile (see Gate).
      */
     private void handleApplicationMessage(final Channel source, final ApplicationMessage msg) {
-        final DefaultChannelGroup group = subscribers.get(msg.topic);
-        logger.trace("Incoming application message on topic[{}] from remote {}, channel broadcast group is: {}",
-                asArray(msg.topic, source.getRemoteAddress(), group));
-        if (group != null) {
-            final Iterator<Channel> pos = group.iterator();
-            while (pos.hasNext()) {
-                final Channel channel = pos.next();
-                if (channel.getId() != source.getId()) {
-                    logger.trace("Broadcasting message to channel[{}]", channel.getRemoteAddress());
-                    channel.write(msg);
-                }
-            }
+        final ReplayRing ring = ring(msg.topic);
+        final TopicLog log = log(msg.topic);
+        final LastValueCache cache = cache(msg.topic);
+        final KeyedTable table = table(msg);
+        if (ring == null && log == null && cache == null && table == null) {
+            broadcast(source, msg, subscribers.subscribers(msg.topic));
+            return;
         }
+        final Channel[] channels;
+        if (ring != null)
+            ring.lock();
+        if (log != null)
+            log.lock();
+        if (cache != null)
+            cache.lock();
+        if (table != null)
+            table.lock();
+        try {
+            if (ring != null)
+                ring.add(msg, System.nanoTime());
+            if (log != null)
+                append(log, msg);
+            if (cache != null)
+                cache.put(msg);
+            if (table != null)
+                put(table, msg);
+            channels = subscribers.subscribers(msg.topic);
+        } finally {
+            if (table != null)
+                table.unlock();
+            if (cache != null)
+                cache.unlock();
+            if (log != null)
+                log.unlock();
+            if (ring != null)
+                ring.unlock();
+        }
+        broadcast(source, msg, channels);
+    }
+
+    private void broadcast(final Channel source, final ApplicationMessage msg, final Channel[] channels) {
+        logger.trace("Incoming application message on topic[{}] from remote {} for {} subscribers",
+                asArray(msg.topic, source.getRemoteAddress(), channels.length));
+        for (final Channel channel : channels)
+            if (channel != source && !held(channel, msg)) {
+                logger.trace("Broadcasting message to channel[{}]", channel.getRemoteAddress());
+                channel.write(msg);
+            }
         logger.trace("Application message finished broadcasting");
     }
 
+    /*
+     * Drops the messages of a batch already seen, which may have arrived by another route on their own or in another batch; what is
+     * left goes on as runs of consecutively numbered messages, each keeping its own sequence number
+     */
+    private void handleBatch(final Channel source, final BatchMessage batch) {
+        final List<ApplicationMessage> fresh = seen.firstSightings(batch);
+        if (fresh.size() == batch.messages.size())
+            handleBatchMessage(source, batch);
+        else if (fresh.isEmpty())
+            logger.debug("Dropping batch already seen: {}", batch);
+        else
+            for (final Message run : BatchMessage.runs(fresh))
+                if (run instanceof BatchMessage)
+                    handleBatchMessage(source, (BatchMessage) run);
+                else
+                    handleApplicationMessage(source, (ApplicationMessage) run);
+    }
+
+    /*
+     * Work out which of the batched messages each subscriber wants (except for the one who broadcast it), and send each its share.
+     * Subscribers wanting the whole batch get the incoming one as is; a share is sent as runs of consecutively numbered messages,
+     * so that a server getting some of them again by another route can tell exactly which. As for a single message, the shares are
+     * worked out holding the locks the messages are kept under and written after letting go.
+     */
+    private void handleBatchMessage(final Channel source, final BatchMessage batch) {
+        if (replayMessages == 0 && logs == null && latest == null && tables == null) {
+            broadcast(source, batch, shares(source, batch));
+            return;
+        }
+        /*
+         * Rings then logs, each in topic order, then the cache, then tables in topic order, which is safe against other batches
+         * since a subscriber being replayed to, caught up, sent the latest messages or sent a snapshot only ever holds one lock
+         */
+        final SortedMap<String, ReplayRing> lockedRings = new TreeMap<String, ReplayRing>();
+        final SortedMap<String, TopicLog> lockedLogs = new TreeMap<String, TopicLog>();
+        for (final ApplicationMessage msg : batch.messages)
+            if (!lockedRings.containsKey(msg.topic) && !lockedLogs.containsKey(msg.topic)) {
+                final ReplayRing ring = ring(msg.topic);
+                if (ring != null)
+                    lockedRings.put(msg.topic, ring);
+                final TopicLog log = log(msg.topic);
+                if (log != null)
+                    lockedLogs.put(msg.topic, log);
+            }
+        LastValueCache cache = null;
+        final SortedMap<String, KeyedTable> lockedTables = new TreeMap<String, KeyedTable>();
+        for (final ApplicationMessage msg : batch.messages) {
+            if (cache == null)
+                cache = cache(msg.topic);
+            if (msg.key != null && !lockedTables.containsKey(msg.topic)) {
+                final KeyedTable table = table(msg);
+                if (table != null)
+                    lockedTables.put(msg.topic, table);
+            }
+        }
+        for (final ReplayRing ring : lockedRings.values())
+            ring.lock();
+        for (final TopicLog log : lockedLogs.values())
+            log.lock();
+        if (cache != null)
+            cache.lock();
+        for (final KeyedTable table : lockedTables.values())
+            table.lock();
+        final Map<Channel, List<ApplicationMessage>> wanted;
+        try {
+            final long now = System.nanoTime();
+            for (final ApplicationMessage msg : batch.messages) {
+                final ReplayRing ring = lockedRings.get(msg.topic);
+                if (ring != null)
+                    ring.add(msg, now);
+                final TopicLog log = lockedLogs.get(msg.topic);
+                if (log != null)
+                    append(log, msg);
+                if (cache != null && cache.retains(msg.topic))
+                    cache.put(msg);
+                final KeyedTable table = msg.key != null ? lockedTables.get(msg.topic) : null;
+                if (table != null)
+                    put(table, msg);
+            }
+            wanted = shares(source, batch);
+        } finally {
+            for (final KeyedTable table : lockedTables.values())
+                table.unlock();
+            if (cache != null)
+                cache.unlock();
+            for (final TopicLog log : lockedLogs.values())
+                log.unlock();
+            for (final ReplayRing ring : lockedRings.values())
+                ring.unlock();
+        }
+        broadcast(source, batch, wanted);
+    }
+
+    /*
+     * The messages of the batch each subscriber wants, subscribers in the order first seen
+     */
+    private Map<Channel, List<ApplicationMessage>> shares(final Channel source, final BatchMessage batch) {
+        final Map<Channel, List<ApplicationMessage>> wanted = new LinkedHashMap<Channel, List<ApplicationMessage>>();
+        for (final ApplicationMessage msg : batch.messages) {
+            for (final Channel channel : subscribers.subscribers(msg.topic))
+                if (channel != source) {
+                    List<ApplicationMessage> messages = wanted.get(channel);
+                    if (messages == null) {
+                        messages = new ArrayList<ApplicationMessage>(batch.messages.size());
+                        wanted.put(channel, messages);
+                    }
+                    messages.add(msg);
+                }
+        }
+        return wanted;
+    }
+
+    private void broadcast(final Channel source, final BatchMessage batch, final Map<Channel, List<ApplicationMessage>> wanted) {
+        logger.trace("Incoming batch of {} messages from remote {} going to {} channels",
+                asArray(batch.messages.size(), source.getRemoteAddress(), wanted.size()));
+        for (final Map.Entry<Channel, List<ApplicationMessage>> entry : wanted.entrySet()) {
+            final Channel channel = entry.getKey();
+            final List<ApplicationMessage> messages = entry.getValue();
+            if (messages.size() == batch.messages.size()) {
+                if (!held(channel, batch))
+                    channel.write(batch);
+            } else
+                for (final Message run : BatchMessage.runs(messages))
+                    if (!held(channel, run))
+                        channel.write(run);
+        }
+        logger.trace("Batch finished broadcasting");
+    }
+
     private void handleSubscriptionRequest(final Channel channel, final SubscriptionMessage msg) {
-        if (msg.subscribe)
+        // Only peer servers send subscriptions with a server ID
+        if (msg.serverID() != null && !msg.serverID().equals(Message.NO_UUID))
+            subscribers.peer(channel);
+        if (ReplayRing.isResumeHint(msg))
+            resume(channel, msg);
+        else if (TopicLogs.isStartHint(msg))
+            start(channel, msg);
+        else if (msg.subscribe)
             subscribe(channel, msg.topics);
         else
             unsubscribe(channel, msg.topics);
     }
 
+    /*
+     * Holds on to the positions in a resume hint until the subscription that follows it, ignoring it if messages aren't being kept
+     */
+    private void resume(final Channel channel, final SubscriptionMessage hint) {
+        if (replayMessages == 0)
+            return;
+        final Map<String, Map<UUID, Long>> positions = ReplayRing.positions(hint);
+        logger.trace("Channel[{}] will resume topics {}", channel.getRemoteAddress(), positions.keySet());
+        hold(resumes, channel, positions);
+    }
+
+    /*
+     * Holds on to the starts in a start hint until the subscription that follows it, ignoring it if there are no durable topics
+     */
+    private void start(final Channel channel, final SubscriptionMessage hint) {
+        if (logs == null)
+            return;
+        final Map<String, TopicLogs.Start> from = TopicLogs.starts(hint);
+        logger.trace("Channel[{}] will start topics {} from their logs", channel.getRemoteAddress(), from.keySet());
+        hold(starts, channel, from);
+    }
+
+    private static <T> void hold(final ConcurrentMap<Channel, T> pending, final Channel channel, final T hint) {
+        if (pending.put(channel, hint) == null)
+            channel.getCloseFuture().addListener(new ChannelFutureListener() {
+
+                @Override
+                public void operationComplete(final ChannelFuture future) {
+                    pending.remove(future.getChannel());
+                }
+
+            });
+    }
+
     private void subscribe(final Channel channel, final String... topics) {
         logger.trace("Subscription message on channel[{}] for topics: [{}]",
                 asArray(channel.getRemoteAddress(), Arrays.toString(topics)));
+        final Map<String, Map<UUID, Long>> positions = resumes.remove(channel);
+        final Map<String, TopicLogs.Start> from = starts.remove(channel);
         for (final String topic : topics) {
-            lock.lock();
-            try {
-                final DefaultChannelGroup group;
-                if (subscribers.containsKey(topic))
-                    group = subscribers.get(topic);
-                else {
-                    group = new DefaultChannelGroup(topic);
-                    subscribers.put(topic, group);
-                    logger.trace("Creating new subscriber group for topic[{}]", topic);
+            if (!TopicMatcher.isValid(topic)) {
+                logger.warn("Ignoring subscription from channel[{}] to invalid pattern[{}]", channel.getRemoteAddress(), topic);
+                continue;
+            }
+            logger.trace("Subscribing channel[{}] to topic[{}]", asArray(channel.getRemoteAddress(), topic));
+            final TopicLog log = from != null && from.containsKey(topic) ? log(topic) : null;
+            if (log != null) {
+                new CatchUp(channel, topic, log, from.get(topic).offset(log)).run();
+                continue;
+            }
+            final ReplayRing ring = positions != null && positions.containsKey(topic) ? rings.get(topic) : null;
+            final KeyedTables tables = this.tables;
+            final KeyedTable table = ring == null && tables != null ? tables.existing(topic) : null;
+            if (table != null) {
+                new Snapshot(channel, topic, table).start();
+                continue;
+            }
+            final LastValueCache cache = ring != null ? null : TopicMatcher.isPattern(topic) ? latest : cache(topic);
+            final boolean first;
+            if (ring == null && cache == null)
+                first = subscribers.add(topic, channel);
+            else if (ring == null) {
+                final Gate gate = hold(channel);
+                try {
+                    cache.lock();
+                    try {
+                        gate.addAll(cache.latest(topic));
+                        first = subscribers.add(topic, channel);
+                    } finally {
+                        cache.unlock();
+                    }
+                } finally {
+                    gate.release();
+                }
+            } else {
+                final Gate gate = hold(channel);
+                try {
+                    ring.lock();
+                    try {
+                        final List<ApplicationMessage> missed = ring.since(positions.get(topic), System.nanoTime());
+                        logger.trace("Replaying {} messages on topic[{}] to channel[{}]",
+                                asArray(missed.size(), topic, channel.getRemoteAddress()));
+                        gate.addAll(missed);
+                        first = subscribers.add(topic, channel);
+                    } finally {
+                        ring.unlock();
+                    }
+                } finally {
+                    gate.release();
                 }
-                logger.trace("Subscribing channel[{}] to topic[{}]", asArray(channel.getRemoteAddress(), topic));
-                group.add(channel);
-            } finally {
-                lock.unlock();
             }
-            logger.trace("Subscribing topic[{}] on remote servers to receive forwarded messages", topic);
-            for (final PubSubClient remote : remoteServers)
-                remote.subscribe(topic);
+            if (first)
+                logger.trace("First subscriber for topic[{}], will subscribe on remote servers", topic);
         }
         logger.trace("Subscription message finished processing");
     }
@@ -193,24 +630,314 @@ final class ServerMessageHandler extends SimpleChannelUpstreamHandler {
         logger.trace("[un]Subscription message for channel[{}] on topics[{}]",
                 new Object[] { channel.getRemoteAddress(), Arrays.toString(topics) });
         for (final String topic : topics) {
-            lock.lock();
+            if (subscribers.remove(topic, channel))
+                logger.trace("Last subscriber gone for topic[{}], will un-subscribe on remote servers", topic);
+        }
+        logger.trace("[un]Subscription message finished processing");
+    }
+
+    /*
+     * Holds the channel's gate, opening one if there isn't one already
+     */
+    private Gate hold(final Channel channel) {
+        for (;;) {
+            Gate gate = gates.get(channel);
+            if (gate == null) {
+                final Gate created = new Gate(channel);
+                gate = gates.putIfAbsent(channel, created);
+                if (gate == null)
+                    gate = created;
+            }
+            if (gate.hold())
+                return gate;
+        }
+    }
+
+    /*
+     * Whether a message broadcast to the channel is held back by its gate, rather than to be written
+     */
+    private boolean held(final Channel channel, final Object message) {
+        if (gates.isEmpty())
+            return false;
+        final Gate gate = gates.get(channel);
+        return gate != null && gate.add(message);
+    }
+
+    /*
+     * Carries on sending a subscriber what it is catching up on once a write completes, on a thread of our own: not on the one that
+     * completed it, which may be an I/O thread, nor from within addListener, which runs a listener at once if already complete
+     */
+    private void carryOn(final Runnable sender) {
+        try {
+            service.execute(sender);
+        } catch (final RejectedExecutionException ree) {
+            logger.debug("Server stopping, not carrying on with {}", sender);
+        }
+    }
+
+    /*
+     * Sends a subscriber what it asked for from a topic's log as it was read, a chunk at a time once the previous one is written.
+     * The last of it is read holding the log's lock, and the subscriber added before letting go, so that nothing published in the
+     * meantime is missed or sent twice; it is written after, ahead of anything broadcast to the subscriber meanwhile. Frames skip
+     * the subscriber's queue, but in-VM they are read back into messages that go through it and may be shed; only the channel
+     * closing stops a catch-up.
+     */
+    private final class CatchUp implements ChannelFutureListener, Runnable {
+
+        private final Channel  channel;
+        private final String   topic;
+        private final TopicLog log;
+        private long           next;
+
+        CatchUp(final Channel channel, final String topic, final TopicLog log, final long from) {
+            this.channel = channel;
+            this.topic = topic;
+            this.log = log;
+            next = from;
+        }
+
+        /*
+         * Carries straight on with the next chunk for as long as the last is written at once, as it is in-VM, and only waits on one
+         * that isn't
+         */
+        @Override
+        public void run() {
+            while (channel.isOpen()) {
+                final List<ChannelBuffer> frames = new ArrayList<ChannelBuffer>(CATCH_UP_FRAMES);
+                next = log.read(next, CATCH_UP_FRAMES, frames) + frames.size();
+                if (frames.size() < CATCH_UP_FRAMES) {
+                    finish(frames);
+                    return;
+                }
+                final ChannelFuture written = send(frames);
+                if (written != null && !written.isDone()) {
+                    written.addListener(this);
+                    return;
+                }
+            }
+            logger.debug("Gave up catching channel[{}] up on topic[{}]", channel.getRemoteAddress(), topic);
+        }
+
+        private void finish(final List<ChannelBuffer> frames) {
+            final Gate gate = hold(channel);
+            try {
+                log.lock();
+                try {
+                    final int read = frames.size();
+                    next = log.read(next, Integer.MAX_VALUE, frames) + frames.size() - read;
+                    gate.addAll(messages(frames));
+                    logger.trace("Caught channel[{}] up to offset {} on topic[{}]",
+                            asArray(channel.getRemoteAddress(), next, topic));
+                    if (subscribers.add(topic, channel))
+                        logger.trace("First subscriber for topic[{}], will subscribe on remote servers", topic);
+                } finally {
+                    log.unlock();
+                }
+            } finally {
+                gate.release();
+            }
+        }
+
+        /*
+         * A message shed or conflated by the subscriber's queue fails its write, but still leaves the subscriber to be caught up
+         */
+        @Override
+        public void operationComplete(final ChannelFuture future) {
+            carryOn(this);
+        }
+
+        private ChannelFuture send(final List<ChannelBuffer> frames) {
+            ChannelFuture rv = null;
+            for (final Object message : messages(frames))
+                rv = channel.write(message);
+            return rv;
+        }
+
+        /*
+         * Frames go out as they are, unless there is no encoder (in-VM) in which case they're read back into messages first
+         */
+        private List<Object> messages(final List<ChannelBuffer> frames) {
+            final boolean raw = channel.getPipeline().get(MessageCodec.Encoder.class) != null;
+            final WireDictionary dictionary = raw ? null : new WireDictionary();
+            final List<Object> rv = new ArrayList<Object>(frames.size());
+            for (final ChannelBuffer frame : frames)
+                try {
+                    rv.add(raw ? frame : Message.unmarshall(frame, dictionary));
+                } catch (final MessageFormatException mfe) {
+                    logger.warn("Skipping unreadable frame in log of topic[" + topic + "]", mfe);
+                }
+            return rv;
+        }
+
+    }
+
+    /*
+     * Sends a new subscriber the latest message for each key of a keyed topic, a chunk at a time once the previous one is written.
+     * The subscriber is added first, so it gets changes made while the snapshot is being sent as they happen; each chunk is read
+     * holding the table's lock and written after, ahead of anything broadcast to the subscriber meanwhile, so a key is only ever
+     * sent again with the same or a newer message from the same source.
+     * If the table's index is rebuilt in the meantime the snapshot starts over.
+     */
+    private final class Snapshot implements ChannelFutureListener, Runnable {
+
+        private final Channel    channel;
+        private final String     topic;
+        private final KeyedTable table;
+        private int              next;
+        private int              generation;
+
+        Snapshot(final Channel channel, final String topic, final KeyedTable table) {
+            this.channel = channel;
+            this.topic = topic;
+            this.table = table;
+            next = 0;
+        }
+
+        void start() {
+            table.lock();
             try {
-                final DefaultChannelGroup group = subscribers.get(topic);
-                if (group != null) {
-                    group.remove(channel);
-                    if (group.isEmpty()) {
-                        logger.trace("Removing empty subscriber group for topic[{}]", topic);
-                        subscribers.remove(topic);
+                generation = table.generation();
+                logger.trace("Sending channel[{}] a snapshot of {} keys on topic[{}]",
+                        asArray(channel.getRemoteAddress(), table.size(), topic));
+                if (subscribers.add(topic, channel))
+                    logger.trace("First subscriber for topic[{}], will subscribe on remote servers", topic);
+            } finally {
+                table.unlock();
+            }
+            run();
+        }
+
+        /*
+         * Carries straight on with the next chunk for as long as the last is written at once, as it is in-VM, and only waits on one
+         * that isn't
+         */
+        @Override
+        public void run() {
+            while (channel.isOpen()) {
+                final List<ApplicationMessage> chunk = new ArrayList<ApplicationMessage>(SNAPSHOT_KEYS);
+                final Gate gate = hold(channel);
+                ChannelFuture written = null;
+                try {
+                    table.lock();
+                    try {
+                        if (table.generation() != generation) {
+                            generation = table.generation();
+                            next = 0;
+                        }
+                        next = table.read(next, SNAPSHOT_KEYS, chunk);
+                        gate.addAll(chunk);
+                    } finally {
+                        table.unlock();
                     }
+                } finally {
+                    // Null if another thread is writing what the gate holds, in which case there is nothing to wait on
+                    written = gate.release();
+                }
+                if (next < 0) {
+                    logger.trace("Finished sending channel[{}] a snapshot of topic[{}]", channel.getRemoteAddress(), topic);
+                    return;
+                } else if (written != null && !written.isDone()) {
+                    written.addListener(this);
+                    return;
+                }
+            }
+            logger.debug("Gave up sending channel[{}] a snapshot of topic[{}]", channel.getRemoteAddress(), topic);
+        }
+
+        /*
+         * Messages shed by the subscriber's queue don't stop the snapshot, only the channel closing does
+         */
+        @Override
+        public void operationComplete(final ChannelFuture future) {
+            carryOn(this);
+        }
+
+    }
+
+    /*
+     * Holds back what is broadcast to a channel while it is sent what it missed, which is read holding the locks of a topic but
+     * written after letting go of them: held, the gate takes what is broadcast to the channel, and let go of, it writes what it has
+     * taken in order. Several catch-ups on the same channel share its gate, which goes once the last lets go and nothing is left.
+     */
+    private final class Gate {
+
+        private final Channel      channel;
+        private final List<Object> held;
+        private int                holders;
+        private boolean            releasing;
+        private boolean            gone;
+
+        Gate(final Channel channel) {
+            this.channel = channel;
+            held = new ArrayList<Object>();
+            holders = 0;
+            releasing = false;
+            gone = false;
+        }
+
+        /*
+         * False if the gate has gone, in which case a new one is needed
+         */
+        synchronized boolean hold() {
+            if (gone)
+                return false;
+            ++holders;
+            return true;
+        }
+
+        synchronized boolean add(final Object message) {
+            if (gone)
+                return false;
+            held.add(message);
+            return true;
+        }
+
+        synchronized void addAll(final Collection<?> messages) {
+            held.addAll(messages);
+        }
+
+        /*
+         * Writes what the gate holds, none of it under the gate's monitor since in-VM a write runs the subscriber's callbacks, unless
+         * another thread already is; anything added meanwhile is written by whichever thread is writing
+         * 
+         * @return the last write made, or null if none was
+         */
+        ChannelFuture release() {
+            synchronized (this) {
+                --holders;
+                if (releasing)
+                    return null;
+                releasing = true;
+            }
+            ChannelFuture rv = null;
+            boolean done = false;
+            try {
+                for (;;) {
+                    final List<Object> writing;
+                    synchronized (this) {
+                        if (held.isEmpty()) {
+                            releasing = false;
+                            if (holders == 0) {
+                                gone = true;
+                                gates.remove(channel, this);
+                            }
+                            done = true;
+                            return rv;
+                        }
+                        writing = new ArrayList<Object>(held);
+                        held.clear();
+                    }
+                    for (final Object message : writing)
+                        rv = channel.write(message);
                 }
             } finally {
-                lock.unlock();
+                if (!done)
+                    synchronized (this) {
+                        releasing = false;
+                    }
             }
-            logger.trace("Un-subscribing frmo topic[{}] on remote servers to stop receiving forwarded messages", topic);
-            for (final PubSubClient remote : remoteServers)
-                remote.unsubscribe(topic);
         }
-        logger.trace("[un]Subscription message finished processing");
+
     }
 
 }
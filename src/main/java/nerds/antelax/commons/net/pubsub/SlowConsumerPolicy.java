@@ -0,0 +1,47 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+/**
+ * What a {@link PubSubServer} does with messages for a subscriber that isn't keeping up, once the messages held back for it exceed
+ * its budget.
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * Shed the longest held back messages to make room for new ones.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Shed new messages until there is room for them.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Replace a held back message with a newer one on the same topic as soon as it arrives, budget or not, so that the subscriber
+     * gets only the latest on each topic and at most one message per topic is held back; if there is none to replace and no room,
+     * shed the oldest. For topics that carry state rather than events.
+     */
+    CONFLATE,
+
+    /**
+     * Shed new messages, and disconnect the subscriber once it has been over budget for longer than allowed.
+     */
+    DISCONNECT;
+
+}
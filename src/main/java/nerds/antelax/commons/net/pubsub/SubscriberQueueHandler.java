@@ -0,0 +1,276 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import static nerds.antelax.commons.base.Conversions.asArray;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/*
+ * Per subscriber channel on the server: holds back application messages while the channel is unwritable and releases them in order
+ * once it drains, keeping what is held back within a budget of messages and bytes according to a SlowConsumerPolicy. One slow
+ * subscriber therefore costs the server at most its budget, rather than an ever growing write buffer.
+ * 
+ * With SlowConsumerPolicy.CONFLATE, an application message held back is replaced by any newer one on the same topic (and key, for
+ * keyed messages) whether or not over budget, so at most one message per topic or key (besides batches) is ever held back. The
+ * message first held back keeps its place in the queue, and the latest on its topic is what gets sent from there.
+ * 
+ * With SlowConsumerPolicy.DISCONNECT, the subscriber is over budget from the first message shed until what is held back drains to
+ * within budget again, and is closed on the timer if that takes too long, whether or not anything more is written to it.
+ */
+final class SubscriberQueueHandler extends SimpleChannelHandler {
+
+    private static final Logger             logger = LoggerFactory.getLogger(SubscriberQueueHandler.class);
+
+    private final int                       maxMessages;
+    private final long                      maxBytes;
+    private final SlowConsumerPolicy        policy;
+    private final Timer                     timer;
+    private final long                      disconnectNanos;
+    private final LinkedList<MessageEvent>  queue;
+    // For CONFLATE, the latest message held back on each topic (and key), sent in place of the one holding its place in the queue
+    private final Map<String, MessageEvent> latest;
+    private long                            queuedBytes;
+    private long                            overBudgetSince;
+    private Timeout                         disconnectCheck;
+    private long                            shed;
+    private long                            conflated;
+    // Whether a thread is sending what was held back, so that new messages go behind rather than overtake the one it has in hand
+    private boolean                         releasing;
+
+    /**
+     * @param disconnectAfter
+     *            for {@link SlowConsumerPolicy#DISCONNECT}, how long the subscriber may stay over budget
+     */
+    SubscriberQueueHandler(final int maxMessages, final long maxBytes, final SlowConsumerPolicy policy, final Timer timer,
+            final long disconnectAfter, final TimeUnit disconnectUnits) {
+        Preconditions.checkArgument(maxMessages >= 0, "Message budget cannot be negative");
+        Preconditions.checkArgument(maxBytes >= 0, "Byte budget cannot be negative");
+        Preconditions.checkNotNull(policy, "Policy cannot be null");
+        Preconditions.checkNotNull(timer, "Timer cannot be null");
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.timer = timer;
+        disconnectNanos = disconnectUnits.toNanos(disconnectAfter);
+        queue = new LinkedList<MessageEvent>();
+        latest = new HashMap<String, MessageEvent>();
+        queuedBytes = 0;
+        overBudgetSince = -1;
+        disconnectCheck = null;
+        shed = 0;
+        conflated = 0;
+        releasing = false;
+    }
+
+    synchronized long shedMessages() {
+        return shed;
+    }
+
+    synchronized long conflatedMessages() {
+        return conflated;
+    }
+
+    synchronized int queuedMessages() {
+        return queue.size();
+    }
+
+    synchronized long queuedBytes() {
+        return queuedBytes;
+    }
+
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+        final Object o = e.getMessage();
+        if (!(o instanceof ApplicationMessage) && !(o instanceof BatchMessage)) {
+            super.writeRequested(ctx, e);
+            return;
+        }
+        final Channel channel = e.getChannel();
+        final int size = ((Message) o).estimatedBodySize();
+        // Decided under the monitor but sent after it, since in-VM the write runs the subscriber's inline callbacks and they may well
+        // publish to other subscribers in turn
+        boolean pass = false;
+        synchronized (this) {
+            if (queue.isEmpty() && !releasing && channel.isWritable())
+                pass = true;
+            else if (policy == SlowConsumerPolicy.CONFLATE && conflate(e, size))
+                return;
+            else if (fits(size))
+                enqueue(e, size);
+            else if (policy == SlowConsumerPolicy.DROP_OLDEST || policy == SlowConsumerPolicy.CONFLATE) {
+                while (!fits(size))
+                    shed(dequeue(), OverflowException.DROPPED);
+                enqueue(e, size);
+            } else {
+                shed(e, OverflowException.QUEUE_FULL);
+                if (policy == SlowConsumerPolicy.DISCONNECT && overBudgetSince < 0) {
+                    overBudgetSince = System.nanoTime();
+                    if (disconnectCheck == null)
+                        disconnectCheck = timer.newTimeout(new DisconnectCheck(channel), disconnectNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+        if (pass)
+            ctx.sendDownstream(e);
+    }
+
+    private boolean fits(final int size) {
+        return queue.isEmpty() || (queue.size() < maxMessages && queuedBytes + size <= maxBytes);
+    }
+
+    private void enqueue(final MessageEvent e, final int size) {
+        queue.add(e);
+        queuedBytes += size;
+        if (policy == SlowConsumerPolicy.CONFLATE && e.getMessage() instanceof ApplicationMessage)
+            latest.put(((ApplicationMessage) e.getMessage()).conflationKey(), e);
+    }
+
+    /*
+     * Replaces the message held back on the same topic (and key) as e, if there is one, keeping its place in the queue so that busy
+     * topics don't keep going to the back of it.
+     */
+    private boolean conflate(final MessageEvent e, final int size) {
+        if (!(e.getMessage() instanceof ApplicationMessage))
+            return false;
+        final String key = ((ApplicationMessage) e.getMessage()).conflationKey();
+        final MessageEvent queued = latest.get(key);
+        if (queued == null)
+            return false;
+        queuedBytes += size - ((Message) queued.getMessage()).estimatedBodySize();
+        latest.put(key, e);
+        ++conflated;
+        queued.getFuture().setFailure(OverflowException.CONFLATED);
+        return true;
+    }
+
+    @Override
+    public void channelInterestChanged(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            if (releasing) {
+                super.channelInterestChanged(ctx, e);
+                return;
+            }
+            releasing = true;
+        }
+        // One message at a time and none of them under the monitor, while anything written meanwhile queues up behind
+        MessageEvent next = null;
+        try {
+            while ((next = next(e.getChannel())) != null)
+                ctx.sendDownstream(next);
+        } finally {
+            if (next != null)
+                // Only when sending threw, otherwise next() has already stopped releasing
+                synchronized (this) {
+                    releasing = false;
+                }
+        }
+        super.channelInterestChanged(ctx, e);
+    }
+
+    /*
+     * The next message to release if the channel can take it, otherwise stops releasing
+     */
+    private synchronized MessageEvent next(final Channel channel) {
+        if (!queue.isEmpty() && channel.isWritable())
+            return dequeue();
+        releasing = false;
+        return null;
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            while (!queue.isEmpty())
+                dequeue().getFuture().setFailure(OverflowException.CHANNEL_CLOSED);
+            if (disconnectCheck != null) {
+                disconnectCheck.cancel();
+                disconnectCheck = null;
+            }
+            if (shed > 0 || conflated > 0)
+                logger.info("Shed {} and conflated {} messages for subscriber[{}]",
+                        asArray(shed, conflated, e.getChannel().getRemoteAddress()));
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    /*
+     * Takes the message at the front of the queue, or for CONFLATE the latest on its topic if it has been replaced since
+     */
+    private MessageEvent dequeue() {
+        MessageEvent e = queue.removeFirst();
+        if (policy == SlowConsumerPolicy.CONFLATE && e.getMessage() instanceof ApplicationMessage)
+            e = latest.remove(((ApplicationMessage) e.getMessage()).conflationKey());
+        queuedBytes -= ((Message) e.getMessage()).estimatedBodySize();
+        if (queue.isEmpty() || (queue.size() < maxMessages && queuedBytes < maxBytes))
+            // Within budget again, so a DISCONNECT allowance starts over the next time a message is shed
+            overBudgetSince = -1;
+        return e;
+    }
+
+    private void shed(final MessageEvent e, final OverflowException cause) {
+        ++shed;
+        e.getFuture().setFailure(cause);
+    }
+
+    /*
+     * Closes the subscriber's channel once it has been over budget for longer than allowed, otherwise checks again when it would be
+     */
+    private final class DisconnectCheck implements TimerTask {
+
+        private final Channel channel;
+
+        DisconnectCheck(final Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run(final Timeout timeout) {
+            synchronized (SubscriberQueueHandler.this) {
+                disconnectCheck = null;
+                if (overBudgetSince < 0 || timeout.isCancelled())
+                    return;
+                final long remaining = overBudgetSince + disconnectNanos - System.nanoTime();
+                if (remaining > 0) {
+                    disconnectCheck = timer.newTimeout(this, remaining, TimeUnit.NANOSECONDS);
+                    return;
+                }
+            }
+            logger.info("Disconnecting subscriber[{}], over budget for longer than {}ms with {} messages shed",
+                    asArray(channel.getRemoteAddress(), TimeUnit.NANOSECONDS.toMillis(disconnectNanos), shedMessages()));
+            channel.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,252 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+
+/**
+ * Which channels subscribe to which topics, kept as an immutable array of channels per topic that is replaced, never modified, on
+ * every change. Changes to different topics don't contend with one another, and broadcasting is a plain loop over the array it
+ * gets from {@link #subscribers(String)} without taking any locks. Subscriptions to wildcard patterns (see {@link TopicMatcher})
+ * are kept the same way, and also in a matcher that finds the channels subscribed to patterns matching a topic. Channels are
+ * removed from all their topics when closed. Topics getting their first local subscriber or losing their last are passed on to a
+ * {@link SubscriptionPropagator}; connections from peer servers get messages like any other subscriber but aren't local, since
+ * passing their interest back to the peers would have each server keep the other subscribed for ever.
+ */
+final class SubscriberRegistry {
+
+    static final Channel[]                            NO_SUBSCRIBERS = new Channel[0];
+
+    private final ConcurrentMap<String, Channel[]>    subscribers;
+    private final ConcurrentMap<String, Channel[]>    patternSubscribers;
+    private final TopicMatcher<Channel>               matcher;
+    private final ConcurrentMap<Channel, Set<String>> topics;
+    private final Set<Channel>                        peers;
+    private final ChannelFutureListener               removeOnClose;
+    private final SubscriptionPropagator              propagator;
+
+    SubscriberRegistry(final SubscriptionPropagator propagator) {
+        Preconditions.checkNotNull(propagator);
+        this.propagator = propagator;
+        subscribers = new ConcurrentHashMap<String, Channel[]>();
+        patternSubscribers = new ConcurrentHashMap<String, Channel[]>();
+        matcher = new TopicMatcher<Channel>(NO_SUBSCRIBERS);
+        topics = new ConcurrentHashMap<Channel, Set<String>>();
+        peers = Sets.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+        removeOnClose = new ChannelFutureListener() {
+
+            @Override
+            public void operationComplete(final ChannelFuture future) {
+                propagator.changed(removeAll(future.getChannel()));
+            }
+
+        };
+    }
+
+    /**
+     * @return the channels subscribed to <code>topic</code> or to patterns matching it, each once, which must not be modified
+     */
+    Channel[] subscribers(final String topic) {
+        Channel[] channels = subscribers.get(topic);
+        if (channels == null)
+            channels = NO_SUBSCRIBERS;
+        if (matcher.isEmpty())
+            return channels;
+        final Channel[] matched = matcher.match(topic);
+        if (matched.length == 0)
+            return channels;
+        else if (channels.length == 0)
+            return matched;
+        else {
+            final Set<Channel> union = new LinkedHashSet<Channel>(channels.length + matched.length);
+            for (final Channel channel : channels)
+                union.add(channel);
+            for (final Channel channel : matched)
+                union.add(channel);
+            return union.toArray(NO_SUBSCRIBERS);
+        }
+    }
+
+    /**
+     * @return true if <code>topic</code>, or pattern, has local subscribers itself; patterns matching it don't count
+     */
+    boolean hasLocalSubscribers(final String topic) {
+        return hasLocal(subscribers.get(topic)) || hasLocal(patternSubscribers.get(topic));
+    }
+
+    /**
+     * Marks <code>channel</code> as a connection from a peer server, so that its subscriptions aren't local ones; must be called
+     * before any of them are added.
+     */
+    void peer(final Channel channel) {
+        Preconditions.checkNotNull(channel);
+        channelTopics(channel);
+        peers.add(channel);
+    }
+
+    /**
+     * @return the topics and patterns with subscribers
+     */
+    Collection<String> topics() {
+        final Collection<String> rv = new ArrayList<String>(subscribers.keySet());
+        rv.addAll(patternSubscribers.keySet());
+        return rv;
+    }
+
+    /**
+     * @return true if <code>channel</code> is the first local subscriber to <code>topic</code>, which may be a pattern
+     */
+    boolean add(final String topic, final Channel channel) {
+        Preconditions.checkNotNull(topic);
+        Preconditions.checkNotNull(channel);
+        final boolean pattern = TopicMatcher.isPattern(topic);
+        if (pattern)
+            matcher.add(topic, channel);
+        final boolean first = channelTopics(channel).add(topic)
+                && addSubscriber(pattern ? patternSubscribers : subscribers, topic, channel);
+        if (!channel.isOpen()) {
+            // Closed before its close listener was added (which then ran at once) or while this subscription was being added:
+            // either way the listener may have run before the channel went into the topic's array, so it comes out again here
+            final Collection<String> emptied = removeAll(channel);
+            if (removeSubscriber(topic, channel) && !emptied.contains(topic))
+                emptied.add(topic);
+            propagator.changed(emptied);
+            return false;
+        } else if (first) {
+            propagator.changed(topic);
+            return true;
+        } else
+            return false;
+    }
+
+    /**
+     * @return true if <code>channel</code> was the last local subscriber to <code>topic</code>, which may be a pattern
+     */
+    boolean remove(final String topic, final Channel channel) {
+        Preconditions.checkNotNull(topic);
+        Preconditions.checkNotNull(channel);
+        final Set<String> channelTopics = topics.get(channel);
+        if (channelTopics != null && channelTopics.remove(topic) && removeSubscriber(topic, channel)) {
+            propagator.changed(topic);
+            return true;
+        } else
+            return false;
+    }
+
+    /**
+     * @return the topics and patterns <code>channel</code> was the last local subscriber to, which are left for the caller to pass
+     *         on
+     */
+    Collection<String> removeAll(final Channel channel) {
+        final Collection<String> emptied = new ArrayList<String>();
+        final Set<String> channelTopics = topics.remove(channel);
+        if (channelTopics != null)
+            for (final String topic : channelTopics)
+                if (removeSubscriber(topic, channel))
+                    emptied.add(topic);
+        peers.remove(channel);
+        return emptied;
+    }
+
+    private Set<String> channelTopics(final Channel channel) {
+        Set<String> channelTopics = topics.get(channel);
+        if (channelTopics == null) {
+            final Set<String> created = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            channelTopics = topics.putIfAbsent(channel, created);
+            if (channelTopics == null) {
+                channelTopics = created;
+                channel.getCloseFuture().addListener(removeOnClose);
+            }
+        }
+        return channelTopics;
+    }
+
+    /*
+     * Whether there was no local subscriber before is decided on the array actually replaced, so that of two local subscribers
+     * added at once exactly one is the first
+     */
+    private boolean addSubscriber(final ConcurrentMap<String, Channel[]> map, final String topic, final Channel channel) {
+        final boolean local = !peers.contains(channel);
+        while (true) {
+            final Channel[] current = map.get(topic);
+            if (current == null) {
+                if (map.putIfAbsent(topic, new Channel[] { channel }) == null)
+                    return local;
+            } else {
+                final Channel[] updated = new Channel[current.length + 1];
+                System.arraycopy(current, 0, updated, 0, current.length);
+                updated[current.length] = channel;
+                if (map.replace(topic, current, updated))
+                    return local && !hasLocal(current);
+            }
+        }
+    }
+
+    private boolean removeSubscriber(final String topic, final Channel channel) {
+        final ConcurrentMap<String, Channel[]> map;
+        if (TopicMatcher.isPattern(topic)) {
+            matcher.remove(topic, channel);
+            map = patternSubscribers;
+        } else
+            map = subscribers;
+        final boolean local = !peers.contains(channel);
+        while (true) {
+            final Channel[] current = map.get(topic);
+            final int index = current != null ? indexOf(current, channel) : -1;
+            if (index < 0)
+                return false;
+            else if (current.length == 1) {
+                if (map.remove(topic, current))
+                    return local;
+            } else {
+                final Channel[] updated = new Channel[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index, updated.length - index);
+                if (map.replace(topic, current, updated))
+                    return local && !hasLocal(updated);
+            }
+        }
+    }
+
+    private boolean hasLocal(final Channel[] channels) {
+        if (channels != null)
+            for (final Channel channel : channels)
+                if (!peers.contains(channel))
+                    return true;
+        return false;
+    }
+
+    private static int indexOf(final Channel[] channels, final Channel channel) {
+        for (int i = 0; i < channels.length; ++i)
+            if (channels[i] == channel)
+                return i;
+        return -1;
+    }
+
+}
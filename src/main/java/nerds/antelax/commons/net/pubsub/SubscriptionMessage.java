@@ -51,24 +51,20 @@ final class SubscriptionMessage extends Message {
 
     SubscriptionMessage(final ChannelBuffer body) {
         super(Type.Subscription);
-        this.body = ChannelBuffers.copiedBuffer(body);
-        subscribe = this.body.readInt() > 0;
-        topics = new String[this.body.readInt()];
+        this.body = body;
+        final ChannelBuffer in = body.duplicate();
+        subscribe = in.readInt() > 0;
+        topics = new String[in.readInt()];
         for (int pos = 0; pos < topics.length; ++pos) {
-            final ChannelBuffer topic = ChannelBuffers.buffer(this.body.readInt());
-            this.body.readBytes(topic, topic.capacity());
-            topics[pos] = topic.toString(Charsets.UTF_8);
+            final int length = in.readInt();
+            topics[pos] = WireDictionary.intern(in.toString(in.readerIndex(), length, Charsets.UTF_8));
+            in.skipBytes(length);
         }
     }
 
     @Override
-    int estimatedBodySize() {
-        return body.capacity();
-    }
-
-    @Override
-    void marshallBody(final ChannelBuffer buffer) {
-        buffer.writeBytes(body, 0, body.capacity());
+    ChannelBuffer body() {
+        return body;
     }
 
 }
@@ -0,0 +1,121 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+
+/**
+ * Tells a server's peers which topics its clients are interested in. Only a topic's first local subscriber arriving or its last
+ * leaving matters (peers subscribed to the server don't count, see {@link SubscriberRegistry}), and such changes are gathered for a
+ * short while then sent to each peer as at most one subscribe and one unsubscribe message. What is sent is worked out from whether
+ * topics have local subscribers when the changes are sent, rather than from the changes themselves, so a topic whose last
+ * subscriber leaves and another arrives in the meantime sends nothing.
+ */
+final class SubscriptionPropagator implements TimerTask {
+
+    private static final Logger            logger                  = LoggerFactory.getLogger(SubscriptionPropagator.class);
+
+    static final long                      DEFAULT_DEBOUNCE_MILLIS = 10;
+
+    private final Collection<PubSubClient> peers;
+    private final Predicate<String>        wanted;
+    private final Timer                    timer;
+    private final long                     debounceMillis;
+    private final Set<String>              changed;
+    private final Set<String>              propagated;
+    private Timeout                        flush;
+    private boolean                        stopped;
+
+    /**
+     * @param wanted
+     *            whether a topic (or pattern) currently has local subscribers
+     */
+    SubscriptionPropagator(final Collection<PubSubClient> peers, final Predicate<String> wanted, final Timer timer,
+            final long debounceMillis) {
+        Preconditions.checkNotNull(peers);
+        Preconditions.checkNotNull(wanted);
+        Preconditions.checkNotNull(timer);
+        Preconditions.checkArgument(debounceMillis >= 0);
+        this.peers = peers;
+        this.wanted = wanted;
+        this.timer = timer;
+        this.debounceMillis = debounceMillis;
+        changed = new LinkedHashSet<String>();
+        propagated = new HashSet<String>();
+        flush = null;
+        stopped = false;
+    }
+
+    /**
+     * Called when <code>topic</code> gets its first local subscriber or loses its last.
+     */
+    synchronized void changed(final String topic) {
+        if (peers.isEmpty() || stopped)
+            return;
+        changed.add(topic);
+        if (flush == null)
+            flush = timer.newTimeout(this, debounceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void changed(final Collection<String> topics) {
+        for (final String topic : topics)
+            changed(topic);
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (flush != null) {
+            flush.cancel();
+            flush = null;
+        }
+    }
+
+    @Override
+    public synchronized void run(final Timeout timeout) {
+        flush = null;
+        final List<String> subscribe = new ArrayList<String>();
+        final List<String> unsubscribe = new ArrayList<String>();
+        for (final String topic : changed)
+            if (wanted.apply(topic)) {
+                if (propagated.add(topic))
+                    subscribe.add(topic);
+            } else if (propagated.remove(topic))
+                unsubscribe.add(topic);
+        logger.debug("Propagating {} subscribes and {} unsubscribes from {} changed topics to peers",
+                new Object[] { subscribe.size(), unsubscribe.size(), changed.size() });
+        changed.clear();
+        if (!subscribe.isEmpty() || !unsubscribe.isEmpty())
+            for (final PubSubClient peer : peers)
+                peer.interest(subscribe, unsubscribe);
+    }
+
+}
@@ -0,0 +1,63 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+
+package nerds.antelax.commons.net.pubsub;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/*
+ * Control message binding a topic to an integer ID for the rest of the life of a channel, in the direction it was sent. Application
+ * messages sent after it carry only the ID in place of the UTF-8 topic.
+ */
+final class TopicDefinitionMessage extends Message {
+
+    private final ChannelBuffer body;
+    final int                   id;
+    final String                topic;
+
+    TopicDefinitionMessage(final int id, final String topic) {
+        super(Type.TopicDefinition);
+        Preconditions.checkArgument(id >= 0 && id < WireDictionary.MAX_TOPICS, "Topic ID %s out of range", id);
+        Preconditions.checkNotNull(topic, "Topic cannot be null");
+        this.id = id;
+        this.topic = topic;
+        final byte[] topicBytes = topic.getBytes(Charsets.UTF_8);
+        body = ChannelBuffers.buffer(8 + topicBytes.length);
+        body.writeInt(id);
+        body.writeInt(topicBytes.length);
+        body.writeBytes(topicBytes);
+    }
+
+    TopicDefinitionMessage(final ChannelBuffer body) throws MessageFormatException {
+        super(Type.TopicDefinition);
+        if (body.readableBytes() < 8 || body.getInt(body.readerIndex() + 4) != body.readableBytes() - 8)
+            throw new MessageFormatException("Malformed topic definition of length " + body.readableBytes());
+        this.body = body;
+        id = body.getInt(body.readerIndex());
+        topic = body.toString(body.readerIndex() + 8, body.readableBytes() - 8, Charsets.UTF_8);
+    }
+
+    @Override
+    ChannelBuffer body() {
+        return body;
+    }
+
+}
@@ -0,0 +1,349 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An append-only log of the frames published on a durable topic, kept in a directory of fixed size segment files that are
+ * written and read through memory mappings. Each message gets the next offset on the topic, starting from 0; frames are stored
+ * as version 1 frames so that they can be sent to any subscriber exactly as read, without being encoded again.
+ * <p>
+ * Each segment is named after the offset of its first record and comes with a sparse index, one entry for every
+ * {@link #INDEX_INTERVAL_BYTES} or so of records, for finding an offset or a time without reading the whole segment. Segments are
+ * only made durable when {@link #flush()} is called, so that appends made in between share the cost. Whole segments are deleted,
+ * oldest first, once the log is over its size limit or they are over its age limit; the segment being written is always kept.
+ * <p>
+ * A record is committed by writing its length last, so a record being written when the server went down is dropped when the
+ * segment is next opened. Callers hold the lock (see {@link #lock()}) while appending a message and looking up the topic's
+ * subscribers, and while reading the last of what a subscriber asked for and adding it as a subscriber; both are written after
+ * letting go, what was read through the subscriber's gate in the server, which holds back anything broadcast to it meanwhile.
+ */
+final class TopicLog {
+
+    private static final Logger          logger               = LoggerFactory.getLogger(TopicLog.class);
+
+    // Record: frame length, offset, time appended in milliseconds, then the frame
+    static final int                     RECORD_HEADER_SIZE   = 4 + 8 + 8;
+    // Index entry: offset relative to that of the segment, position in the segment, time appended
+    static final int                     INDEX_ENTRY_SIZE     = 4 + 4 + 8;
+    static final int                     INDEX_INTERVAL_BYTES = 4096;
+
+    private static final String          LOG_SUFFIX           = ".log";
+    private static final String          INDEX_SUFFIX         = ".index";
+
+    private final File                   directory;
+    private final int                    segmentBytes;
+    private final long                   retentionBytes;
+    private final long                   retentionMillis;
+    private final ReentrantLock          lock;
+    private final TreeMap<Long, Segment> segments;
+    private Segment                      active;
+    private boolean                      dirty;
+
+    /**
+     * Opens the log in <code>directory</code>, creating either if need be.
+     * 
+     * @param segmentBytes
+     *            the size of each segment, which limits the size of a frame
+     */
+    TopicLog(final File directory, final int segmentBytes, final long retentionBytes, final long retentionMillis)
+            throws IOException {
+        Preconditions.checkNotNull(directory);
+        Preconditions.checkArgument(segmentBytes > RECORD_HEADER_SIZE, "Segments must be larger than %s bytes", RECORD_HEADER_SIZE);
+        Preconditions.checkArgument(retentionBytes > 0, "Retention size must be positive");
+        Preconditions.checkArgument(retentionMillis > 0, "Retention time must be positive");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create log directory " + directory);
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        lock = new ReentrantLock();
+        segments = new TreeMap<Long, Segment>();
+        final String[] names = directory.list(new FilenameFilter() {
+
+            @Override
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(LOG_SUFFIX);
+            }
+
+        });
+        for (final String name : names)
+            try {
+                final long base = Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+                segments.put(base, new Segment(directory, base, segmentBytes));
+            } catch (final NumberFormatException nfe) {
+                logger.warn("Ignoring file {} in log directory {}", name, directory);
+            }
+        if (segments.isEmpty())
+            segments.put(0l, new Segment(directory, 0, segmentBytes));
+        active = segments.lastEntry().getValue();
+        dirty = false;
+        logger.debug("Opened log in {} with {} segments, next offset {}", new Object[] { directory, segments.size(), active.next });
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * @return the offset given to <code>frame</code>, or -1 if it is too large for a segment
+     */
+    synchronized long append(final ChannelBuffer frame, final long now) throws IOException {
+        final int length = frame.readableBytes();
+        if (length > segmentBytes - RECORD_HEADER_SIZE)
+            return -1;
+        if (active.end + RECORD_HEADER_SIZE + length > segmentBytes)
+            roll(now);
+        final Segment s = active;
+        final int position = s.end;
+        final long offset = s.next;
+        s.log.putLong(position + 4, offset);
+        s.log.putLong(position + 12, now);
+        final ByteBuffer dst = s.log.duplicate();
+        dst.limit(position + RECORD_HEADER_SIZE + length).position(position + RECORD_HEADER_SIZE);
+        frame.getBytes(frame.readerIndex(), dst);
+        if (s.entries == 0 || (position - s.lastIndexed >= INDEX_INTERVAL_BYTES && s.entries < s.maxEntries)) {
+            s.index.putInt(s.entries * INDEX_ENTRY_SIZE, (int) (offset - s.base));
+            s.index.putInt(s.entries * INDEX_ENTRY_SIZE + 4, position);
+            s.index.putLong(s.entries * INDEX_ENTRY_SIZE + 8, now);
+            ++s.entries;
+            s.lastIndexed = position;
+        }
+        s.log.putInt(position, length);
+        s.end = position + RECORD_HEADER_SIZE + length;
+        s.next = offset + 1;
+        s.lastAppended = now;
+        dirty = true;
+        return offset;
+    }
+
+    private void roll(final long now) throws IOException {
+        final Segment previous = active;
+        active = new Segment(directory, previous.next, segmentBytes);
+        segments.put(active.base, active);
+        previous.force();
+        retain(now);
+    }
+
+    /**
+     * Forces what has been appended since the last flush out to disk.
+     */
+    void flush() {
+        final Segment s;
+        synchronized (this) {
+            if (!dirty)
+                return;
+            dirty = false;
+            s = active;
+        }
+        s.force();
+    }
+
+    /**
+     * Deletes the oldest segments while the log is over its size limit or they are over its age limit.
+     */
+    synchronized void retain(final long now) {
+        long total = 0;
+        for (final Segment s : segments.values())
+            total += s.end;
+        while (segments.size() > 1) {
+            final Segment oldest = segments.firstEntry().getValue();
+            if (total <= retentionBytes && now - oldest.lastAppended <= retentionMillis)
+                break;
+            segments.remove(oldest.base);
+            total -= oldest.end;
+            oldest.delete();
+            logger.debug("Deleted segment {} from log in {}", oldest.base, directory);
+        }
+    }
+
+    synchronized long firstOffset() {
+        return segments.firstKey();
+    }
+
+    synchronized long nextOffset() {
+        return active.next;
+    }
+
+    /**
+     * @return the offset of the first message appended at or after <code>time</code>, or the next offset if there is none
+     */
+    synchronized long offsetFor(final long time) {
+        for (final Segment s : segments.values())
+            if (s.end > 0 && s.lastAppended >= time) {
+                int lo = 0, hi = s.entries - 1, position = 0;
+                while (lo <= hi) {
+                    final int mid = (lo + hi) >>> 1;
+                    if (s.index.getLong(mid * INDEX_ENTRY_SIZE + 8) < time) {
+                        position = s.index.getInt(mid * INDEX_ENTRY_SIZE + 4);
+                        lo = mid + 1;
+                    } else
+                        hi = mid - 1;
+                }
+                while (position < s.end && s.log.getLong(position + 12) < time)
+                    position += RECORD_HEADER_SIZE + s.log.getInt(position);
+                if (position < s.end)
+                    return s.log.getLong(position + 4);
+            }
+        return active.next;
+    }
+
+    /**
+     * Reads up to <code>max</code> frames, starting from <code>from</code> or the first offset kept if later. The frames read are
+     * views of the segments, so are only good for as long as the segments are kept.
+     * 
+     * @return the offset of the first frame read, or where reading would have started if none were
+     */
+    synchronized long read(final long from, final int max, final List<ChannelBuffer> frames) {
+        final long start = Math.max(from, segments.firstKey());
+        final Map.Entry<Long, Segment> first = segments.floorEntry(start);
+        Segment s = first.getValue();
+        int position = s.position(start);
+        while (frames.size() < max) {
+            if (position >= s.end) {
+                final Map.Entry<Long, Segment> next = segments.higherEntry(s.base);
+                if (next == null)
+                    break;
+                s = next.getValue();
+                position = 0;
+                continue;
+            }
+            final int length = s.log.getInt(position);
+            final ByteBuffer frame = s.log.duplicate();
+            frame.limit(position + RECORD_HEADER_SIZE + length).position(position + RECORD_HEADER_SIZE);
+            frames.add(ChannelBuffers.wrappedBuffer(frame.slice()));
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return start;
+    }
+
+    synchronized int segments() {
+        return segments.size();
+    }
+
+    void close() {
+        flush();
+    }
+
+    private static final class Segment {
+
+        final long             base;
+        final File             logFile;
+        final File             indexFile;
+        final MappedByteBuffer log;
+        final MappedByteBuffer index;
+        final int              maxEntries;
+        int                    end;
+        long                   next;
+        int                    entries;
+        int                    lastIndexed;
+        long                   lastAppended;
+
+        /*
+         * Maps the segment's files, creating them if need be, and finds where its last complete record ends
+         */
+        Segment(final File directory, final long base, final int bytes) throws IOException {
+            this.base = base;
+            final String name = String.format("%020d", base);
+            logFile = new File(directory, name + LOG_SUFFIX);
+            indexFile = new File(directory, name + INDEX_SUFFIX);
+            maxEntries = bytes / INDEX_INTERVAL_BYTES + 1;
+            log = map(logFile, bytes);
+            index = map(indexFile, maxEntries * INDEX_ENTRY_SIZE);
+            entries = 0;
+            while (entries < maxEntries && index.getLong(entries * INDEX_ENTRY_SIZE + 8) != 0)
+                ++entries;
+            end = entries > 0 ? index.getInt((entries - 1) * INDEX_ENTRY_SIZE + 4) : 0;
+            next = entries > 0 ? base + index.getInt((entries - 1) * INDEX_ENTRY_SIZE) : base;
+            lastIndexed = end;
+            lastAppended = entries > 0 ? index.getLong((entries - 1) * INDEX_ENTRY_SIZE + 8) : 0;
+            while (end + RECORD_HEADER_SIZE <= bytes) {
+                final int length = log.getInt(end);
+                if (length <= 0 || length > bytes - end - RECORD_HEADER_SIZE || log.getLong(end + 4) != next)
+                    break;
+                lastAppended = log.getLong(end + 12);
+                end += RECORD_HEADER_SIZE + length;
+                ++next;
+            }
+        }
+
+        private static MappedByteBuffer map(final File file, final int bytes) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() != bytes)
+                    raf.setLength(bytes);
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            } finally {
+                raf.close();
+            }
+        }
+
+        /*
+         * Where the record with the given offset starts, or the end if it isn't in this segment
+         */
+        int position(final long offset) {
+            int lo = 0, hi = entries - 1, position = 0;
+            while (lo <= hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (base + index.getInt(mid * INDEX_ENTRY_SIZE) <= offset) {
+                    position = index.getInt(mid * INDEX_ENTRY_SIZE + 4);
+                    lo = mid + 1;
+                } else
+                    hi = mid - 1;
+            }
+            while (position < end && log.getLong(position + 4) < offset)
+                position += RECORD_HEADER_SIZE + log.getInt(position);
+            return position;
+        }
+
+        void force() {
+            log.force();
+            index.force();
+        }
+
+        void delete() {
+            if (!logFile.delete() || !indexFile.delete())
+                logger.warn("Unable to delete segment files {} and {}", logFile, indexFile);
+        }
+
+    }
+
+}
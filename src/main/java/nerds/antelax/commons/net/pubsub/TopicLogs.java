@@ -0,0 +1,223 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * The logs of a server's durable topics (see {@link TopicLog}), one directory each under a common root. Logs are opened when
+ * their topic is first published to or subscribed to from an offset or time. Appends are made durable together, by a flush no
+ * later than {@link #DEFAULT_FLUSH_MILLIS} after the first of them, which is also when logs are trimmed down to their retention
+ * limits.
+ */
+final class TopicLogs implements TimerTask {
+
+    private static final Logger                   logger               = LoggerFactory.getLogger(TopicLogs.class);
+
+    static final long                             DEFAULT_FLUSH_MILLIS = 10;
+
+    // Unsubscribing from this reserved topic is a no-op to servers without durable topics, just like the compact header offer
+    static final String                           START_HINT           = "\u0000pubsub-start";
+
+    private static final char                     SEPARATOR            = '\u0000';
+
+    private final File                            directory;
+    private final int                             segmentBytes;
+    private final long                            retentionBytes;
+    private final long                            retentionMillis;
+    private final TopicMatcher<String>            durable;
+    private final ConcurrentMap<String, TopicLog> logs;
+    private final Timer                           timer;
+    private Timeout                               flush;
+    private boolean                               stopped;
+
+    /**
+     * @param topics
+     *            the durable topics, any of which may be a pattern
+     */
+    TopicLogs(final File directory, final int segmentBytes, final long retentionBytes, final long retentionTime,
+            final TimeUnit retentionUnits, final Timer timer, final String... topics) {
+        Preconditions.checkNotNull(directory);
+        Preconditions.checkArgument(segmentBytes > TopicLog.RECORD_HEADER_SIZE, "Segments must be larger than %s bytes",
+                TopicLog.RECORD_HEADER_SIZE);
+        Preconditions.checkArgument(retentionBytes > 0, "Retention size must be positive");
+        Preconditions.checkArgument(retentionTime > 0, "Retention time must be positive");
+        Preconditions.checkNotNull(timer);
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        retentionMillis = retentionUnits.toMillis(retentionTime);
+        durable = new TopicMatcher<String>(new String[0]);
+        for (final String topic : topics) {
+            Preconditions.checkArgument(TopicMatcher.isValid(topic), "Invalid durable topic[%s]", topic);
+            durable.add(topic, topic);
+        }
+        logs = new ConcurrentHashMap<String, TopicLog>();
+        this.timer = timer;
+        flush = null;
+        stopped = false;
+    }
+
+    /**
+     * @return the log for <code>topic</code>, or null if it isn't durable or its log could not be opened
+     */
+    TopicLog log(final String topic) {
+        TopicLog log = logs.get(topic);
+        if (log != null || durable.match(topic).length == 0)
+            return log;
+        if (topic.isEmpty()) {
+            logger.warn("Not keeping a log of the empty topic, it would have no directory of its own");
+            return null;
+        }
+        synchronized (logs) {
+            log = logs.get(topic);
+            if (log == null)
+                try {
+                    log = new TopicLog(new File(directory, directoryName(topic)), segmentBytes, retentionBytes, retentionMillis);
+                    logs.put(topic, log);
+                } catch (final IOException ioe) {
+                    logger.error("Unable to open log for topic[" + topic + "]", ioe);
+                }
+        }
+        return log;
+    }
+
+    /**
+     * Called after appending to any of the logs, to have it flushed soon.
+     */
+    synchronized void appended() {
+        if (flush == null && !stopped)
+            flush = timer.newTimeout(this, DEFAULT_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run(final Timeout timeout) {
+        synchronized (this) {
+            flush = null;
+        }
+        final long now = System.currentTimeMillis();
+        for (final TopicLog log : logs.values()) {
+            log.flush();
+            log.retain(now);
+        }
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (flush != null) {
+            flush.cancel();
+            flush = null;
+        }
+        for (final TopicLog log : logs.values())
+            log.close();
+    }
+
+    /**
+     * Where a subscriber wants to start from: an offset, or the first message appended at or after a time.
+     */
+    static final class Start {
+
+        final boolean time;
+        final long    value;
+
+        Start(final boolean time, final long value) {
+            Preconditions.checkArgument(value >= 0, "Start offset or time cannot be negative");
+            this.time = time;
+            this.value = value;
+        }
+
+        long offset(final TopicLog log) {
+            return time ? log.offsetFor(value) : value;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Start && ((Start) o).time == time && ((Start) o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (value ^ (value >>> 32)) + (time ? 1 : 0);
+        }
+
+    }
+
+    static SubscriptionMessage startHint(final Map<String, Start> starts) {
+        final List<String> hint = new ArrayList<String>(1 + starts.size());
+        hint.add(START_HINT);
+        for (final Map.Entry<String, Start> start : starts.entrySet())
+            hint.add(start.getKey() + SEPARATOR + (start.getValue().time ? 't' : 'o') + start.getValue().value);
+        return new SubscriptionMessage(false, hint.toArray(new String[hint.size()]));
+    }
+
+    static boolean isStartHint(final SubscriptionMessage sm) {
+        return !sm.subscribe && sm.topics.length >= 1 && START_HINT.equals(sm.topics[0]);
+    }
+
+    /**
+     * @return the starts in <code>hint</code>, by topic, leaving out any that can't be made sense of
+     */
+    static Map<String, Start> starts(final SubscriptionMessage hint) {
+        final Map<String, Start> rv = new HashMap<String, Start>();
+        for (int pos = 1; pos < hint.topics.length; ++pos) {
+            final String entry = hint.topics[pos];
+            final int separator = entry.lastIndexOf(SEPARATOR);
+            if (separator > 0 && separator + 2 < entry.length())
+                try {
+                    final char kind = entry.charAt(separator + 1);
+                    final long value = Long.parseLong(entry.substring(separator + 2));
+                    if ((kind == 't' || kind == 'o') && value >= 0)
+                        rv.put(entry.substring(0, separator), new Start(kind == 't', value));
+                } catch (final NumberFormatException nfe) {
+                    continue;
+                }
+        }
+        return rv;
+    }
+
+    /*
+     * Topics may contain anything, file names may not. Dots are escaped as well, which URL encoding leaves be, so that no topic
+     * names the root or its parent; since '%' is always escaped, the result is still different for every topic.
+     */
+    static String directoryName(final String topic) {
+        try {
+            return URLEncoder.encode(topic, Charsets.UTF_8.name()).replace(".", "%2E");
+        } catch (final UnsupportedEncodingException uee) {
+            throw new IllegalStateException(uee);
+        }
+    }
+
+}
@@ -0,0 +1,210 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.ObjectArrays;
+
+/**
+ * Matches topics against hierarchical subscription patterns, whose segments are separated by {@link #SEPARATOR}: a
+ * {@link #ANY_SEGMENT} segment matches any one segment, and a {@link #ANY_SEGMENTS} segment, which must come last, matches any
+ * number of remaining segments including none. So <code>a.b.*</code> matches <code>a.b.c</code> but not <code>a.b</code> or
+ * <code>a.b.c.d</code>, and <code>a.#</code> matches all three as well as <code>a</code>.
+ * <p>
+ * Patterns are kept in a trie of segments, so matching a topic costs about the same however many patterns there are. Results are
+ * cached per topic until the patterns next change, making matching the topics in use a single map lookup.
+ */
+final class TopicMatcher<T> {
+
+    static final char                       SEPARATOR         = '.';
+    static final String                     ANY_SEGMENT       = "*";
+    static final String                     ANY_SEGMENTS      = "#";
+    static final int                        MAX_CACHED_TOPICS = 64 * 1024;
+
+    private static final Splitter           SPLITTER          = Splitter.on(SEPARATOR);
+
+    private static final class Node<T> {
+
+        private final Map<String, Node<T>> children = new HashMap<String, Node<T>>();
+        private final Set<T>               values   = new LinkedHashSet<T>();
+
+        private boolean isEmpty() {
+            return children.isEmpty() && values.isEmpty();
+        }
+
+    }
+
+    private final T[]                       none;
+    private final Node<T>                   root;
+    private final ConcurrentMap<String, T[]> cache;
+    private final ReadWriteLock             lock;
+    private volatile int                    patterns;
+
+    /**
+     * @param none
+     *            an empty array, returned when nothing matches and used to create the arrays of matches
+     */
+    TopicMatcher(final T[] none) {
+        Preconditions.checkNotNull(none);
+        Preconditions.checkArgument(none.length == 0);
+        this.none = none;
+        root = new Node<T>();
+        cache = new ConcurrentHashMap<String, T[]>();
+        lock = new ReentrantReadWriteLock();
+        patterns = 0;
+    }
+
+    /**
+     * @return true if <code>topic</code> has any wildcard segments
+     */
+    static boolean isPattern(final String topic) {
+        for (final String segment : SPLITTER.split(topic))
+            if (ANY_SEGMENT.equals(segment) || ANY_SEGMENTS.equals(segment))
+                return true;
+        return false;
+    }
+
+    /**
+     * @return false if <code>topic</code> has a {@link #ANY_SEGMENTS} segment anywhere but last
+     */
+    static boolean isValid(final String topic) {
+        final int index = topic.indexOf(SEPARATOR + ANY_SEGMENTS + SEPARATOR);
+        return index < 0 && !topic.startsWith(ANY_SEGMENTS + SEPARATOR);
+    }
+
+    private static String[] segments(final String pattern) {
+        Preconditions.checkArgument(isValid(pattern), "'%s' can only be the last segment of pattern[%s]", ANY_SEGMENTS, pattern);
+        return Iterables.toArray(SPLITTER.split(pattern), String.class);
+    }
+
+    boolean isEmpty() {
+        return patterns == 0;
+    }
+
+    /**
+     * @return true if <code>value</code> wasn't already added for <code>pattern</code>
+     */
+    boolean add(final String pattern, final T value) {
+        Preconditions.checkNotNull(value);
+        final String[] segments = segments(pattern);
+        lock.writeLock().lock();
+        try {
+            Node<T> node = root;
+            for (final String segment : segments) {
+                Node<T> child = node.children.get(segment);
+                if (child == null) {
+                    child = new Node<T>();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+            if (!node.values.add(value))
+                return false;
+            ++patterns;
+            cache.clear();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if <code>value</code> had been added for <code>pattern</code>
+     */
+    boolean remove(final String pattern, final T value) {
+        final String[] segments = segments(pattern);
+        lock.writeLock().lock();
+        try {
+            final List<Node<T>> path = new ArrayList<Node<T>>(segments.length + 1);
+            Node<T> node = root;
+            path.add(node);
+            for (final String segment : segments) {
+                node = node.children.get(segment);
+                if (node == null)
+                    return false;
+                path.add(node);
+            }
+            if (!node.values.remove(value))
+                return false;
+            for (int i = segments.length; i > 0 && path.get(i).isEmpty(); --i)
+                path.get(i - 1).children.remove(segments[i - 1]);
+            --patterns;
+            cache.clear();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the values added for every pattern matching <code>topic</code>, each once; the array must not be modified
+     */
+    T[] match(final String topic) {
+        T[] matches = cache.get(topic);
+        if (matches == null) {
+            final String[] segments = Iterables.toArray(SPLITTER.split(topic), String.class);
+            lock.readLock().lock();
+            try {
+                final Set<T> found = new LinkedHashSet<T>();
+                match(root, segments, 0, found);
+                matches = found.isEmpty() ? none : found.toArray(ObjectArrays.newArray(none, found.size()));
+                if (cache.size() >= MAX_CACHED_TOPICS)
+                    cache.clear();
+                cache.put(topic, matches);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        return matches;
+    }
+
+    private static <T> void match(final Node<T> node, final String[] segments, final int index, final Set<T> found) {
+        final Node<T> rest = node.children.get(ANY_SEGMENTS);
+        if (rest != null)
+            found.addAll(rest.values);
+        if (index == segments.length)
+            found.addAll(node.values);
+        else {
+            final Node<T> exact = node.children.get(segments[index]);
+            if (exact != null)
+                match(exact, segments, index + 1, found);
+            final Node<T> any = node.children.get(ANY_SEGMENT);
+            if (any != null)
+                match(any, segments, index + 1, found);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(getClass()).add("patterns", patterns).add("cached topics", cache.size()).toString();
+    }
+
+}
@@ -0,0 +1,157 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Threads and timers shared by any number of {@link PubSubClient}s and {@link PubSubServer}s: one boss pool, one worker pool whose
+ * selector loops are limited to a fixed number per channel factory, a single client channel factory and a single timer, all with
+ * named threads. Clients and servers created without one share a JVM wide instance, created when the first of them is and released
+ * when the last is stopped; an instance given to them explicitly is the caller's to {@link #release()} once they are all stopped.
+ */
+public final class TransportResources {
+
+    private static final Logger        logger               = LoggerFactory.getLogger(TransportResources.class);
+
+    public static final int            DEFAULT_WORKER_COUNT = Runtime.getRuntime().availableProcessors() * 2;
+    public static final int            TIMER_TICK_MILLIS    = 5;
+
+    private static TransportResources  shared               = null;
+    private static int                 sharedUsers          = 0;
+
+    private final String               name;
+    private final int                  workerCount;
+    private final ThreadPoolExecutor   bossPool;
+    private final ThreadPoolExecutor   workerPool;
+    private final Timer                timer;
+    private ChannelFactory             clientChannelFactory;
+    private int                        serverChannelFactories;
+
+    public TransportResources() {
+        this("pubsub", DEFAULT_WORKER_COUNT);
+    }
+
+    /**
+     * @param name
+     *            prefix for the names of our threads
+     * @param workerCount
+     *            the number of I/O worker threads per channel factory: one for all clients, and one per server
+     */
+    public TransportResources(final String name, final int workerCount) {
+        Preconditions.checkNotNull(name, "Name cannot be null");
+        Preconditions.checkArgument(workerCount > 0, "Must have at least one worker");
+        this.name = name;
+        this.workerCount = workerCount;
+        bossPool = newPool(name + "-boss-%d");
+        workerPool = newPool(name + "-worker-%d");
+        timer = new HashedWheelTimer(new ThreadFactoryBuilder().setNameFormat(name + "-timer-%d").build(), TIMER_TICK_MILLIS,
+                TimeUnit.MILLISECONDS);
+        clientChannelFactory = null;
+        serverChannelFactories = 0;
+    }
+
+    /*
+     * Netty's boss and worker threads each run a selector loop for as long as they have channels, so the pools themselves are
+     * unbounded like cached pools; the thread count is bounded by the number of channel factories and their worker counts instead.
+     */
+    private static ThreadPoolExecutor newPool(final String nameFormat) {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).build());
+    }
+
+    static synchronized TransportResources acquireShared() {
+        if (shared == null) {
+            shared = new TransportResources();
+            logger.debug("Created shared transport resources");
+        }
+        ++sharedUsers;
+        return shared;
+    }
+
+    static synchronized void releaseShared() {
+        Preconditions.checkState(sharedUsers > 0, "Shared transport resources not in use");
+        if (--sharedUsers == 0) {
+            shared.release();
+            shared = null;
+            logger.debug("Released shared transport resources");
+        }
+    }
+
+    synchronized ChannelFactory clientChannelFactory() {
+        if (clientChannelFactory == null)
+            clientChannelFactory = new NioClientSocketChannelFactory(bossPool, workerPool, workerCount);
+        return clientChannelFactory;
+    }
+
+    /**
+     * Servers need a factory each, since a server factory's boss threads only ever accept connections for it.
+     */
+    synchronized ChannelFactory newServerChannelFactory() {
+        ++serverChannelFactories;
+        return new NioServerSocketChannelFactory(bossPool, workerPool, workerCount);
+    }
+
+    Timer timer() {
+        return timer;
+    }
+
+    public int bossThreads() {
+        return bossPool.getPoolSize();
+    }
+
+    public int workerThreads() {
+        return workerPool.getPoolSize();
+    }
+
+    public int largestWorkerThreads() {
+        return workerPool.getLargestPoolSize();
+    }
+
+    /**
+     * Stops the timer and threads; only once every client and server using them has been stopped.
+     */
+    public void release() {
+        logger.debug("Releasing {}", this);
+        timer.stop();
+        bossPool.shutdown();
+        workerPool.shutdown();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(getClass()).add("name", name).add("worker count", workerCount)
+                .add("client factory", clientChannelFactory != null).add("server factories", serverChannelFactories)
+                .add("boss threads", bossThreads()).add("worker threads", workerThreads())
+                .add("largest worker threads", largestWorkerThreads()).toString();
+    }
+
+}
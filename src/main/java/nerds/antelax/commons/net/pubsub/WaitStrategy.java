@@ -0,0 +1,45 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+/**
+ * How the consumer threads of {@link PubSubClient#ringDelivery(int, int, WaitStrategy)} wait for messages, from lowest latency
+ * and highest CPU use to highest latency and lowest CPU use.
+ */
+public enum WaitStrategy {
+
+    /**
+     * Spin without pause; each consumer thread keeps a core busy, so only use with cores to spare.
+     */
+    BUSY_SPIN,
+
+    /**
+     * Spin, yielding the core to other threads on every pass.
+     */
+    YIELD,
+
+    /**
+     * Sleep a few tens of microseconds between checks.
+     */
+    PARK,
+
+    /**
+     * Wait on a condition signalled by the I/O thread, which takes a lock to do so while any consumer is waiting.
+     */
+    BLOCK;
+
+}
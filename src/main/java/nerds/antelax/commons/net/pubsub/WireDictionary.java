@@ -0,0 +1,97 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+
+package nerds.antelax.commons.net.pubsub;
+
+import java.util.UUID;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+/*
+ * Inbound half of a channel's dictionaries: the topic IDs the remote end has defined via TopicDefinitionMessage, resolved to
+ * interned topic strings, and the node (source/server) IDs it has defined inline in compact headers. Subscriber maps keyed by the
+ * same interned topic instances then find their entry using the string's cached hash and a reference comparison, never touching
+ * the characters.
+ */
+final class WireDictionary {
+
+    /**
+     * Upper bound on the number of topic IDs either end of a channel will define; topics beyond this are sent inline.
+     */
+    static final int                      MAX_TOPICS = 1 << 16;
+
+    /**
+     * Upper bound on the number of node IDs either end of a channel will define; node IDs beyond this are sent inline.
+     */
+    static final int                      MAX_NODES  = 1 << 12;
+
+    private static final Interner<String> INTERNER   = Interners.newWeakInterner();
+
+    private String[]                      topics;
+    private UUID[]                        nodes;
+    private int                           nodeCount;
+
+    WireDictionary() {
+        topics = new String[16];
+        nodes = new UUID[4];
+        nodeCount = 0;
+    }
+
+    static String intern(final String topic) {
+        return INTERNER.intern(topic);
+    }
+
+    void define(final int id, final String topic) throws MessageFormatException {
+        if (id < 0 || id >= MAX_TOPICS)
+            throw new MessageFormatException("Topic ID[" + id + "] out of range");
+        if (id >= topics.length) {
+            final String[] grown = new String[Math.min(MAX_TOPICS, Math.max(id + 1, topics.length * 2))];
+            System.arraycopy(topics, 0, grown, 0, topics.length);
+            topics = grown;
+        }
+        topics[id] = intern(topic);
+    }
+
+    String topic(final int id) throws MessageFormatException {
+        final String topic = id >= 0 && id < topics.length ? topics[id] : null;
+        if (topic == null)
+            throw new MessageFormatException("Topic ID[" + id + "] used before being defined");
+        return topic;
+    }
+
+    /**
+     * Node IDs are numbered in the order they are defined, starting at zero.
+     */
+    void defineNode(final UUID node) throws MessageFormatException {
+        if (nodeCount >= MAX_NODES)
+            throw new MessageFormatException("Too many node IDs defined");
+        if (nodeCount == nodes.length) {
+            final UUID[] grown = new UUID[nodes.length * 2];
+            System.arraycopy(nodes, 0, grown, 0, nodes.length);
+            nodes = grown;
+        }
+        nodes[nodeCount++] = node;
+    }
+
+    UUID node(final int index) throws MessageFormatException {
+        if (index < 0 || index >= nodeCount)
+            throw new MessageFormatException("Node ID[" + index + "] used before being defined");
+        return nodes[index];
+    }
+
+}
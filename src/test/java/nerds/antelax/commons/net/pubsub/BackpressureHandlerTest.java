@@ -0,0 +1,176 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.testng.annotations.Test;
+
+public class BackpressureHandlerTest {
+
+    private static final int SIZE = message().estimatedBodySize();
+
+    @Test
+    public final void writable() {
+        final BackpressureHandler handler = new BackpressureHandler();
+        final TestChannel channel = new TestChannel(handler);
+        final ApplicationMessage m = message();
+        assertTrue(channel.write(m).isSuccess());
+        assertEquals(Arrays.asList(m), channel.written());
+        assertEquals(0, handler.queuedMessages());
+    }
+
+    @Test
+    public final void fail() {
+        final BackpressureHandler handler = new BackpressureHandler();
+        handler.overflow(OverflowPolicy.FAIL, Long.MAX_VALUE, 0, TimeUnit.SECONDS);
+        final TestChannel channel = new TestChannel(handler);
+        channel.writable(false);
+        assertSame(OverflowException.NOT_WRITABLE, channel.write(message()).getCause());
+        assertTrue(channel.written().isEmpty());
+        assertEquals(0, handler.queuedMessages());
+        assertEquals(1, handler.droppedMessages());
+    }
+
+    @Test
+    public final void dropNewest() {
+        final BackpressureHandler handler = new BackpressureHandler();
+        handler.overflow(OverflowPolicy.DROP_NEWEST, 2 * SIZE, 0, TimeUnit.SECONDS);
+        final TestChannel channel = new TestChannel(handler);
+        channel.writable(false);
+        final ApplicationMessage first = message(), second = message();
+        final ChannelFuture kept = channel.write(first);
+        channel.write(second);
+        assertSame(OverflowException.QUEUE_FULL, channel.write(message()).getCause());
+        assertFalse(kept.isDone());
+        assertEquals(2, handler.queuedMessages());
+        assertEquals(2 * SIZE, handler.queuedBytes());
+
+        channel.writable(true);
+        assertTrue(kept.isSuccess());
+        assertEquals(Arrays.asList(first, second), channel.written());
+        assertEquals(0, handler.queuedBytes());
+        assertEquals(1, handler.droppedMessages());
+    }
+
+    @Test
+    public final void dropOldest() {
+        final BackpressureHandler handler = new BackpressureHandler();
+        handler.overflow(OverflowPolicy.DROP_OLDEST, 2 * SIZE, 0, TimeUnit.SECONDS);
+        final TestChannel channel = new TestChannel(handler);
+        channel.writable(false);
+        final ApplicationMessage second = message(), third = message();
+        final ChannelFuture oldest = channel.write(message());
+        channel.write(second);
+        channel.write(third);
+        assertSame(OverflowException.DROPPED, oldest.getCause());
+        assertEquals(2, handler.queuedMessages());
+
+        channel.writable(true);
+        assertEquals(Arrays.asList(second, third), channel.written());
+        assertEquals(1, handler.droppedMessages());
+    }
+
+    @Test
+    public final void block() throws Exception {
+        final BackpressureHandler handler = new BackpressureHandler();
+        handler.overflow(OverflowPolicy.BLOCK, SIZE, 50, TimeUnit.MILLISECONDS);
+        final TestChannel channel = new TestChannel(handler);
+        channel.writable(false);
+        final ApplicationMessage first = message(), second = message();
+        channel.write(first);
+        final long start = System.nanoTime();
+        assertSame(OverflowException.TIMED_OUT, channel.write(message()).getCause());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+
+        // Room made while blocked lets the write through, behind what was queued
+        handler.overflow(OverflowPolicy.BLOCK, SIZE, 5, TimeUnit.SECONDS);
+        final ChannelFuture[] blocked = new ChannelFuture[1];
+        final Thread publisher = new Thread() {
+
+            @Override
+            public void run() {
+                blocked[0] = channel.write(second);
+            }
+
+        };
+        publisher.start();
+        Thread.sleep(50);
+        assertTrue(publisher.isAlive());
+        channel.writable(true);
+        publisher.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(publisher.isAlive());
+        assertTrue(blocked[0].isSuccess());
+        assertEquals(Arrays.asList(first, second), channel.written());
+    }
+
+    @Test
+    public final void topicPolicy() {
+        final BackpressureHandler handler = new BackpressureHandler();
+        handler.overflow(OverflowPolicy.DROP_NEWEST, SIZE, 0, TimeUnit.SECONDS);
+        handler.overflow("topic", OverflowPolicy.FAIL);
+        final TestChannel channel = new TestChannel(handler);
+        channel.writable(false);
+        assertSame(OverflowException.NOT_WRITABLE, channel.write(message()).getCause());
+        handler.overflow("topic", null);
+        assertFalse(channel.write(message()).isDone());
+    }
+
+    @Test
+    public final void perChannel() {
+        final BackpressureHandler handler = new BackpressureHandler();
+        final TestChannel loser = new TestChannel(handler), winner = new TestChannel(handler);
+        loser.writable(false);
+        winner.writable(false);
+        final ApplicationMessage queued = message();
+        final ChannelFuture pending = winner.write(queued);
+        loser.write(message());
+        assertEquals(2, handler.queuedMessages());
+
+        // Neither another channel closing nor it becoming writable touches this channel's backlog
+        loser.closed();
+        assertFalse(pending.isDone());
+        assertEquals(1, handler.queuedMessages());
+        final TestChannel other = new TestChannel(handler);
+        other.writable(true);
+        assertTrue(other.written().isEmpty());
+        assertFalse(pending.isDone());
+
+        winner.writable(true);
+        assertTrue(pending.isSuccess());
+        assertEquals(Arrays.asList(queued), winner.written());
+
+        winner.writable(false);
+        final ChannelFuture unsent = winner.write(message());
+        winner.closed();
+        assertSame(OverflowException.CHANNEL_CLOSED, unsent.getCause());
+        assertEquals(0, handler.queuedMessages());
+    }
+
+    private static ApplicationMessage message() {
+        return new ApplicationMessage(ByteBuffer.allocate(16), "topic");
+    }
+
+}
@@ -0,0 +1,172 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nerds.antelax.commons.net.pubsub.PubSubClient.MessageCallback;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class DispatcherTest {
+
+    private static final Logger logger   = LoggerFactory.getLogger(DispatcherTest.class);
+
+    private static final int    TOPICS   = 8;
+    private static final int    MESSAGES = 200000;
+
+    @DataProvider(name = "dispatchers")
+    public Object[][] dispatchers() {
+        return new Object[][] { { "executor", null }, { "lanes", null }, { "ring", WaitStrategy.BUSY_SPIN },
+                { "ring", WaitStrategy.YIELD }, { "ring", WaitStrategy.PARK }, { "ring", WaitStrategy.BLOCK } };
+    }
+
+    /*
+     * Every message gets delivered, in order per topic for all but the executor, and the time taken is logged as a rough comparison
+     */
+    @Test(dataProvider = "dispatchers")
+    public void dispatch(final String kind, final WaitStrategy strategy) throws InterruptedException {
+        final ExecutorService service = Executors.newCachedThreadPool();
+        final Dispatcher dispatcher;
+        if ("executor".equals(kind))
+            dispatcher = new ExecutorDispatcher(service);
+        else if ("lanes".equals(kind))
+            dispatcher = new DispatchLanes(service, 4);
+        else
+            dispatcher = new RingDispatcher(1024, 4, strategy);
+        final CountDownLatch remaining = new CountDownLatch(MESSAGES);
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final String[] topics = new String[TOPICS];
+        final List<Collection<MessageCallback>> callbacks = new ArrayList<Collection<MessageCallback>>(TOPICS);
+        for (int i = 0; i < TOPICS; ++i) {
+            topics[i] = "topic-" + i;
+            callbacks.add(Collections.<MessageCallback> singletonList(new MessageCallback() {
+
+                private int next = 0;
+
+                @Override
+                public void onMessage(final ByteBuffer message) {
+                    if (message.getInt() != next++)
+                        outOfOrder.incrementAndGet();
+                    remaining.countDown();
+                }
+
+            }));
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; ++i) {
+            final ByteBuffer message = ByteBuffer.allocate(4);
+            message.putInt(0, i / TOPICS);
+            dispatcher.dispatch(topics[i % TOPICS], callbacks.get(i % TOPICS), message);
+        }
+        assertTrue(remaining.await(1, TimeUnit.MINUTES));
+        logger.info("Dispatched {} messages through {}{} in {}ms", new Object[] { MESSAGES, kind,
+                strategy != null ? " " + strategy : "", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) });
+        if (!"executor".equals(kind))
+            assertEquals(0, outOfOrder.get());
+        dispatcher.stop();
+        service.shutdown();
+    }
+
+    /*
+     * With the executor held up, only the latest message on each topic is left to deliver
+     */
+    @Test
+    public void conflate() throws InterruptedException {
+        final ExecutorService service = Executors.newSingleThreadExecutor();
+        final CountDownLatch held = new CountDownLatch(1);
+        service.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    held.await();
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+        });
+        final ConflatingDispatcher dispatcher = new ConflatingDispatcher(service, "state.#");
+        assertTrue(dispatcher.conflates("state.a"));
+        assertFalse(dispatcher.conflates("events"));
+        final List<Integer> delivered = Collections.synchronizedList(new ArrayList<Integer>());
+        final Collection<MessageCallback> callbacks = Collections.<MessageCallback> singletonList(new MessageCallback() {
+
+            @Override
+            public void onMessage(final ByteBuffer message) {
+                delivered.add(message.getInt());
+            }
+
+        });
+        for (int i = 0; i < 100; ++i) {
+            final ByteBuffer message = ByteBuffer.allocate(4);
+            message.putInt(0, i);
+            dispatcher.dispatch(i < 60 ? "state.a" : "state.b", callbacks, message);
+        }
+        held.countDown();
+        service.shutdown();
+        assertTrue(service.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(Arrays.asList(59, 99), delivered);
+        assertEquals(98, dispatcher.conflatedMessages());
+        assertEquals(0, dispatcher.slots());
+    }
+
+    /*
+     * Conflating by key keeps a slot only while a key has a message waiting or being delivered, however many keys there have been
+     */
+    @Test
+    public void conflatedSlotsGo() throws InterruptedException {
+        final ExecutorService service = Executors.newFixedThreadPool(4);
+        final ConflatingDispatcher dispatcher = new ConflatingDispatcher(service, "state.#");
+        final int keys = 100000;
+        final CountDownLatch remaining = new CountDownLatch(keys);
+        final Collection<MessageCallback> callbacks = Collections.<MessageCallback> singletonList(new MessageCallback() {
+
+            @Override
+            public void onMessage(final ByteBuffer message) {
+                remaining.countDown();
+            }
+
+        });
+        for (int i = 0; i < keys; ++i)
+            dispatcher.dispatch("state.a" + ApplicationMessage.KEY_SEPARATOR + i, callbacks, ByteBuffer.allocate(4));
+        assertTrue(remaining.await(1, TimeUnit.MINUTES));
+        service.shutdown();
+        assertTrue(service.awaitTermination(1, TimeUnit.MINUTES));
+        assertEquals(0, dispatcher.conflatedMessages());
+        assertEquals(0, dispatcher.slots());
+    }
+
+}
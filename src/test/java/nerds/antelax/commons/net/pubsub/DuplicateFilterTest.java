@@ -0,0 +1,108 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class DuplicateFilterTest {
+
+    @Test
+    public final void window() {
+        final DuplicateFilter filter = new DuplicateFilter(2, 1, TimeUnit.MINUTES);
+        final UUID source = UUID.randomUUID();
+        assertTrue(filter.firstSighting(message(source, 2)));
+        assertTrue(filter.firstSighting(message(source, 1)));
+        assertFalse(filter.firstSighting(message(source, 2)));
+        assertTrue(filter.firstSighting(message(source, 2 + DuplicateFilter.WINDOW)));
+        assertFalse(filter.firstSighting(message(source, 1)));
+        assertTrue(filter.firstSighting(message(source, 3 + DuplicateFilter.WINDOW / 2)));
+        assertFalse(filter.firstSighting(message(source, 3 + DuplicateFilter.WINDOW / 2)));
+        assertTrue(filter.firstSighting(message(source, Message.NO_SEQUENCE)));
+        assertTrue(filter.firstSighting(message(source, Message.NO_SEQUENCE)));
+        assertTrue(filter.firstSighting(message(UUID.randomUUID(), 2)));
+        assertEquals(3, filter.duplicates());
+    }
+
+    @Test
+    public final void bounded() {
+        final DuplicateFilter filter = new DuplicateFilter(2, 1, TimeUnit.MINUTES);
+        final UUID first = UUID.randomUUID();
+        assertTrue(filter.firstSighting(message(first, 1)));
+        assertTrue(filter.firstSighting(message(UUID.randomUUID(), 1)));
+        assertTrue(filter.firstSighting(message(UUID.randomUUID(), 1)));
+        assertEquals(2, filter.sources());
+        assertTrue(filter.firstSighting(message(first, 1)));
+    }
+
+    @Test
+    public final void diamond() {
+        // One server shares just topic "a" of a batch with a peer, which also gets the whole batch by way of another server
+        final UUID source = UUID.randomUUID();
+        final BatchMessage batch = new BatchMessage(Arrays.asList(topic("a"), topic("a"), topic("b"), topic("a")));
+        batch.sourceID(source);
+        batch.sequence(10);
+        final List<ApplicationMessage> share = new ArrayList<ApplicationMessage>();
+        for (final ApplicationMessage am : batch.messages)
+            if (am.topic.equals("a"))
+                share.add(am);
+
+        final List<Message> runs = BatchMessage.runs(share);
+        assertEquals(2, runs.size());
+        assertEquals(10, runs.get(0).sequence());
+        assertEquals(Message.Type.Batch, runs.get(0).type);
+        assertEquals(13, runs.get(1).sequence());
+        assertEquals(Message.Type.Application, runs.get(1).type);
+
+        final DuplicateFilter filter = new DuplicateFilter(2, 1, TimeUnit.MINUTES);
+        final List<ApplicationMessage> delivered = new ArrayList<ApplicationMessage>();
+        for (final Message m : runs)
+            if (m instanceof BatchMessage)
+                delivered.addAll(filter.firstSightings((BatchMessage) m));
+            else if (filter.firstSighting(m))
+                delivered.add((ApplicationMessage) m);
+        delivered.addAll(filter.firstSightings(batch));
+        assertEquals(batch.messages.size(), delivered.size());
+        assertTrue(delivered.containsAll(batch.messages));
+        assertEquals(3, filter.duplicates());
+
+        final List<Message> rest = BatchMessage.runs(filter.firstSightings(batch));
+        assertTrue(rest.isEmpty());
+    }
+
+    private static ApplicationMessage topic(final String topic) {
+        return new ApplicationMessage(ByteBuffer.allocate(1), topic);
+    }
+
+    private static Message message(final UUID source, final long sequence) {
+        final ApplicationMessage rv = new ApplicationMessage(ByteBuffer.allocate(1), "topic");
+        rv.sourceID(source);
+        rv.sequence(sequence);
+        return rv;
+    }
+
+}
@@ -0,0 +1,92 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+public class KeyedTableTest {
+
+    private static final long MAX_BYTES = 64 * 1024 * 1024;
+
+    @Test
+    public final void putReplaceRemove() throws MessageFormatException {
+        final KeyedTable table = new KeyedTable("positions", MAX_BYTES);
+        final int keys = 20000;
+        for (int round = 0; round < 3; ++round)
+            for (int key = 0; key < keys; ++key)
+                assertTrue(table.put(message(key, key * 10 + round)));
+        assertEquals(keys, table.size());
+        for (int key = 0; key < keys; key += 2)
+            assertTrue(table.put(new ApplicationMessage(ByteBuffer.allocate(0), "positions", "key-" + key)));
+        assertEquals(keys / 2, table.size());
+        // Putting back a removed key reuses its tombstone
+        assertTrue(table.put(message(0, 1)));
+        assertEquals(keys / 2 + 1, table.size());
+
+        final Map<String, Integer> latest = snapshot(table);
+        assertEquals(keys / 2 + 1, latest.size());
+        assertEquals(Integer.valueOf(1), latest.get("key-0"));
+        for (int key = 1; key < keys; key += 2)
+            assertEquals(Integer.valueOf(key * 10 + 2), latest.get("key-" + key));
+        assertFalse(latest.containsKey("key-2"));
+    }
+
+    @Test
+    public final void full() {
+        final KeyedTable table = new KeyedTable("positions", KeyedTable.INITIAL_SLOTS * KeyedTable.SLOT_SIZE
+                + KeyedTable.INITIAL_BYTES);
+        int key = 0;
+        while (table.put(message(key, key)))
+            ++key;
+        assertEquals(key, table.size());
+        assertTrue(table.bytes() <= KeyedTable.INITIAL_SLOTS * KeyedTable.SLOT_SIZE + KeyedTable.INITIAL_BYTES);
+        // Replacing makes garbage that gets compacted away
+        for (int round = 0; round < 10; ++round)
+            for (int replace = 0; replace < key; ++replace)
+                assertTrue(table.put(message(replace, round)));
+    }
+
+    private static Map<String, Integer> snapshot(final KeyedTable table) throws MessageFormatException {
+        final Map<String, Integer> rv = new HashMap<String, Integer>();
+        final List<ApplicationMessage> chunk = new ArrayList<ApplicationMessage>();
+        for (int next = 0; next >= 0; chunk.clear()) {
+            next = table.read(next, 100, chunk);
+            for (final ApplicationMessage am : chunk) {
+                assertEquals("positions", am.topic);
+                assertTrue(rv.put(am.key, am.applicationBody().getInt()) == null);
+            }
+        }
+        return rv;
+    }
+
+    private static ApplicationMessage message(final int key, final int value) {
+        final ByteBuffer body = ByteBuffer.allocate(4);
+        body.putInt(0, value);
+        return new ApplicationMessage(body, "positions", "key-" + key);
+    }
+
+}
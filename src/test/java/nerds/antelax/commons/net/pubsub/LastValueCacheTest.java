@@ -0,0 +1,72 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class LastValueCacheTest {
+
+    @Test
+    public final void latest() {
+        final LastValueCache cache = new LastValueCache(8, 1024, "prices.#", "config");
+        assertTrue(cache.retains("prices.a"));
+        assertTrue(cache.retains("config"));
+        assertFalse(cache.retains("trades"));
+        cache.put(message("prices.a", 1));
+        cache.put(message("prices.a", 2));
+        cache.put(message("prices.b", 3));
+        cache.put(message("config", 4));
+        assertEquals(3, cache.size());
+        final List<ApplicationMessage> a = cache.latest("prices.a");
+        assertEquals(1, a.size());
+        assertEquals(2, a.get(0).payload().getByte(0));
+        assertEquals(2, cache.latest("prices.*").size());
+        assertEquals(3, cache.latest("#").size());
+        assertTrue(cache.latest("trades").isEmpty());
+    }
+
+    @Test
+    public final void eviction() {
+        final ApplicationMessage first = message("a", 1);
+        final LastValueCache cache = new LastValueCache(2, 3 * first.estimatedBodySize(), "#");
+        cache.put(first);
+        cache.put(message("b", 2));
+        cache.latest("a");
+        cache.put(message("c", 3));
+        assertEquals(2, cache.size());
+        assertTrue(cache.latest("b").isEmpty());
+        assertEquals(1, cache.latest("a").size());
+
+        // A message too large to keep forgets the previous one
+        cache.put(new ApplicationMessage(ByteBuffer.allocate(1024), "a"));
+        assertTrue(cache.latest("a").isEmpty());
+        assertEquals(1, cache.size());
+        assertEquals(message("c", 3).estimatedBodySize(), cache.bytes());
+    }
+
+    private static ApplicationMessage message(final String topic, final int value) {
+        return new ApplicationMessage(new byte[] { (byte) value }, topic);
+    }
+
+}
@@ -19,9 +19,19 @@ package nerds.antelax.commons.net.pubsub;
 import static org.testng.AssertJUnit.assertArrayEquals;
 import static org.testng.AssertJUnit.assertSame;
 import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
 import org.testng.annotations.Test;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 import java.util.UUID;
+import java.util.zip.Deflater;
 
 import nerds.antelax.commons.net.pubsub.ApplicationMessage;
 import nerds.antelax.commons.net.pubsub.Message;
@@ -30,15 +40,16 @@ import nerds.antelax.commons.net.pubsub.SubscriptionMessage;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
 
 public class MessageMarshalling {
 
     @Test
     public final void subscriptionOneTopic() throws MessageFormatException {
         final SubscriptionMessage sm = newSubscription();
-        final Message.Builder builder = Message.newBuilder();
         for (final SubscriptionMessage reconstituted : new SubscriptionMessage[] { (SubscriptionMessage) unmarshall(marshall(sm)),
-                (SubscriptionMessage) builder.add(marshall(sm)), (SubscriptionMessage) builder.add(marshall(sm)) }) {
+                (SubscriptionMessage) decode(marshall(sm)), (SubscriptionMessage) unmarshall(marshall(sm)) }) {
             assertSame(sm.type, reconstituted.type);
             assertEquals(sm.sourceID(), reconstituted.sourceID());
             assertEquals(sm.serverID(), reconstituted.serverID());
@@ -51,9 +62,8 @@ public class MessageMarshalling {
     public final void subscriptionManyTopics() throws MessageFormatException {
         final SubscriptionMessage sm = newSubscription("topic-" + System.currentTimeMillis(),
                 "topic2-" + System.currentTimeMillis(), "topic3-" + System.currentTimeMillis());
-        final Message.Builder builder = Message.newBuilder();
         for (final SubscriptionMessage reconstituted : new SubscriptionMessage[] { (SubscriptionMessage) unmarshall(marshall(sm)),
-                (SubscriptionMessage) builder.add(marshall(sm)), (SubscriptionMessage) builder.add(marshall(sm)) }) {
+                (SubscriptionMessage) decode(marshall(sm)), (SubscriptionMessage) unmarshall(marshall(sm)) }) {
             assertSame(sm.type, reconstituted.type);
             assertEquals(sm.sourceID(), reconstituted.sourceID());
             assertEquals(sm.serverID(), reconstituted.serverID());
@@ -65,9 +75,8 @@ public class MessageMarshalling {
     @Test
     public final void application() throws MessageFormatException {
         final ApplicationMessage am = newApplication();
-        final Message.Builder builder = Message.newBuilder();
         for (final ApplicationMessage reconstituted : new ApplicationMessage[] { (ApplicationMessage) unmarshall(marshall(am)),
-                (ApplicationMessage) builder.add(marshall(am)), (ApplicationMessage) builder.add(marshall(am)) }) {
+                (ApplicationMessage) decode(marshall(am)), (ApplicationMessage) decode(am.encode()) }) {
             assertSame(am.type, reconstituted.type);
             assertEquals(am.sourceID(), reconstituted.sourceID());
             assertEquals(am.serverID(), reconstituted.serverID());
@@ -76,6 +85,223 @@ public class MessageMarshalling {
         }
     }
 
+    @Test
+    public final void splitAcrossReads() throws MessageFormatException {
+        final ApplicationMessage[] sent = new ApplicationMessage[50];
+        final ChannelBuffer stream = ChannelBuffers.dynamicBuffer();
+        for (int pos = 0; pos < sent.length; ++pos) {
+            sent[pos] = newApplication();
+            sent[pos].marshall(stream);
+        }
+        final MessageCodec.Decoder decoder = (MessageCodec.Decoder) MessageCodec.decoder();
+        final DecoderEmbedder<Message> embedder = new DecoderEmbedder<Message>(decoder);
+        final Random random = new SecureRandom();
+        while (stream.readable())
+            embedder.offer(stream.readBytes(Math.min(stream.readableBytes(), random.nextInt(4096) + 1)));
+        assertEquals(sent.length, embedder.size());
+        for (final ApplicationMessage am : sent) {
+            final ApplicationMessage reconstituted = (ApplicationMessage) embedder.poll();
+            assertEquals(am.sourceID(), reconstituted.sourceID());
+            assertEquals(am.topic, reconstituted.topic);
+            assertEquals(am.applicationBody(), reconstituted.applicationBody());
+        }
+        assertEquals(sent.length, decoder.framesDecoded());
+        assertTrue(decoder.bytesCopied() <= stream.capacity() + decoder.framesCopied() * Message.HEADER_SIZE);
+    }
+
+    @Test
+    public final void compactHeaders() throws MessageFormatException {
+        final MessageCodec.Encoder compact = (MessageCodec.Encoder) MessageCodec.encoder();
+        compact.compact();
+        final EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(compact);
+        final DecoderEmbedder<Message> decoder = new DecoderEmbedder<Message>(MessageCodec.decoder());
+        final ApplicationMessage first = newApplication();
+        final ApplicationMessage second = new ApplicationMessage(first.applicationBody(), first.topic);
+        second.sourceID(first.sourceID());
+        second.serverID(first.serverID());
+        encoder.offer(first);
+        encoder.offer(second);
+        final ChannelBuffer firstFrames = encoder.poll();
+        final ChannelBuffer secondFrame = encoder.poll();
+        // Type, TTL, two node references and up to 3 bytes of body length, then the topic ID
+        assertTrue(secondFrame.readableBytes() <= 7 + 4 + second.applicationBody().remaining());
+        assertTrue(secondFrame.readableBytes() < second.headerSize() + second.estimatedBodySize());
+        assertTrue(firstFrames.readableBytes() > secondFrame.readableBytes() + 32);
+        decoder.offer(firstFrames);
+        decoder.offer(secondFrame);
+        assertEquals(2, decoder.size());
+        for (final Message m : new Message[] { decoder.poll(), decoder.poll() }) {
+            assertEquals(first.ttl(), m.ttl());
+            assertEquals(first.sourceID(), m.sourceID());
+            assertEquals(first.serverID(), m.serverID());
+            assertEquals(first.topic, ((ApplicationMessage) m).topic);
+            assertEquals(first.applicationBody(), ((ApplicationMessage) m).applicationBody());
+        }
+    }
+
+    @Test
+    public final void keyed() throws MessageFormatException {
+        final ApplicationMessage am = new ApplicationMessage(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), "positions", "account-42");
+        final ApplicationMessage reconstituted = (ApplicationMessage) unmarshall(marshall(am));
+        assertEquals(am.topic, reconstituted.topic);
+        assertEquals(am.key, reconstituted.key);
+        assertEquals(am.applicationBody(), reconstituted.applicationBody());
+
+        // Keyed messages keep their topic inline even once it has an ID
+        final MessageCodec.Encoder compact = (MessageCodec.Encoder) MessageCodec.encoder();
+        compact.compact();
+        final EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(compact);
+        final DecoderEmbedder<Message> decoder = new DecoderEmbedder<Message>(MessageCodec.decoder());
+        encoder.offer(new ApplicationMessage(new byte[] { 1 }, "positions"));
+        encoder.offer(am);
+        while (encoder.size() > 0)
+            decoder.offer(encoder.poll());
+        assertEquals(2, decoder.size());
+        assertNull(((ApplicationMessage) decoder.poll()).key);
+        final ApplicationMessage compacted = (ApplicationMessage) decoder.poll();
+        assertEquals("positions", compacted.topic);
+        assertEquals("account-42", compacted.key);
+        assertEquals(am.applicationBody(), compacted.applicationBody());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public final void unkeyedTopicWithKeySeparator() {
+        new ApplicationMessage(new byte[] { 1 }, "positions" + ApplicationMessage.KEY_SEPARATOR + "account-42");
+    }
+
+    @Test
+    public final void sequenceNumbers() throws MessageFormatException {
+        final MessageCodec.Encoder compact = (MessageCodec.Encoder) MessageCodec.encoder();
+        compact.compact();
+        final EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(compact);
+        final DecoderEmbedder<Message> decoder = new DecoderEmbedder<Message>(MessageCodec.decoder());
+        final long[] sequences = { Message.NO_SEQUENCE, 1, 300, Long.MAX_VALUE };
+        for (final long sequence : sequences) {
+            final ApplicationMessage am = newApplication();
+            am.sequence(sequence);
+            encoder.offer(am);
+            decoder.offer(encoder.poll());
+            final Message m = decoder.poll();
+            assertEquals(sequence, m.sequence());
+            assertEquals(am.sourceID(), m.sourceID());
+            assertEquals(am.applicationBody(), ((ApplicationMessage) m).applicationBody());
+        }
+        final ApplicationMessage am = newApplication();
+        am.sequence(7);
+        final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        am.marshall(buffer);
+        assertEquals(Message.NO_SEQUENCE, Message.unmarshall(buffer, new WireDictionary()).sequence());
+    }
+
+    @Test
+    public final void batch() throws MessageFormatException {
+        final ApplicationMessage first = newApplication();
+        final List<ApplicationMessage> messages = Arrays.asList(first, new ApplicationMessage(new byte[] { 1, 2, 3 }, "other-topic"),
+                new ApplicationMessage(new byte[0], first.topic));
+        final BatchMessage batch = new BatchMessage(messages);
+        batch.sourceID(first.sourceID());
+        batch.serverID(first.serverID());
+        final BatchMessage reconstituted = (BatchMessage) unmarshall(marshall(batch));
+        assertBatch(batch, reconstituted.messages);
+
+        final MessageCodec.Encoder compact = (MessageCodec.Encoder) MessageCodec.encoder();
+        compact.compact();
+        final EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(compact);
+        encoder.offer(batch);
+        encoder.offer(batch);
+        final DecoderEmbedder<Message> decoder = new DecoderEmbedder<Message>(MessageCodec.decoder());
+        decoder.offer(encoder.poll());
+        decoder.offer(encoder.poll());
+        assertEquals(2, decoder.size());
+        assertBatch(batch, ((BatchMessage) decoder.poll()).messages);
+        assertBatch(batch, ((BatchMessage) decoder.poll()).messages);
+
+        final EncoderEmbedder<ChannelBuffer> unbatched = new EncoderEmbedder<ChannelBuffer>(MessageCodec.encoder());
+        unbatched.offer(batch);
+        assertEquals(1, unbatched.size());
+        decoder.offer(unbatched.poll());
+        assertEquals(messages.size(), decoder.size());
+        final List<ApplicationMessage> decoded = new ArrayList<ApplicationMessage>();
+        while (decoder.peek() != null)
+            decoded.add((ApplicationMessage) decoder.poll());
+        assertBatch(batch, decoded);
+    }
+
+    @Test
+    public final void compression() throws MessageFormatException {
+        final byte[] dictionary = "{\"symbol\":\"\",\"bid\":,\"ask\":,\"exchange\":\"\"}".getBytes();
+        final CompressionCodec codec = new DeflateCodec(32, Deflater.BEST_SPEED, Collections.singletonMap("quotes", dictionary));
+        final List<CompressionCodec> codecs = Collections.singletonList(codec);
+        CompressionCodecs.register(codec);
+        try {
+            final byte[] data = new byte[1024];
+            for (int pos = 0; pos < data.length; ++pos)
+                data[pos] = (byte) (pos % Byte.MAX_VALUE);
+            final ApplicationMessage original = new ApplicationMessage(data, "topic-" + System.currentTimeMillis());
+            original.sourceID(UUID.randomUUID());
+            final ApplicationMessage quote = new ApplicationMessage(
+                    "{\"symbol\":\"ABC\",\"bid\":10.25,\"ask\":10.5,\"exchange\":\"XYZ\"}".getBytes(), "quotes");
+            final ApplicationMessage small = new ApplicationMessage(new byte[] { 1, 2, 3 }, original.topic);
+            final BatchMessage batch = new BatchMessage(Arrays.asList(original, quote, small));
+            batch.sourceID(original.sourceID());
+
+            final MessageCodec.Encoder publisher = (MessageCodec.Encoder) MessageCodec.encoder();
+            publisher.compact(codecs);
+            final EncoderEmbedder<ChannelBuffer> encoder = new EncoderEmbedder<ChannelBuffer>(publisher);
+            encoder.offer(batch);
+            final ChannelBuffer frame = encoder.poll();
+            assertTrue(frame.readableBytes() < batch.estimatedBodySize() / 2);
+            final DecoderEmbedder<Message> decoder = new DecoderEmbedder<Message>(MessageCodec.decoder());
+            decoder.offer(frame);
+            final BatchMessage received = (BatchMessage) decoder.poll();
+            assertTrue(received.messages.get(0).compressed());
+            assertTrue(received.messages.get(1).compressed());
+            assertTrue(!received.messages.get(2).compressed());
+            assertBatch(batch, received.messages);
+
+            // Forwarded as is where the codec was agreed, decompressed where it wasn't
+            final MessageCodec.Encoder agreed = (MessageCodec.Encoder) MessageCodec.encoder();
+            agreed.compact(codecs);
+            final EncoderEmbedder<ChannelBuffer> forwarder = new EncoderEmbedder<ChannelBuffer>(agreed);
+            forwarder.offer(received.messages.get(0));
+            final ApplicationMessage forwarded = (ApplicationMessage) decode(forwarder.poll());
+            assertEquals(received.messages.get(0).payload(), forwarded.payload());
+            assertEquals(original.applicationBody(), forwarded.applicationBody());
+            final EncoderEmbedder<ChannelBuffer> legacy = new EncoderEmbedder<ChannelBuffer>(MessageCodec.encoder());
+            legacy.offer(received.messages.get(1));
+            final ApplicationMessage decompressed = (ApplicationMessage) decode(legacy.poll());
+            assertTrue(!decompressed.compressed());
+            assertEquals(quote.applicationBody(), decompressed.applicationBody());
+        } finally {
+            CompressionCodecs.register(new DeflateCodec());
+        }
+    }
+
+    @Test(expectedExceptions = MessageFormatException.class)
+    public final void compressionBomb() throws MessageFormatException {
+        final ChannelBuffer payload = ChannelBuffers.dynamicBuffer();
+        Message.writeVarInt(payload, Integer.MAX_VALUE);
+        payload.writeBytes(new DeflateCodec().compress("topic", ByteBuffer.wrap(new byte[1024])));
+        new ApplicationMessage("topic", null, DeflateCodec.ID, payload).decompress();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public final void deflateBomb() throws IOException {
+        new DeflateCodec().decompress("topic", ByteBuffer.wrap(new byte[16]), 16 * CompressionCodec.MAX_EXPANSION + 1);
+    }
+
+    private static void assertBatch(final BatchMessage expected, final List<ApplicationMessage> actual)
+            throws MessageFormatException {
+        assertEquals(expected.messages.size(), actual.size());
+        for (int pos = 0; pos < actual.size(); ++pos) {
+            assertEquals(expected.ttl(), actual.get(pos).ttl());
+            assertEquals(expected.sourceID(), actual.get(pos).sourceID());
+            assertEquals(expected.serverID(), actual.get(pos).serverID());
+            assertEquals(expected.messages.get(pos).topic, actual.get(pos).topic);
+            assertEquals(expected.messages.get(pos).applicationBody(), actual.get(pos).applicationBody());
+        }
+    }
+
     private static SubscriptionMessage newSubscription() {
         return newSubscription("topic-" + System.currentTimeMillis());
     }
@@ -107,7 +333,13 @@ public class MessageMarshalling {
     }
 
     private static Message unmarshall(final ChannelBuffer buffer) throws MessageFormatException {
-        return Message.newBuilder().add(buffer);
+        return Message.unmarshall(buffer, new WireDictionary());
+    }
+
+    private static Message decode(final ChannelBuffer buffer) {
+        final DecoderEmbedder<Message> embedder = new DecoderEmbedder<Message>(MessageCodec.decoder());
+        embedder.offer(buffer);
+        return embedder.poll();
     }
 
 }
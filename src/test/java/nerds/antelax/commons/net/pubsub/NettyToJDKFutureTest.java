@@ -0,0 +1,142 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+
+package nerds.antelax.commons.net.pubsub;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class NettyToJDKFutureTest {
+
+    @Test
+    public final void sameThreadListener() throws InterruptedException {
+        final ChannelFuture write = new DefaultChannelFuture(new TestChannel(), true);
+        final NettyToJDKFuture future = new NettyToJDKFuture(write);
+        final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+        future.addListener(new Runnable() {
+
+            @Override
+            public void run() {
+                ranOn.set(Thread.currentThread());
+            }
+
+        }, MoreExecutors.sameThreadExecutor());
+        assertNull(ranOn.get());
+        final Thread writer = new Thread() {
+
+            @Override
+            public void run() {
+                write.setSuccess();
+            }
+
+        };
+        writer.start();
+        writer.join();
+        assertSame(writer, ranOn.get());
+
+        // Already written, a listener runs straight away
+        ranOn.set(null);
+        future.addListener(new Runnable() {
+
+            @Override
+            public void run() {
+                ranOn.set(Thread.currentThread());
+            }
+
+        }, MoreExecutors.sameThreadExecutor());
+        assertSame(Thread.currentThread(), ranOn.get());
+    }
+
+    @Test
+    public final void transform() throws InterruptedException, ExecutionException {
+        final ChannelFuture write = new DefaultChannelFuture(new TestChannel(), true);
+        final ListenableFuture<String> transformed = Futures.transform(new NettyToJDKFuture(write),
+                new Function<Boolean, String>() {
+
+                    @Override
+                    public String apply(final Boolean written) {
+                        return written ? "written" : "failed";
+                    }
+
+                });
+        assertFalse(transformed.isDone());
+        write.setSuccess();
+        assertTrue(transformed.isDone());
+        assertEquals("written", transformed.get());
+    }
+
+    @Test
+    public final void failedWrite() throws InterruptedException, ExecutionException {
+        final ChannelFuture write = new DefaultChannelFuture(new TestChannel(), true);
+        final NettyToJDKFuture future = new NettyToJDKFuture(write);
+        final AtomicReference<Object> outcome = new AtomicReference<Object>();
+        Futures.addCallback(future, new FutureCallback<Boolean>() {
+
+            @Override
+            public void onSuccess(final Boolean written) {
+                outcome.set(written);
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                outcome.set(t);
+            }
+
+        });
+        write.setFailure(new IOException("Connection reset"));
+        assertFalse(future.isCancelled());
+        assertFalse(future.get());
+        assertEquals(Boolean.FALSE, outcome.get());
+    }
+
+    @Test(expectedExceptions = CancellationException.class)
+    public final void cancelledWrite() throws InterruptedException, ExecutionException {
+        final ChannelFuture write = new DefaultChannelFuture(new TestChannel(), true);
+        final NettyToJDKFuture future = new NettyToJDKFuture(write);
+        final ListenableFuture<Boolean> transformed = Futures.transform(future, new Function<Boolean, Boolean>() {
+
+            @Override
+            public Boolean apply(final Boolean written) {
+                return written;
+            }
+
+        });
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertTrue(transformed.isCancelled());
+        future.get();
+    }
+
+}
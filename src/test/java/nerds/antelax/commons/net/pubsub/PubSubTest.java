@@ -17,8 +17,12 @@
 
 package nerds.antelax.commons.net.pubsub;
 
+import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
@@ -28,15 +32,22 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import nerds.antelax.commons.base.Conversions;
 import nerds.antelax.commons.net.NetUtil;
@@ -155,6 +166,520 @@ public class PubSubTest {
         }
     }
 
+    /*
+     * Two servers peered with each other: a topic subscribed to on one is passed on to the other, and once the last client
+     * unsubscribes the other must forget it too, rather than each keeping the other subscribed
+     */
+    @Test
+    public void peerUnsubscribe() throws UnknownHostException, InterruptedException {
+        final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        final InetSocketAddress first = new InetSocketAddress(loopback, PubSubServer.DEFAULT_ADDRESS.getPort() + 20);
+        final InetSocketAddress second = new InetSocketAddress(loopback, PubSubServer.DEFAULT_ADDRESS.getPort() + 21);
+        final PubSubServer firstServer = new PubSubServer(null, Arrays.asList(first), Arrays.asList(second));
+        final PubSubServer secondServer = new PubSubServer(null, Arrays.asList(second), Arrays.asList(first));
+        final ExecutorService clientSvc = Executors.newCachedThreadPool();
+        final PubSubClient client = new PubSubClient(clientSvc, Arrays.asList(first));
+        final PubSubClient.MessageCallback callback = new PubSubClient.MessageCallback() {
+
+            @Override
+            public void onMessage(final ByteBuffer message) {
+            }
+
+        };
+        firstServer.start();
+        secondServer.start();
+        try {
+            client.start();
+            client.subscribe(topic, callback);
+            assertTrue("Subscription never reached the peer", awaitTopic(secondServer, topic, true));
+            client.unsubscribe(topic, callback);
+            assertTrue("Peer still subscribed after the last client left", awaitTopic(secondServer, topic, false));
+            assertFalse(firstServer.subscribedTopics().contains(topic));
+        } finally {
+            client.stop();
+            firstServer.stop();
+            secondServer.stop();
+            clientSvc.shutdown();
+        }
+    }
+
+    /*
+     * A server peered with two others in the same VM, each with a subscriber: both peers are handed the very same message, so the
+     * first to drop its TTL must not drop it for the second as well
+     */
+    @Test(timeOut = 60 * 1000)
+    public void peerFanOut() throws UnknownHostException, InterruptedException {
+        final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        final InetSocketAddress hub = new InetSocketAddress(loopback, PubSubServer.DEFAULT_ADDRESS.getPort() + 26);
+        final InetSocketAddress left = new InetSocketAddress(loopback, PubSubServer.DEFAULT_ADDRESS.getPort() + 27);
+        final InetSocketAddress right = new InetSocketAddress(loopback, PubSubServer.DEFAULT_ADDRESS.getPort() + 28);
+        final PubSubServer hubServer = new PubSubServer(null, Arrays.asList(hub), Arrays.asList(left, right));
+        final PubSubServer leftServer = new PubSubServer(null, Arrays.asList(left), Arrays.asList(hub));
+        final PubSubServer rightServer = new PubSubServer(null, Arrays.asList(right), Arrays.asList(hub));
+        final ExecutorService clientSvc = Executors.newCachedThreadPool();
+        final PubSubClient publisher = new PubSubClient(clientSvc, Arrays.asList(hub));
+        final PubSubClient leftClient = new PubSubClient(clientSvc, Arrays.asList(left));
+        final PubSubClient rightClient = new PubSubClient(clientSvc, Arrays.asList(right));
+        final CountDownLatch received = new CountDownLatch(2);
+        final PubSubClient.MessageCallback callback = new PubSubClient.MessageCallback() {
+
+            @Override
+            public void onMessage(final ByteBuffer message) {
+                received.countDown();
+            }
+
+        };
+        final PubSubClient.MessageCallback ignore = new PubSubClient.MessageCallback() {
+
+            @Override
+            public void onMessage(final ByteBuffer message) {
+            }
+
+        };
+        hubServer.start();
+        leftServer.start();
+        rightServer.start();
+        try {
+            publisher.start();
+            leftClient.start();
+            rightClient.start();
+            // Each peer passes its subscriptions on in order, so once its own topic reaches the hub the shared one has too
+            leftClient.subscribe(topic, callback);
+            leftClient.subscribe("left", ignore);
+            rightClient.subscribe(topic, callback);
+            rightClient.subscribe("right", ignore);
+            assertTrue(awaitTopic(hubServer, "left", true) && awaitTopic(hubServer, "right", true));
+            publisher.publish(new byte[1], topic);
+            assertTrue("Message never reached both peers", received.await(10, TimeUnit.SECONDS));
+        } finally {
+            publisher.stop();
+            leftClient.stop();
+            rightClient.stop();
+            hubServer.stop();
+            leftServer.stop();
+            rightServer.stop();
+            clientSvc.shutdown();
+        }
+    }
+
+    /*
+     * A subscriber resuming after losing its connection is sent only what was published while it was away: nothing kept from before
+     * it first connected, and nothing it already had
+     */
+    @Test(timeOut = 60 * 1000)
+    public void resume() throws UnknownHostException, InterruptedException, ExecutionException {
+        final InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+                PubSubServer.DEFAULT_ADDRESS.getPort() + 30);
+        final PubSubServer server = new PubSubServer(Arrays.asList(address));
+        server.replay(100, 1, TimeUnit.MINUTES);
+        final ExecutorService clientSvc = Executors.newCachedThreadPool();
+        final PubSubClient publisher = new PubSubClient(clientSvc, Arrays.asList(address));
+        final LinkedBlockingQueue<Object> ups = new LinkedBlockingQueue<Object>();
+        final PubSubClient subscriber = new PubSubClient(clientSvc, new PubSubClient.NetworkConnectionLifecycleCallback() {
+
+            @Override
+            public void connectionUp(final SocketAddress endpoint) {
+                ups.add(endpoint);
+            }
+
+            @Override
+            public void connectionDown(final SocketAddress endpoint) {
+            }
+
+        }, 2, TimeUnit.SECONDS, Arrays.asList(address));
+        final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<String>();
+        subscriber.resumeOnReconnect(true);
+        // Inline, so that messages are received in the order they were sent
+        subscriber.subscribeInline(topic, new PubSubClient.MessageCallback() {
+
+            @Override
+            public void onMessage(final ByteBuffer message) {
+                final byte[] bytes = new byte[message.remaining()];
+                message.get(bytes);
+                received.add(new String(bytes));
+            }
+
+        });
+        server.start();
+        try {
+            publisher.start();
+            assertTrue(publisher.publish("stale".getBytes(), topic).get());
+            subscriber.start();
+            assertTrue(awaitTopic(server, topic, true));
+            assertTrue(publisher.publish("live".getBytes(), topic).get());
+            assertEquals("live", received.poll(10, TimeUnit.SECONDS));
+
+            ups.clear();
+            subscriber.channel().close();
+            assertTrue(awaitTopic(server, topic, false));
+            assertTrue(publisher.publish("missed-1".getBytes(), topic).get());
+            assertTrue(publisher.publish("missed-2".getBytes(), topic).get());
+            assertTrue("Never reconnected", ups.poll(PubSubClient.DEFAULT_TIMEOUT_SECONDS * 3, TimeUnit.SECONDS) != null);
+            assertEquals("missed-1", received.poll(10, TimeUnit.SECONDS));
+            assertEquals("missed-2", received.poll(10, TimeUnit.SECONDS));
+            assertTrue(publisher.publish("live-again".getBytes(), topic).get());
+            assertEquals("live-again", received.poll(10, TimeUnit.SECONDS));
+            assertTrue(received.isEmpty());
+        } finally {
+            publisher.stop();
+            subscriber.stop();
+            server.stop();
+            clientSvc.shutdown();
+        }
+    }
+
+    /*
+     * A keyed callback subscribed inline that holds up the I/O thread is demoted like any other, rather than its wrapper being
+     * looked for among the inline callbacks
+     */
+    @Test(timeOut = 60 * 1000)
+    public void inlineKeyedDemotion() throws UnknownHostException, InterruptedException, ExecutionException {
+        final InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+                PubSubServer.DEFAULT_ADDRESS.getPort() + 29);
+        final PubSubServer server = new PubSubServer(Arrays.asList(address));
+        final ExecutorService clientSvc = Executors.newCachedThreadPool();
+        final Set<Thread> callbackThreads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        final ExecutorService callbackSvc = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread rv = new Thread(runnable);
+                callbackThreads.add(rv);
+                return rv;
+            }
+
+        });
+        final PubSubClient publisher = new PubSubClient(clientSvc, Arrays.asList(address));
+        final PubSubClient subscriber = new PubSubClient(callbackSvc, Arrays.asList(address));
+        final LinkedBlockingQueue<Thread> deliveredOn = new LinkedBlockingQueue<Thread>();
+        subscriber.inlineBudget(1, TimeUnit.MILLISECONDS, true);
+        subscriber.subscribeInline(topic, new PubSubClient.KeyedMessageCallback() {
+
+            @Override
+            public void onMessage(final ByteBuffer message) {
+            }
+
+            @Override
+            public void onMessage(final String key, final ByteBuffer message) throws InterruptedException {
+                if (deliveredOn.isEmpty())
+                    Thread.sleep(20);
+                deliveredOn.add(Thread.currentThread());
+            }
+
+        });
+        server.start();
+        try {
+            publisher.start();
+            subscriber.start();
+            assertTrue(awaitTopic(server, topic, true));
+            assertTrue(publisher.publish(ByteBuffer.allocate(8), topic, "first").get());
+            final Thread first = deliveredOn.poll(10, TimeUnit.SECONDS);
+            assertTrue("Keyed callback not delivered to inline", first != null && !callbackThreads.contains(first));
+            assertTrue(publisher.publish(ByteBuffer.allocate(8), topic, "second").get());
+            assertTrue("Keyed callback not demoted", callbackThreads.contains(deliveredOn.poll(10, TimeUnit.SECONDS)));
+        } finally {
+            publisher.stop();
+            subscriber.stop();
+            server.stop();
+            clientSvc.shutdown();
+            callbackSvc.shutdown();
+        }
+    }
+
+    /*
+     * Clients in the same VM as the server whose inline callbacks publish on each other's topics, both ways round at once: delivery
+     * runs on the publishing thread, so if the server still held a topic's locks while writing to subscribers each chain would go
+     * on to take the other topic's locks while holding its own
+     */
+    @Test(timeOut = 60 * 1000)
+    public void inlineRepublish() throws UnknownHostException, InterruptedException {
+        final InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+                PubSubServer.DEFAULT_ADDRESS.getPort() + 22);
+        final PubSubServer server = new PubSubServer(Arrays.asList(address));
+        server.replay(100, 1, TimeUnit.MINUTES);
+        server.retainLatest(10, 1024, "ping", "pong");
+        final ExecutorService clientSvc = Executors.newCachedThreadPool();
+        final PubSubClient pinger = new PubSubClient(clientSvc, Arrays.asList(address));
+        final PubSubClient ponger = new PubSubClient(clientSvc, Arrays.asList(address));
+        final CountDownLatch remaining = new CountDownLatch(40);
+        pinger.subscribeInline("ping", new PubSubClient.MessageCallback() {
+
+            @Override
+            public void onMessage(final ByteBuffer message) {
+                remaining.countDown();
+                if (remaining.getCount() > 0)
+                    pinger.publish(new byte[1], "pong");
+            }
+
+        });
+        ponger.subscribeInline("pong", new PubSubClient.MessageCallback() {
+
+            @Override
+            public void onMessage(final ByteBuffer message) {
+                remaining.countDown();
+                if (remaining.getCount() > 0)
+                    ponger.publish(new byte[1], "ping");
+            }
+
+        });
+        server.start();
+        try {
+            pinger.start();
+            ponger.start();
+            assertTrue(awaitTopic(server, "ping", true) && awaitTopic(server, "pong", true));
+            final Thread ping = new Thread() {
+
+                @Override
+                public void run() {
+                    ponger.publish(new byte[1], "ping");
+                }
+
+            };
+            ping.start();
+            pinger.publish(new byte[1], "pong");
+            assertTrue("Republishing from inline callbacks stalled", remaining.await(30, TimeUnit.SECONDS));
+        } finally {
+            pinger.stop();
+            ponger.stop();
+            server.stop();
+            clientSvc.shutdown();
+        }
+    }
+
+    /*
+     * A subscriber in the same VM as the server is sent a retained topic's latest message on the subscribing thread, whose inline
+     * callback then waits on a publish to the topic from another thread: that must not need a lock the subscribing thread holds
+     */
+    @Test(timeOut = 60 * 1000)
+    public void inlineCatchUp() throws Exception {
+        final InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+                PubSubServer.DEFAULT_ADDRESS.getPort() + 25);
+        final PubSubServer server = new PubSubServer(Arrays.asList(address));
+        server.retainLatest(10, 1024, "state");
+        final ExecutorService clientSvc = Executors.newCachedThreadPool();
+        final PubSubClient publisher = new PubSubClient(clientSvc, Arrays.asList(address));
+        final CountDownLatch connected = new CountDownLatch(1);
+        final PubSubClient subscriber = new PubSubClient(clientSvc, new PubSubClient.NetworkConnectionLifecycleCallback() {
+
+            @Override
+            public void connectionUp(final SocketAddress endpoint) {
+                connected.countDown();
+            }
+
+            @Override
+            public void connectionDown(final SocketAddress endpoint) {
+            }
+
+        }, Arrays.asList(address));
+        final CountDownLatch remaining = new CountDownLatch(2);
+        final AtomicBoolean published = new AtomicBoolean(false);
+        final PubSubClient.MessageCallback callback = new PubSubClient.MessageCallback() {
+
+            @Override
+            public void onMessage(final ByteBuffer message) throws Exception {
+                remaining.countDown();
+                if (remaining.getCount() == 1)
+                    published.set(clientSvc.submit(new Callable<Boolean>() {
+
+                        @Override
+                        public Boolean call() throws Exception {
+                            return publisher.publish(new byte[1], "state").get();
+                        }
+
+                    }).get(5, TimeUnit.SECONDS));
+            }
+
+        };
+        server.start();
+        try {
+            publisher.start();
+            assertTrue("Unable to publish message", publisher.publish(new byte[1], "state").get());
+            subscriber.start();
+            assertTrue(connected.await(PubSubClient.DEFAULT_TIMEOUT_SECONDS * 3, TimeUnit.SECONDS));
+            subscriber.subscribeInline("state", callback);
+            assertTrue(remaining.await(10, TimeUnit.SECONDS));
+            assertTrue(published.get());
+        } finally {
+            publisher.stop();
+            subscriber.stop();
+            server.stop();
+            clientSvc.shutdown();
+        }
+    }
+
+    /*
+     * A new subscriber in the same VM as the server is sent a snapshot of every key, written on the subscribing thread: each chunk is
+     * written by the time the next is due, which must not take the thread any deeper into its stack
+     */
+    @Test(timeOut = 2 * 60 * 1000)
+    public void keyedSnapshot() throws Exception {
+        final InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+                PubSubServer.DEFAULT_ADDRESS.getPort() + 23);
+        final int keys = 250000;
+        final PubSubServer server = new PubSubServer(Arrays.asList(address));
+        server.keyedTopics(64 * 1024 * 1024, "kv");
+        final ExecutorService clientSvc = Executors.newCachedThreadPool();
+        final PubSubClient publisher = new PubSubClient(clientSvc, Arrays.asList(address));
+        final CountDownLatch connected = new CountDownLatch(1);
+        final PubSubClient subscriber = new PubSubClient(clientSvc, new PubSubClient.NetworkConnectionLifecycleCallback() {
+
+            @Override
+            public void connectionUp(final SocketAddress endpoint) {
+                connected.countDown();
+            }
+
+            @Override
+            public void connectionDown(final SocketAddress endpoint) {
+            }
+
+        }, Arrays.asList(address));
+        final Set<String> received = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final PubSubClient.KeyedMessageCallback callback = new PubSubClient.KeyedMessageCallback() {
+
+            @Override
+            public void onMessage(final ByteBuffer message) {
+            }
+
+            @Override
+            public void onMessage(final String key, final ByteBuffer message) {
+                received.add(key);
+            }
+
+        };
+        server.start();
+        try {
+            publisher.start();
+            final Collection<Future<Boolean>> futures = new LinkedList<Future<Boolean>>();
+            for (int key = 0; key < keys; ++key)
+                futures.add(publisher.publish(ByteBuffer.allocate(8), "kv", Integer.toString(key)));
+            for (final Future<Boolean> future : futures)
+                assertTrue("Unable to publish message", future.get());
+            subscriber.start();
+            assertTrue(connected.await(PubSubClient.DEFAULT_TIMEOUT_SECONDS * 3, TimeUnit.SECONDS));
+            onSmallStack(new Runnable() {
+
+                @Override
+                public void run() {
+                    subscriber.subscribe("kv", callback);
+                }
+
+            });
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (received.size() < keys && System.nanoTime() < deadline)
+                Thread.sleep(50);
+            assertEquals(keys, received.size());
+        } finally {
+            publisher.stop();
+            subscriber.stop();
+            server.stop();
+            clientSvc.shutdown();
+        }
+    }
+
+    /*
+     * As for a keyed snapshot, a subscriber in the same VM catching up from the start of a long log is sent it on the subscribing
+     * thread a chunk at a time
+     */
+    @Test(timeOut = 2 * 60 * 1000)
+    public void durableCatchUp() throws Exception {
+        final InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+                PubSubServer.DEFAULT_ADDRESS.getPort() + 24);
+        final int messages = 250000;
+        final File directory = File.createTempFile("pubsub-test", "");
+        assertTrue(directory.delete());
+        directory.deleteOnExit();
+        final PubSubServer server = new PubSubServer(Arrays.asList(address));
+        server.durableTopics(directory, 4 * 1024 * 1024, Long.MAX_VALUE, 1, TimeUnit.DAYS, "log");
+        final ExecutorService clientSvc = Executors.newCachedThreadPool();
+        final PubSubClient publisher = new PubSubClient(clientSvc, Arrays.asList(address));
+        final CountDownLatch connected = new CountDownLatch(1);
+        final PubSubClient subscriber = new PubSubClient(clientSvc, new PubSubClient.NetworkConnectionLifecycleCallback() {
+
+            @Override
+            public void connectionUp(final SocketAddress endpoint) {
+                connected.countDown();
+            }
+
+            @Override
+            public void connectionDown(final SocketAddress endpoint) {
+            }
+
+        }, Arrays.asList(address));
+        final AtomicLong received = new AtomicLong();
+        final PubSubClient.MessageCallback callback = new PubSubClient.MessageCallback() {
+
+            @Override
+            public void onMessage(final ByteBuffer message) {
+                received.incrementAndGet();
+            }
+
+        };
+        server.start();
+        try {
+            publisher.start();
+            final Collection<Future<Boolean>> futures = new LinkedList<Future<Boolean>>();
+            for (int pos = 0; pos < messages; ++pos)
+                futures.add(publisher.publish(new byte[8], "log"));
+            for (final Future<Boolean> future : futures)
+                assertTrue("Unable to publish message", future.get());
+            subscriber.start();
+            assertTrue(connected.await(PubSubClient.DEFAULT_TIMEOUT_SECONDS * 3, TimeUnit.SECONDS));
+            onSmallStack(new Runnable() {
+
+                @Override
+                public void run() {
+                    subscriber.subscribeFrom("log", 0, callback);
+                }
+
+            });
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (received.get() < messages && System.nanoTime() < deadline)
+                Thread.sleep(50);
+            assertEquals(messages, received.get());
+        } finally {
+            publisher.stop();
+            subscriber.stop();
+            server.stop();
+            clientSvc.shutdown();
+        }
+    }
+
+    /*
+     * Runs on a thread with a small stack, one that work growing the stack as it goes would overflow
+     */
+    private static void onSmallStack(final Runnable runnable) throws InterruptedException {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread thread = new Thread(null, new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (final Throwable t) {
+                    failure.set(t);
+                }
+            }
+
+        }, "small-stack", 256 * 1024);
+        thread.start();
+        thread.join();
+        assertNull(failure.get());
+    }
+
+    /*
+     * Whether the server comes to have (or not have) subscribers to the topic within a peer's connection re-try delay and then some
+     */
+    private static boolean awaitTopic(final PubSubServer server, final String topic, final boolean subscribed)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(PubSubClient.DEFAULT_TIMEOUT_SECONDS * 3);
+        while (server.subscribedTopics().contains(topic) != subscribed)
+            if (System.nanoTime() > deadline)
+                return false;
+            else
+                Thread.sleep(50);
+        return true;
+    }
+
     /**
      * Creates some interesting server configurations to test:
      * <ul>
@@ -0,0 +1,78 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class ReplayRingTest {
+
+    @Test
+    public final void gap() {
+        final ReplayRing ring = new ReplayRing(8, TimeUnit.MINUTES.toNanos(1));
+        final UUID first = UUID.randomUUID();
+        final UUID second = UUID.randomUUID();
+        ring.add(message(first, 1), 0);
+        ring.add(message(second, 1), 0);
+        ring.add(message(first, 2), 0);
+        ring.add(message(UUID.randomUUID(), 1), 0);
+        ring.add(message(first, 3), 0);
+        final Map<UUID, Long> seen = new HashMap<UUID, Long>();
+        seen.put(first, 2l);
+        seen.put(second, 1l);
+        final List<ApplicationMessage> missed = ring.since(seen, 0);
+        assertEquals(2, missed.size());
+        assertEquals(1, missed.get(0).sequence());
+        assertEquals(first, missed.get(1).sourceID());
+        assertEquals(3, missed.get(1).sequence());
+        assertEquals(5, ring.since(Collections.<UUID, Long> emptyMap(), 0).size());
+        for (int sequence = 4; sequence < 12; ++sequence)
+            ring.add(message(first, sequence), 0);
+        assertEquals(8, ring.since(seen, 0).size());
+        assertTrue(ring.since(seen, TimeUnit.MINUTES.toNanos(2)).isEmpty());
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public final void hint() {
+        final UUID source = UUID.randomUUID();
+        final Map<String, Map<UUID, Long>> positions = new HashMap<String, Map<UUID, Long>>();
+        positions.put("a.b", Collections.singletonMap(source, 42l));
+        positions.put("c", Collections.<UUID, Long> emptyMap());
+        final SubscriptionMessage hint = ReplayRing.resumeHint(positions);
+        assertTrue(ReplayRing.isResumeHint(hint));
+        assertEquals(positions, ReplayRing.positions(new SubscriptionMessage(hint.body())));
+    }
+
+    private static ApplicationMessage message(final UUID source, final long sequence) {
+        final ApplicationMessage rv = new ApplicationMessage(ByteBuffer.allocate(1), "topic");
+        rv.sourceID(source);
+        rv.sequence(sequence);
+        return rv;
+    }
+
+}
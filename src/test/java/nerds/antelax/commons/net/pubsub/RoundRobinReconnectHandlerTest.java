@@ -0,0 +1,334 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.testng.annotations.Test;
+
+public class RoundRobinReconnectHandlerTest {
+
+    private static final long ATTEMPT_DELAY_MILLIS = 200;
+
+    /*
+     * A dead server failing straight away has the next tried at once, rather than after the attempt delay or connect timeout
+     */
+    @Test
+    public void failover() throws Exception {
+        final Server live = new Server(true);
+        final Client client = new Client(TimeUnit.SECONDS.toMillis(10), dead(), dead(), live.address);
+        try {
+            client.handler.attemptDelay(10, TimeUnit.SECONDS);
+            client.handler.enable();
+            assertEquals(live.address, client.awaitUp());
+            assertEquals(1, client.handler.reconnects());
+            assertTrue(client.handler.lastReconnectTime() < TimeUnit.SECONDS.toNanos(1));
+            assertEquals(Arrays.asList(live.address), new ArrayList<InetSocketAddress>(client.handler.roundTripTimes().keySet()));
+        } finally {
+            client.close();
+            live.close();
+        }
+    }
+
+    /*
+     * Servers never timed are raced from the start; the one connecting second is closed
+     */
+    @Test
+    public void losersClosed() throws Exception {
+        final Server first = new Server(true), second = new Server(true);
+        final Client client = new Client(TimeUnit.SECONDS.toMillis(10), first.address, second.address);
+        try {
+            client.handler.enable();
+            client.awaitUp();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (first.open.get() + second.open.get() != 1 && System.nanoTime() < deadline)
+                Thread.sleep(10);
+            assertEquals(1, first.open.get() + second.open.get());
+        } finally {
+            client.close();
+            first.close();
+            second.close();
+        }
+    }
+
+    /*
+     * Once every server is timed the fastest is tried alone, and only if it doesn't answer within the attempt delay is the next
+     * tried as well
+     */
+    @Test
+    public void staggered() throws Exception {
+        final Server a = new Server(false), b = new Server(false);
+        final Client client = new Client(TimeUnit.SECONDS.toMillis(10), a.address, b.address);
+        try {
+            client.handler.attemptDelay(ATTEMPT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            client.handler.enable();
+            client.awaitUp();
+            for (int round = 0; client.handler.roundTripTimes().size() < 2; ++round) {
+                assertTrue("Never timed both servers", round < 10);
+                client.reconnect();
+            }
+
+            final Map<InetSocketAddress, Long> roundTrips = client.handler.roundTripTimes();
+            final Server fastest = roundTrips.get(a.address) <= roundTrips.get(b.address) ? a : b;
+            final Server slowest = fastest == a ? b : a;
+            assertEquals(fastest.address, client.reconnect());
+            assertTrue(client.handler.lastReconnectTime() < TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY_MILLIS));
+
+            fastest.blackhole();
+            assertEquals(slowest.address, client.reconnect());
+            final long took = client.handler.lastReconnectTime();
+            assertTrue(took >= TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY_MILLIS));
+            assertTrue(took < TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY_MILLIS) + TimeUnit.SECONDS.toNanos(2));
+        } finally {
+            client.close();
+            a.close();
+            b.close();
+        }
+    }
+
+    /*
+     * Connecting in-VM runs the new channel's events on the connecting thread, which must not be holding the lock by then
+     */
+    @Test
+    public void inVMConnectUnlocked() throws Exception {
+        final InetSocketAddress address = dead();
+        final LocalAddress local = LocalTransport.register(address);
+        final ServerBootstrap server = new ServerBootstrap(LocalTransport.newServerChannelFactory());
+        server.setPipelineFactory(new ChannelPipelineFactory() {
+
+            @Override
+            public ChannelPipeline getPipeline() {
+                return Channels.pipeline(new SimpleChannelUpstreamHandler());
+            }
+
+        });
+        final Channel bound = server.bind(local);
+        final AtomicBoolean unlocked = new AtomicBoolean(false);
+        final Client client = new Client(TimeUnit.SECONDS.toMillis(10), address) {
+
+            @Override
+            public void connectionUp(final SocketAddress endpoint) {
+                final Thread other = new Thread() {
+
+                    @Override
+                    public void run() {
+                        handler.roundTripTimes();
+                    }
+
+                };
+                other.start();
+                try {
+                    other.join(TimeUnit.SECONDS.toMillis(1));
+                } catch (final InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+                unlocked.set(!other.isAlive());
+                super.connectionUp(endpoint);
+            }
+
+        };
+        try {
+            final ClientBootstrap localBootstrap = new ClientBootstrap(LocalTransport.clientChannelFactory());
+            localBootstrap.setPipelineFactory(client.pipelineFactory());
+            client.handler.localBootstrap(localBootstrap);
+            client.handler.enable();
+            assertEquals(address, client.awaitUp());
+            assertTrue("Lock held while firing connectionUp", unlocked.get());
+        } finally {
+            client.close();
+            bound.close().awaitUninterruptibly();
+            LocalTransport.unregister(address);
+            server.releaseExternalResources();
+        }
+    }
+
+    /*
+     * An address nothing listens on, so connecting is refused straight away
+     */
+    private static InetSocketAddress dead() throws IOException {
+        final ServerSocket socket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        final InetSocketAddress rv = new InetSocketAddress(socket.getInetAddress(), socket.getLocalPort());
+        socket.close();
+        return rv;
+    }
+
+    /*
+     * A loopback server, either accepting connections and counting those still open, or leaving them queued for it by the kernel
+     * until told to stop answering altogether
+     */
+    private static final class Server {
+
+        final InetSocketAddress    address;
+        final AtomicInteger        open;
+        private final ServerSocket socket;
+        private final List<Socket> fillers;
+
+        Server(final boolean accepting) throws IOException {
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            address = new InetSocketAddress(socket.getInetAddress(), socket.getLocalPort());
+            open = new AtomicInteger();
+            fillers = new ArrayList<Socket>();
+            if (accepting)
+                new Thread() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            while (true) {
+                                final Socket accepted = socket.accept();
+                                open.incrementAndGet();
+                                new Thread() {
+
+                                    @Override
+                                    public void run() {
+                                        try {
+                                            final InputStream in = accepted.getInputStream();
+                                            while (in.read() >= 0)
+                                                continue;
+                                        } catch (final IOException ioe) {
+                                        } finally {
+                                            open.decrementAndGet();
+                                        }
+                                    }
+
+                                }.start();
+                            }
+                        } catch (final IOException ioe) {
+                            // Closed
+                        }
+                    }
+
+                }.start();
+        }
+
+        /*
+         * Fills the accept queue of a server that isn't accepting, after which the kernel drops connection requests unanswered
+         */
+        void blackhole() throws IOException {
+            while (true) {
+                final Socket filler = new Socket();
+                fillers.add(filler);
+                try {
+                    filler.connect(address, 200);
+                } catch (final SocketTimeoutException ste) {
+                    return;
+                }
+            }
+        }
+
+        void close() throws IOException {
+            for (final Socket filler : fillers)
+                filler.close();
+            socket.close();
+        }
+
+    }
+
+    /*
+     * The handler alone in its pipeline, connecting over TCP with its own transport resources
+     */
+    private static class Client implements PubSubClient.NetworkConnectionLifecycleCallback {
+
+        final RoundRobinReconnectHandler           handler;
+        private final TransportResources           resources;
+        private final BlockingQueue<SocketAddress> ups;
+
+        Client(final long connectTimeoutMillis, final InetSocketAddress... servers) {
+            resources = new TransportResources("reconnect-test", 1);
+            final ClientBootstrap bootstrap = new ClientBootstrap(resources.clientChannelFactory());
+            handler = new RoundRobinReconnectHandler(bootstrap, resources.timer(), 1, TimeUnit.SECONDS, this,
+                    Arrays.asList(servers));
+            ups = new LinkedBlockingQueue<SocketAddress>();
+            bootstrap.setPipelineFactory(pipelineFactory());
+            bootstrap.setOption("connectTimeoutMillis", connectTimeoutMillis);
+        }
+
+        ChannelPipelineFactory pipelineFactory() {
+            return new ChannelPipelineFactory() {
+
+                @Override
+                public ChannelPipeline getPipeline() {
+                    return Channels.pipeline(handler);
+                }
+
+            };
+        }
+
+        @Override
+        public void connectionUp(final SocketAddress endpoint) {
+            ups.add(endpoint);
+        }
+
+        @Override
+        public void connectionDown(final SocketAddress endpoint) {
+        }
+
+        SocketAddress awaitUp() throws InterruptedException {
+            final SocketAddress rv = ups.poll(5, TimeUnit.SECONDS);
+            assertTrue("Never connected", rv != null);
+            return rv;
+        }
+
+        /*
+         * Drops the connection without the server being counted as failed, and connects again
+         */
+        SocketAddress reconnect() throws InterruptedException {
+            handler.shutdown().awaitUninterruptibly();
+            // Let the handler see the close before starting over
+            Thread.sleep(100);
+            handler.enable();
+            return awaitUp();
+        }
+
+        void close() {
+            final ChannelFuture closed = handler.shutdown();
+            if (closed != null)
+                closed.awaitUninterruptibly();
+            resources.release();
+        }
+
+    }
+
+}
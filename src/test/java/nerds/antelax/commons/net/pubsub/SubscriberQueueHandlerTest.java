@@ -0,0 +1,210 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+public class SubscriberQueueHandlerTest {
+
+    private static final int       SIZE  = message("topic").estimatedBodySize();
+
+    private final HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS);
+
+    @AfterClass
+    public final void stopTimer() {
+        timer.stop();
+    }
+
+    @Test
+    public final void writable() {
+        final SubscriberQueueHandler handler = handler(1, SlowConsumerPolicy.DROP_NEWEST);
+        final TestChannel channel = new TestChannel(handler);
+        final ApplicationMessage m = message("topic");
+        assertTrue(channel.write(m).isSuccess());
+        assertEquals(Arrays.asList(m), channel.written());
+        assertEquals(0, handler.queuedMessages());
+    }
+
+    @Test
+    public final void dropNewest() {
+        final SubscriberQueueHandler handler = handler(2, SlowConsumerPolicy.DROP_NEWEST);
+        final TestChannel channel = new TestChannel(handler);
+        channel.writable(false);
+        final ApplicationMessage first = message("topic"), second = message("topic");
+        channel.write(first);
+        channel.write(second);
+        assertSame(OverflowException.QUEUE_FULL, channel.write(message("topic")).getCause());
+        assertEquals(2, handler.queuedMessages());
+        assertEquals(2 * SIZE, handler.queuedBytes());
+        assertEquals(1, handler.shedMessages());
+
+        channel.writable(true);
+        assertEquals(Arrays.asList(first, second), channel.written());
+        assertEquals(0, handler.queuedMessages());
+        assertEquals(0, handler.queuedBytes());
+    }
+
+    @Test
+    public final void dropOldest() {
+        final SubscriberQueueHandler handler = handler(2, SlowConsumerPolicy.DROP_OLDEST);
+        final TestChannel channel = new TestChannel(handler);
+        channel.writable(false);
+        final ApplicationMessage second = message("topic"), third = message("topic");
+        final ChannelFuture oldest = channel.write(message("topic"));
+        channel.write(second);
+        channel.write(third);
+        assertSame(OverflowException.DROPPED, oldest.getCause());
+        assertEquals(2 * SIZE, handler.queuedBytes());
+
+        channel.writable(true);
+        assertEquals(Arrays.asList(second, third), channel.written());
+        assertEquals(1, handler.shedMessages());
+    }
+
+    /*
+     * Writability flapping while the queue stays full doesn't start the allowance over, and the subscriber is closed on the timer
+     * with nothing more written to it
+     */
+    @Test
+    public final void disconnect() throws InterruptedException {
+        final SubscriberQueueHandler handler = new SubscriberQueueHandler(1, Long.MAX_VALUE, SlowConsumerPolicy.DISCONNECT, timer,
+                100, TimeUnit.MILLISECONDS);
+        final TestChannel channel = new TestChannel(handler);
+        channel.writable(false);
+        final ChannelFuture queued = channel.write(message("topic"));
+        assertSame(OverflowException.QUEUE_FULL, channel.write(message("topic")).getCause());
+        assertTrue(channel.isOpen());
+
+        Thread.sleep(60);
+        channel.writable(false);
+        assertTrue(channel.isOpen());
+
+        Thread.sleep(200);
+        assertFalse(channel.isOpen());
+        assertSame(OverflowException.CHANNEL_CLOSED, queued.getCause());
+        assertEquals(0, handler.queuedMessages());
+        assertEquals(1, handler.shedMessages());
+    }
+
+    /*
+     * Draining back within budget starts the allowance over
+     */
+    @Test
+    public final void disconnectDrained() throws InterruptedException {
+        final SubscriberQueueHandler handler = new SubscriberQueueHandler(1, Long.MAX_VALUE, SlowConsumerPolicy.DISCONNECT, timer,
+                100, TimeUnit.MILLISECONDS);
+        final TestChannel channel = new TestChannel(handler);
+        channel.writable(false);
+        channel.write(message("topic"));
+        channel.write(message("topic"));
+        Thread.sleep(60);
+        channel.writable(true);
+        assertEquals(1, channel.written().size());
+
+        channel.writable(false);
+        channel.write(message("topic"));
+        channel.write(message("topic"));
+        Thread.sleep(60);
+        assertTrue(channel.isOpen());
+
+        Thread.sleep(200);
+        assertFalse(channel.isOpen());
+        assertEquals(2, handler.shedMessages());
+    }
+
+    /*
+     * A replaced message's bytes stop counting against the budget, and what is shed to make room is the latest on its topic
+     */
+    @Test
+    public final void conflateBudget() {
+        final ApplicationMessage a1 = message("a"), b1 = message("b"), a2 = message("a", 64), c1 = message("c");
+        final long maxBytes = a2.estimatedBodySize() + b1.estimatedBodySize();
+        final SubscriberQueueHandler handler = new SubscriberQueueHandler(Integer.MAX_VALUE, maxBytes, SlowConsumerPolicy.CONFLATE,
+                timer, 0, TimeUnit.SECONDS);
+        final TestChannel channel = new TestChannel(handler);
+        channel.writable(false);
+        final ChannelFuture replaced = channel.write(a1);
+        channel.write(b1);
+        final ChannelFuture shed = channel.write(a2);
+        assertSame(OverflowException.CONFLATED, replaced.getCause());
+        assertEquals(2, handler.queuedMessages());
+        assertEquals(maxBytes, handler.queuedBytes());
+        assertEquals(1, handler.conflatedMessages());
+
+        channel.write(c1);
+        assertSame(OverflowException.DROPPED, shed.getCause());
+        assertEquals(1, handler.shedMessages());
+        assertEquals(b1.estimatedBodySize() + c1.estimatedBodySize(), handler.queuedBytes());
+
+        channel.writable(true);
+        assertEquals(Arrays.<Object> asList(b1, c1), channel.written());
+        assertEquals(0, handler.queuedBytes());
+    }
+
+    /*
+     * Each topic (and key) keeps the place in the queue of the first message held back on it, and is sent the latest
+     */
+    @Test
+    public final void conflateOrder() {
+        final SubscriberQueueHandler handler = new SubscriberQueueHandler(Integer.MAX_VALUE, Long.MAX_VALUE,
+                SlowConsumerPolicy.CONFLATE, timer, 0, TimeUnit.SECONDS);
+        final TestChannel channel = new TestChannel(handler);
+        channel.writable(false);
+        final ApplicationMessage y1 = keyed("y"), a2 = message("a"), x2 = keyed("x");
+        channel.write(message("a"));
+        channel.write(keyed("x"));
+        channel.write(y1);
+        channel.write(a2);
+        channel.write(x2);
+        assertEquals(3, handler.queuedMessages());
+        assertEquals(2, handler.conflatedMessages());
+        assertEquals(a2.estimatedBodySize() + x2.estimatedBodySize() + y1.estimatedBodySize(), handler.queuedBytes());
+
+        channel.writable(true);
+        assertEquals(Arrays.<Object> asList(a2, x2, y1), channel.written());
+        assertEquals(0, handler.shedMessages());
+    }
+
+    private SubscriberQueueHandler handler(final int maxMessages, final SlowConsumerPolicy policy) {
+        return new SubscriberQueueHandler(maxMessages, Long.MAX_VALUE, policy, timer, 0, TimeUnit.SECONDS);
+    }
+
+    private static ApplicationMessage message(final String topic) {
+        return message(topic, 16);
+    }
+
+    private static ApplicationMessage message(final String topic, final int size) {
+        return new ApplicationMessage(ByteBuffer.allocate(size), topic);
+    }
+
+    private static ApplicationMessage keyed(final String key) {
+        return new ApplicationMessage(ByteBuffer.allocate(16), "keyed", key);
+    }
+
+}
@@ -0,0 +1,79 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+
+package nerds.antelax.commons.net.pubsub;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.Collections;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.testng.annotations.Test;
+
+import com.google.common.base.Predicates;
+
+public class SubscriberRegistryTest {
+
+    @Test
+    public final void closeRemoves() {
+        final HashedWheelTimer timer = new HashedWheelTimer();
+        try {
+            final SubscriberRegistry registry = registry(timer);
+            final TestChannel channel = new TestChannel();
+            assertTrue(registry.add("topic", channel));
+            assertTrue(registry.add("topic.#", channel));
+            assertEquals(1, registry.subscribers("topic").length);
+            channel.closed();
+            assertEquals(0, registry.subscribers("topic").length);
+            assertEquals(0, registry.subscribers("topic.a").length);
+            assertTrue(registry.topics().isEmpty());
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /*
+     * A channel already closed when it subscribes has its close listener run at once, before it would otherwise go into the topic's
+     * array, so it must not be left there
+     */
+    @Test
+    public final void alreadyClosed() {
+        final HashedWheelTimer timer = new HashedWheelTimer();
+        try {
+            final SubscriberRegistry registry = registry(timer);
+            final TestChannel channel = new TestChannel();
+            channel.closed();
+            assertFalse(registry.add("topic", channel));
+            assertFalse(registry.add("topic.#", channel));
+            assertEquals(0, registry.subscribers("topic").length);
+            assertEquals(0, registry.subscribers("topic.a").length);
+            assertFalse(registry.hasLocalSubscribers("topic"));
+            assertFalse(registry.hasLocalSubscribers("topic.#"));
+            assertTrue(registry.topics().isEmpty());
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private static SubscriberRegistry registry(final HashedWheelTimer timer) {
+        return new SubscriberRegistry(new SubscriptionPropagator(Collections.<PubSubClient> emptyList(),
+                Predicates.<String> alwaysFalse(), timer, SubscriptionPropagator.DEFAULT_DEBOUNCE_MILLIS));
+    }
+
+}
@@ -0,0 +1,124 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.jboss.netty.channel.AbstractChannel;
+import org.jboss.netty.channel.AbstractChannelSink;
+import org.jboss.netty.channel.ChannelConfig;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultChannelConfig;
+import org.jboss.netty.channel.MessageEvent;
+
+/*
+ * A channel going nowhere, for testing handlers: whatever reaches the bottom of its pipeline is written straight away and kept in
+ * order, closing it closes it at once, and whether it is writable is up to the test.
+ */
+final class TestChannel extends AbstractChannel {
+
+    private final ChannelConfig config;
+    private final List<Object>  written;
+    private volatile boolean    writable;
+
+    TestChannel(final ChannelHandler... handlers) {
+        this(Channels.pipeline(handlers), new CopyOnWriteArrayList<Object>());
+    }
+
+    private TestChannel(final ChannelPipeline pipeline, final List<Object> written) {
+        super(null, null, pipeline, new AbstractChannelSink() {
+
+            @Override
+            public void eventSunk(final ChannelPipeline pipeline, final ChannelEvent e) {
+                if (e instanceof MessageEvent) {
+                    written.add(((MessageEvent) e).getMessage());
+                    e.getFuture().setSuccess();
+                } else if (e instanceof ChannelStateEvent && ((ChannelStateEvent) e).getState() == ChannelState.OPEN
+                        && Boolean.FALSE.equals(((ChannelStateEvent) e).getValue())) {
+                    ((TestChannel) e.getChannel()).closed();
+                    e.getFuture().setSuccess();
+                }
+            }
+
+        });
+        config = new DefaultChannelConfig();
+        this.written = written;
+        writable = true;
+        Channels.fireChannelOpen(this);
+    }
+
+    /**
+     * @return the messages written so far, oldest first
+     */
+    List<Object> written() {
+        return written;
+    }
+
+    /**
+     * Makes the channel writable or not, telling the pipeline as Netty would
+     */
+    void writable(final boolean writable) {
+        this.writable = writable;
+        Channels.fireChannelInterestChanged(this);
+    }
+
+    /**
+     * Closes the channel as if from the other end
+     */
+    void closed() {
+        if (setClosed())
+            Channels.fireChannelClosed(this);
+    }
+
+    @Override
+    public boolean isWritable() {
+        return writable;
+    }
+
+    @Override
+    public ChannelConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public boolean isBound() {
+        return isOpen();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isOpen();
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() {
+        return null;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return null;
+    }
+
+}
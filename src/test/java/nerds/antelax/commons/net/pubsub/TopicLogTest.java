@@ -0,0 +1,92 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.testng.annotations.Test;
+
+public class TopicLogTest {
+
+    @Test
+    public final void appendAndRead() throws IOException {
+        final File directory = directory();
+        TopicLog log = new TopicLog(directory, 1024, Long.MAX_VALUE, Long.MAX_VALUE);
+        for (int pos = 0; pos < 100; ++pos)
+            assertEquals(pos, log.append(frame(pos), 1000 + pos));
+        assertTrue(log.segments() > 1);
+        assertEquals(-1, log.append(ChannelBuffers.wrappedBuffer(new byte[1024]), 2000));
+        log.close();
+
+        // Picked up where it left off
+        log = new TopicLog(directory, 1024, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertEquals(100, log.nextOffset());
+        final List<ChannelBuffer> frames = new ArrayList<ChannelBuffer>();
+        assertEquals(40, log.read(40, 30, frames));
+        assertEquals(30, frames.size());
+        for (int pos = 0; pos < frames.size(); ++pos)
+            assertEquals(frame(40 + pos), frames.get(pos));
+        frames.clear();
+        log.read(90, Integer.MAX_VALUE, frames);
+        assertEquals(10, frames.size());
+        assertEquals(57, log.offsetFor(1057));
+        assertEquals(0, log.offsetFor(0));
+        assertEquals(100, log.offsetFor(5000));
+        log.close();
+    }
+
+    @Test
+    public final void retention() throws IOException {
+        final TopicLog log = new TopicLog(directory(), 1024, 2048, Long.MAX_VALUE);
+        for (int pos = 0; pos < 200; ++pos)
+            log.append(frame(pos), 1000 + pos);
+        log.retain(2000);
+        assertTrue(log.segments() <= 3);
+        assertTrue(log.firstOffset() > 0);
+        final List<ChannelBuffer> frames = new ArrayList<ChannelBuffer>();
+        assertEquals(log.firstOffset(), log.read(0, 1, frames));
+        assertEquals(frame((int) log.firstOffset()), frames.get(0));
+        log.close();
+    }
+
+    // In two parts, as frames encoded with a header of their own are
+    private static ChannelBuffer frame(final int value) {
+        final ChannelBuffer header = ChannelBuffers.buffer(16);
+        final ChannelBuffer body = ChannelBuffers.buffer(16);
+        for (int pos = 0; pos < 4; ++pos) {
+            header.writeInt(value);
+            body.writeInt(value);
+        }
+        return ChannelBuffers.wrappedBuffer(header, body);
+    }
+
+    private static File directory() throws IOException {
+        final File rv = File.createTempFile("topic-log", "");
+        assertTrue(rv.delete() && rv.mkdirs());
+        rv.deleteOnExit();
+        return rv;
+    }
+
+}
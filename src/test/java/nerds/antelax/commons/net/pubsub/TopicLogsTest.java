@@ -0,0 +1,64 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.util.HashedWheelTimer;
+import org.testng.annotations.Test;
+
+public class TopicLogsTest {
+
+    /*
+     * Whatever the topic, its log is a directory of its own straight under the root
+     */
+    @Test
+    public final void directories() throws IOException {
+        final File root = File.createTempFile("topic-logs", "");
+        assertTrue(root.delete() && root.mkdirs());
+        root.deleteOnExit();
+        final HashedWheelTimer timer = new HashedWheelTimer();
+        final TopicLogs logs = new TopicLogs(root, 1024, Long.MAX_VALUE, 1, TimeUnit.DAYS, timer, "#");
+        try {
+            final Set<String> names = new HashSet<String>();
+            for (final String topic : Arrays.asList(".", "..", "%2E", "a.b", "a%2Eb", "a/../b")) {
+                assertNotNull(logs.log(topic));
+                final String name = TopicLogs.directoryName(topic);
+                assertTrue(names.add(name));
+                assertFalse(name.equals(".") || name.equals(".."));
+                assertTrue(new File(root, name).isDirectory());
+            }
+            assertEquals(names, new HashSet<String>(Arrays.asList(root.list())));
+            assertNull(logs.log(""));
+        } finally {
+            logs.stop();
+            timer.stop();
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+// Copyright 2013 Nathaniel Harward
+//
+// This file is part of commons-j.
+//
+// commons-j is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// commons-j is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with commons-j. If not, see <http://www.gnu.org/licenses/>.
+package nerds.antelax.commons.net.pubsub;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+public class TopicMatcherTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(TopicMatcherTest.class);
+
+    @Test
+    public final void wildcards() {
+        final TopicMatcher<String> matcher = new TopicMatcher<String>(new String[0]);
+        matcher.add("a.b.*", "a.b.*");
+        matcher.add("a.#", "a.#");
+        matcher.add("*.b.c", "*.b.c");
+        matcher.add("#", "#");
+        assertMatches(matcher, "a.b.c", "a.b.*", "a.#", "*.b.c", "#");
+        assertMatches(matcher, "a.b", "a.#", "#");
+        assertMatches(matcher, "a", "a.#", "#");
+        assertMatches(matcher, "a.b.c.d", "a.#", "#");
+        assertMatches(matcher, "x.b.c", "*.b.c", "#");
+        assertTrue(matcher.remove("#", "#"));
+        assertFalse(matcher.remove("#", "#"));
+        assertMatches(matcher, "x.b.c", "*.b.c");
+        assertMatches(matcher, "x.y");
+        assertTrue(TopicMatcher.isPattern("a.*.c"));
+        assertFalse(TopicMatcher.isPattern("a*.c"));
+        assertFalse(TopicMatcher.isValid("a.#.c"));
+        assertFalse(TopicMatcher.isValid("#.c"));
+    }
+
+    /*
+     * Times matching against 1k, 10k and 100k patterns, each topic once so as to measure the trie rather than the cache
+     */
+    @Test
+    public final void scaling() {
+        for (final int count : new int[] { 1000, 10000, 100000 }) {
+            final TopicMatcher<Integer> matcher = new TopicMatcher<Integer>(new Integer[0]);
+            for (int i = 0; i < count; ++i)
+                matcher.add("prices." + i + (i % 2 == 0 ? ".*" : ".#"), i);
+            final int topics = 100000;
+            final long start = System.nanoTime();
+            for (int i = 0; i < topics; ++i) {
+                final int pattern = i % count;
+                assertEquals(pattern, matcher.match("prices." + pattern + ".x" + i).length == 1 ? pattern : -1);
+            }
+            logger.info("Matched {} topics against {} patterns in {}ms", new Object[] { topics, count,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) });
+        }
+    }
+
+    private static void assertMatches(final TopicMatcher<String> matcher, final String topic, final String... patterns) {
+        assertEquals(new HashSet<String>(Arrays.asList(patterns)), new HashSet<String>(Arrays.asList(matcher.match(topic))));
+    }
+
+}